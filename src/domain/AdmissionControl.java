@@ -0,0 +1,562 @@
+package domain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.TokenBucket;
+
+/**
+ * limits the rate at which each device may submit GPS updates, so that a few
+ *   misbehaving devices cannot saturate the listeners downstream of the
+ *   GpsRecordManager at the expense of the rest of the fleet.
+ *
+ * each device gets its own token bucket, whose rate and burst are taken from
+ *   the device class the device is assigned to, or the default class. the
+ *   buckets are lock-free, so checking a message costs a few atomic operations
+ *   and can be done before the message is even parsed.
+ *
+ * what happens to the excess of a batch of GPS updates depends on the device
+ *   class' policy: DROP rejects the whole batch, while DOWNSAMPLE keeps as many
+ *   evenly spaced GPS updates of it as there are tokens for.
+ *
+ * devices that have not identified themselves yet cannot be told apart, so
+ *   each of their connections is admitted against a bucket of its own, with
+ *   the limits of the default class, created by newConnectionBucket.
+ *
+ * buckets outlive connections, so that reconnecting does not earn a device a
+ *   fresh burst; they are only forgotten once they have been full for the
+ *   bucket TTL, when a new bucket would admit the same. while started, a
+ *   thread forgets such buckets, and logs the admitted and rejected GPS
+ *   updates of each device class periodically.
+ *
+ * this class is thread safe.
+ */
+public class AdmissionControl
+{
+    /**
+     * name of the device class devices are in unless assigned to another one.
+     */
+    public static final String DEFAULT_CLASS = "default";
+
+    /**
+     * time in milliseconds a token bucket must have been full for before it
+     *   is forgotten.
+     */
+    public static final long BUCKET_TTL = 10*60*1000;
+
+    /**
+     * device classes, by name.
+     */
+    private final Map<String,DeviceClass> deviceClasses;
+
+    /**
+     * names of the device classes devices are assigned to, by device ID.
+     */
+    private final Map<String,String> assignments;
+
+    /**
+     * token buckets of the devices that sent messages within the bucket TTL.
+     */
+    private final ConcurrentMap<String,TokenBucket> buckets;
+
+    /**
+     * thread that expires buckets, and logs counters periodically.
+     */
+    private ReportThread reportThread;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new admission control.
+     *
+     * @param defaultClass device class of devices that are not assigned to
+     *   another one; its name is replaced by DEFAULT_CLASS.
+     */
+    public AdmissionControl(DeviceClass defaultClass)
+    {
+        this.deviceClasses = new ConcurrentHashMap<>();
+        this.assignments = new ConcurrentHashMap<>();
+        this.buckets = new ConcurrentHashMap<>();
+        addDeviceClass(new DeviceClass(DEFAULT_CLASS,defaultClass.rate,
+                defaultClass.burst,defaultClass.policy));
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * adds a device class, replacing the one with the same name, if any. the
+     *   limits of devices that already have a token bucket only change once
+     *   it is forgotten, after the device was idle for the bucket TTL.
+     *
+     * @param deviceClass device class to add.
+     */
+    public void addDeviceClass(DeviceClass deviceClass)
+    {
+        deviceClasses.put(deviceClass.name,deviceClass);
+    }
+
+    /**
+     * assigns a device to a device class. if the device already has a token
+     *   bucket, only takes effect once it is forgotten, after the device was
+     *   idle for the bucket TTL.
+     *
+     * @param deviceId ID of the device.
+     * @param className name of the device class to assign the device to.
+     *
+     * @throws IllegalArgumentException if there is no such device class.
+     */
+    public void assignDevice(String deviceId, String className)
+    {
+        if(!deviceClasses.containsKey(className))
+        {
+            throw new IllegalArgumentException("unknown device class: "+className);
+        }
+        assignments.put(deviceId,className);
+    }
+
+    /**
+     * returns the device class a device is in.
+     *
+     * @param deviceId ID of the device.
+     *
+     * @return the device class the device is in.
+     */
+    public DeviceClass getDeviceClass(String deviceId)
+    {
+        String className = assignments.get(deviceId);
+        DeviceClass deviceClass = (className == null) ? null : deviceClasses.get(className);
+        return (deviceClass == null) ? deviceClasses.get(DEFAULT_CLASS) : deviceClass;
+    }
+
+    /**
+     * returns the device classes.
+     *
+     * @return the device classes.
+     */
+    public Collection<DeviceClass> getDeviceClasses()
+    {
+        return new ArrayList<>(deviceClasses.values());
+    }
+
+    /**
+     * tries to admit a message from a device; meant to be called before the
+     *   message is parsed. a message that is admitted costs one token, and if
+     *   it turns out to be a batch, the rest of it must be admitted with
+     *   admitBatch.
+     *
+     * @param deviceId ID of the device that sent the message.
+     *
+     * @return true if the message is admitted; false if it must be dropped.
+     */
+    public boolean admit(String deviceId)
+    {
+        DeviceClass deviceClass = getDeviceClass(deviceId);
+        return admit(deviceClass,getBucket(deviceId,deviceClass));
+    }
+
+    /**
+     * tries to admit a message from a connection whose device has not
+     *   identified itself yet; see admit.
+     *
+     * @param connectionBucket bucket of the connection, created by
+     *   newConnectionBucket.
+     *
+     * @return true if the message is admitted; false if it must be dropped.
+     */
+    public boolean admitUnidentified(TokenBucket connectionBucket)
+    {
+        return admit(deviceClasses.get(DEFAULT_CLASS),connectionBucket);
+    }
+
+    /**
+     * returns a new token bucket with the limits of the default class, to
+     *   admit the messages of one connection with until its device identifies
+     *   itself.
+     *
+     * @return a new, full token bucket.
+     */
+    public TokenBucket newConnectionBucket()
+    {
+        DeviceClass deviceClass = deviceClasses.get(DEFAULT_CLASS);
+        return new TokenBucket(deviceClass.rate,deviceClass.burst);
+    }
+
+    /**
+     * admits the rest of a batch of GPS updates whose message was admitted by
+     *   admit, and returns which of them are to be kept.
+     *
+     * @param deviceId ID of the device that sent the batch.
+     * @param size number of GPS updates in the batch.
+     *
+     * @return indices of the GPS updates to keep, in ascending order; always
+     *   includes the last, most recent GPS update, unless none are kept.
+     */
+    public int[] admitBatch(String deviceId, int size)
+    {
+        DeviceClass deviceClass = getDeviceClass(deviceId);
+        return admitBatch(deviceClass,getBucket(deviceId,deviceClass),size);
+    }
+
+    /**
+     * admits the rest of a batch of GPS updates from a connection whose
+     *   device has not identified itself yet; see admitBatch.
+     *
+     * @param connectionBucket bucket of the connection, created by
+     *   newConnectionBucket.
+     * @param size number of GPS updates in the batch.
+     *
+     * @return indices of the GPS updates to keep, in ascending order.
+     */
+    public int[] admitUnidentifiedBatch(TokenBucket connectionBucket, int size)
+    {
+        return admitBatch(deviceClasses.get(DEFAULT_CLASS),connectionBucket,size);
+    }
+
+    /**
+     * starts expiring buckets, and logging counters periodically.
+     *
+     * @param interval time in milliseconds between runs.
+     */
+    public void start(long interval)
+    {
+        if(reportThread == null)
+        {
+            reportThread = new ReportThread(interval);
+            reportThread.start();
+        }
+    }
+
+    /**
+     * stops expiring buckets, and logging counters.
+     */
+    public void stop()
+    {
+        if(reportThread != null)
+        {
+            reportThread.interrupt();
+            reportThread = null;
+        }
+    }
+
+    /**
+     * forgets the token buckets that have been full for at least the passed
+     *   time.
+     *
+     * @param ttl time in milliseconds a bucket must have been full for.
+     *
+     * @return number of buckets that were forgotten.
+     */
+    public int expireBuckets(long ttl)
+    {
+        int expired = 0;
+        for(Iterator<TokenBucket> it = buckets.values().iterator(); it.hasNext();)
+        {
+            if(it.next().getIdleTime() >= ttl*1000000)
+            {
+                it.remove();
+                ++expired;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * returns the number of token buckets being kept.
+     *
+     * @return the number of token buckets.
+     */
+    public int getBucketCount()
+    {
+        return buckets.size();
+    }
+
+    /**
+     * returns the number of GPS updates admitted over all device classes.
+     *
+     * @return the number of GPS updates admitted.
+     */
+    public long getAdmittedCount()
+    {
+        long count = 0;
+        for(DeviceClass deviceClass : deviceClasses.values())
+        {
+            count += deviceClass.getAdmittedCount();
+        }
+        return count;
+    }
+
+    /**
+     * returns the number of GPS updates rejected over all device classes.
+     *   messages rejected before they were parsed count as one GPS update.
+     *
+     * @return the number of GPS updates rejected.
+     */
+    public long getRejectedCount()
+    {
+        long count = 0;
+        for(DeviceClass deviceClass : deviceClasses.values())
+        {
+            count += deviceClass.getRejectedCount();
+        }
+        return count;
+    }
+
+    /**
+     * parses device classes, and assignments of devices to them, from
+     *   properties of the form:
+     *
+     *   class.[name]=[rate],[burst],[DROP|DOWNSAMPLE]
+     *   device.[device ID]=[name]
+     *
+     *   where rate is the number of GPS updates a device may send per second,
+     *   and burst is the number it may send at once.
+     *
+     * @param properties properties to parse.
+     *
+     * @throws IllegalArgumentException if a property is malformed.
+     */
+    public void configure(Map<String,String> properties)
+    {
+        Map<String,String> devices = new LinkedHashMap<>();
+        for(Map.Entry<String,String> entry : properties.entrySet())
+        {
+            if(entry.getKey().startsWith("class."))
+            {
+                String[] values = entry.getValue().split(",");
+                if(values.length != 3)
+                {
+                    throw new IllegalArgumentException(entry.getKey()+"="+entry.getValue());
+                }
+                addDeviceClass(new DeviceClass(entry.getKey().substring(6),
+                        Double.parseDouble(values[0].trim()),
+                        Integer.parseInt(values[1].trim()),
+                        Policy.valueOf(values[2].trim())));
+            }
+            else if(entry.getKey().startsWith("device."))
+            {
+                devices.put(entry.getKey().substring(7),entry.getValue().trim());
+            }
+        }
+
+        // assign devices after all classes are known
+        for(Map.Entry<String,String> entry : devices.entrySet())
+        {
+            assignDevice(entry.getKey(),entry.getValue());
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    private static boolean admit(DeviceClass deviceClass, TokenBucket bucket)
+    {
+        if(bucket.tryAcquire())
+        {
+            deviceClass.admitted.incrementAndGet();
+            return true;
+        }
+        else
+        {
+            deviceClass.rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    private static int[] admitBatch(DeviceClass deviceClass, TokenBucket bucket, int size)
+    {
+        int kept = 1;
+        if(size > 1)
+        {
+            kept += bucket.tryAcquire(size-1,deviceClass.policy == Policy.DOWNSAMPLE);
+            if(kept < size && deviceClass.policy == Policy.DROP)
+            {
+                // the whole batch is rejected, so the token taken by admit
+                // is not used either
+                bucket.release(1);
+                kept = 0;
+            }
+        }
+        kept = Math.min(kept,size);
+
+        // the token taken by admit was counted as one admitted GPS update
+        deviceClass.admitted.addAndGet(kept-1);
+        deviceClass.rejected.addAndGet(size-kept);
+
+        int[] indices = new int[kept];
+        for(int i = 0; i < kept; i++)
+        {
+            indices[i] = (int) ((long) (i+1)*size/kept)-1;
+        }
+        return indices;
+    }
+
+    private TokenBucket getBucket(String deviceId, DeviceClass deviceClass)
+    {
+        TokenBucket bucket = buckets.get(deviceId);
+        if(bucket == null)
+        {
+            TokenBucket created = new TokenBucket(deviceClass.rate,deviceClass.burst);
+            bucket = buckets.putIfAbsent(deviceId,created);
+            if(bucket == null)
+            {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    //////////////////
+    // ReportThread //
+    //////////////////
+
+    /**
+     * expires buckets, and logs the counters of the device classes that
+     *   changed, every interval.
+     */
+    private class ReportThread extends Thread
+    {
+        private final long interval;
+        private final Map<String,Long> lastAdmitted;
+        private final Map<String,Long> lastRejected;
+
+        public ReportThread(long interval)
+        {
+            this.interval = interval;
+            this.lastAdmitted = new HashMap<>();
+            this.lastRejected = new HashMap<>();
+            setName("AdmissionControlReport");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                try
+                {
+                    Thread.sleep(interval);
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+
+                int expired = expireBuckets(BUCKET_TTL);
+                for(DeviceClass deviceClass : getDeviceClasses())
+                {
+                    long admitted = deviceClass.getAdmittedCount();
+                    long rejected = deviceClass.getRejectedCount();
+                    Long prevAdmitted = lastAdmitted.put(deviceClass.name,admitted);
+                    Long prevRejected = lastRejected.put(deviceClass.name,rejected);
+                    admitted -= (prevAdmitted == null) ? 0 : prevAdmitted;
+                    rejected -= (prevRejected == null) ? 0 : prevRejected;
+                    if(admitted > 0 || rejected > 0)
+                    {
+                        System.out.println("device class "+deviceClass.name+" admitted "+admitted
+                                +" and rejected "+rejected+" GPS updates in the last "+interval+"ms");
+                    }
+                }
+                if(expired > 0)
+                {
+                    System.out.println("forgot "+expired+" idle token buckets; "
+                            +buckets.size()+" left");
+                }
+            }
+        }
+    }
+
+    ////////////
+    // Policy //
+    ////////////
+
+    /**
+     * what to do with the excess of a batch of GPS updates.
+     */
+    public enum Policy
+    {
+        DROP, DOWNSAMPLE
+    }
+
+    /////////////////
+    // DeviceClass //
+    /////////////////
+
+    /**
+     * limits shared by a class of devices, and counters of the GPS updates
+     *   that were admitted and rejected from them.
+     */
+    public static class DeviceClass
+    {
+        private final String name;
+        private final double rate;
+        private final int burst;
+        private final Policy policy;
+        private final AtomicLong admitted;
+        private final AtomicLong rejected;
+
+        /**
+         * instantiates a new device class.
+         *
+         * @param name name of the device class.
+         * @param rate number of GPS updates per second devices may send.
+         * @param burst number of GPS updates devices may send at once.
+         * @param policy what to do with the excess of a batch of GPS updates.
+         */
+        public DeviceClass(String name, double rate, int burst, Policy policy)
+        {
+            if(rate <= 0 || burst < 1)
+            {
+                throw new IllegalArgumentException("rate and burst must be positive");
+            }
+            this.name = name;
+            this.rate = rate;
+            this.burst = burst;
+            this.policy = policy;
+            this.admitted = new AtomicLong();
+            this.rejected = new AtomicLong();
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public double getRate()
+        {
+            return rate;
+        }
+
+        public int getBurst()
+        {
+            return burst;
+        }
+
+        public Policy getPolicy()
+        {
+            return policy;
+        }
+
+        public long getAdmittedCount()
+        {
+            return admitted.get();
+        }
+
+        public long getRejectedCount()
+        {
+            return rejected.get();
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package domain;
 
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import lib.Client;
+import lib.TCPServer;
+import lib.TokenBucket;
 
 /**
  * keeps track of a connection with an Android clients, and associated state
@@ -26,12 +31,55 @@ public class AndroidClient implements Client
     public static final String JSON_KEY_SPEED     = "speed";
     public static final String JSON_KEY_ALTITUDE  = "altitude";
     public static final String JSON_KEY_TIMESTAMP = "timestamp";
+    public static final String JSON_KEY_MSG_TYPE  = "msgType";
+    public static final String JSON_KEY_FIXES     = "fixes";
+    public static final String JSON_KEY_INTERVAL  = "interval";
+
+    /**
+     * message types of messages exchanged with the android clients.
+     */
+    public static final String MSG_TYPE_HEARTBEAT = "heartbeat";
+    public static final String MSG_TYPE_BATCH     = "batch";
+    public static final String MSG_TYPE_RATE      = "rate";
 
     /**
      * reference to a gpsRecordsManager to send GPS updates to.
      */
     private GpsRecordManager gpsRecordsManager;
 
+    /**
+     * limits the rate of messages accepted from the Android client; null if
+     *   there is no limit.
+     */
+    private AdmissionControl admissionControl;
+
+    /**
+     * limits the rate of messages accepted from the Android client until it
+     *   has identified itself; null if there is no limit.
+     */
+    private TokenBucket connectionBucket;
+
+    /**
+     * server used to send messages back to the Android client, and policy that
+     *   chooses the interval it should report at; null if the client is never
+     *   sent a reporting interval.
+     */
+    private TCPServer server;
+    private ReportingRatePolicy ratePolicy;
+
+    /**
+     * reporting interval in milliseconds the Android client was last sent,
+     *   and the time it was sent at; 0 if it was never sent one.
+     */
+    private long reportingInterval;
+    private long reportingIntervalSentAt;
+
+    /**
+     * speed of the Android client in its last GPS update; NaN if it has not
+     *   sent one yet.
+     */
+    private double lastSpeed;
+
     /**
      * contains the mac address of the android device used to uniquely identify
      *   it on the server.
@@ -56,9 +104,50 @@ public class AndroidClient implements Client
      *   updates to.
      */
     public AndroidClient(Socket socket, GpsRecordManager gpsRecordsManager)
+    {
+        this(socket,gpsRecordsManager,null);
+    }
+
+    /**
+     * instantiates a new AndroidClient object which is used to communicate and
+     *   keep track with the Android client, whose messages are subject to
+     *   admission control.
+     *
+     * @param  gpsRecordsManager reference to a gpsRecordsManager to send GPS
+     *   updates to.
+     * @param  admissionControl limits the rate of messages accepted from the
+     *   Android client; null if there is no limit.
+     */
+    public AndroidClient(Socket socket, GpsRecordManager gpsRecordsManager,
+            AdmissionControl admissionControl)
+    {
+        this(socket,gpsRecordsManager,admissionControl,null,null);
+    }
+
+    /**
+     * instantiates a new AndroidClient object which is used to communicate and
+     *   keep track with the Android client, whose messages are subject to
+     *   admission control, and which is told how often to report its position.
+     *
+     * @param  gpsRecordsManager reference to a gpsRecordsManager to send GPS
+     *   updates to.
+     * @param  admissionControl limits the rate of messages accepted from the
+     *   Android client; null if there is no limit.
+     * @param  server server used to send messages to the Android client.
+     * @param  ratePolicy chooses the interval the Android client should report
+     *   at; null to leave it to the Android client.
+     */
+    public AndroidClient(Socket socket, GpsRecordManager gpsRecordsManager,
+            AdmissionControl admissionControl, TCPServer server, ReportingRatePolicy ratePolicy)
     {
         this.socket = socket;
         this.gpsRecordsManager = gpsRecordsManager;
+        this.admissionControl = admissionControl;
+        this.connectionBucket = (admissionControl == null) ? null
+                : admissionControl.newConnectionBucket();
+        this.server = server;
+        this.ratePolicy = ratePolicy;
+        this.lastSpeed = Double.NaN;
     }
 
     //////////////////////
@@ -86,17 +175,63 @@ public class AndroidClient implements Client
      * invoked when a message from this Android client has been received. it
      *   parses messages from Android client, and save it if it's metadata, or
      *   creates and sends a gps update to the GpsRecordManager if it is a GPS
-     *   update.
+     *   update, or a batch of them.
+     *
+     * messages are dropped without being parsed if the Android client exceeds
+     *   its rate limit; until it has identified itself, the limit applies to
+     *   the connection.
      *
      * @param msg message received from the Android client.
      */
     @Override
     public void onMessage(String msg)
     {
+        if(admissionControl != null && !((androidId != null)
+                ? admissionControl.admit(androidId)
+                : admissionControl.admitUnidentified(connectionBucket)))
+        {
+            return;
+        }
+
         JSONObject json = new JSONObject(msg);
 
         // parse message from client
-        if(json.has(JSON_KEY_ID))
+        String msgType = json.optString(JSON_KEY_MSG_TYPE);
+        if(MSG_TYPE_HEARTBEAT.equals(msgType))
+        {
+            // reply to a heartbeat; receiving it is all that matters
+            return;
+        }
+        else if(MSG_TYPE_BATCH.equals(msgType))
+        {
+            // message is a batch of GPS updates buffered by the device while
+            // it was out of coverage; dispatch them as one batch
+            JSONArray fixes = json.getJSONArray(JSON_KEY_FIXES);
+            List<GpsRecord> gpsRecords = new ArrayList<>(fixes.length());
+            if(admissionControl != null)
+            {
+                // keep only the part of the batch admitted
+                for(int i : (androidId != null)
+                        ? admissionControl.admitBatch(androidId,fixes.length())
+                        : admissionControl.admitUnidentifiedBatch(connectionBucket,fixes.length()))
+                {
+                    gpsRecords.add(fromAndroidRecord(this,fixes.getJSONObject(i)));
+                }
+            }
+            else
+            {
+                for(int i = 0; i < fixes.length(); i++)
+                {
+                    gpsRecords.add(fromAndroidRecord(this,fixes.getJSONObject(i)));
+                }
+            }
+            if(!gpsRecords.isEmpty())
+            {
+                gpsRecordsManager.dispatchGpsBatch(gpsRecords);
+                adjustReportingInterval(gpsRecords.get(gpsRecords.size()-1).getSpeed());
+            }
+        }
+        else if(json.has(JSON_KEY_ID))
         {
             // message is data about device; save the data...
             androidId = json.getString(JSON_KEY_ID);
@@ -107,6 +242,28 @@ public class AndroidClient implements Client
             // message is GPS update; update the database
             GpsRecord gpsRecord = fromAndroidRecord(this,json);
             gpsRecordsManager.dispatchGpsUpdate(gpsRecord);
+            adjustReportingInterval(gpsRecord.getSpeed());
+        }
+    }
+
+    /**
+     * sends the Android client a new reporting interval without waiting for
+     *   its next GPS update, if the one chosen for its last known speed is
+     *   due; invoked when the audience, or the load of the server changed.
+     *   shorter intervals are sent at once, longer ones only as often as
+     *   the policy allows.
+     */
+    public synchronized void refreshReportingInterval()
+    {
+        if(ratePolicy == null || Double.isNaN(lastSpeed))
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long interval = ratePolicy.getInterval(lastSpeed);
+        if(ratePolicy.isChangeDue(reportingInterval,interval,reportingIntervalSentAt,now))
+        {
+            sendReportingInterval(interval,now);
         }
     }
 
@@ -114,6 +271,43 @@ public class AndroidClient implements Client
     // private interface //
     ///////////////////////
 
+    /**
+     * sends the Android client a new reporting interval if the one chosen for
+     *   its current speed differs from the one it was last sent.
+     *
+     * @param speed current speed of the Android client.
+     */
+    private synchronized void adjustReportingInterval(double speed)
+    {
+        lastSpeed = speed;
+        if(ratePolicy == null)
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long interval = ratePolicy.getInterval(speed);
+        if(ratePolicy.isChangeDue(reportingInterval,interval,reportingIntervalSentAt,now))
+        {
+            sendReportingInterval(interval,now);
+        }
+    }
+
+    /**
+     * sends the Android client a reporting interval. must be called while
+     *   synchronized on this.
+     */
+    private void sendReportingInterval(long interval, long now)
+    {
+        JSONObject json = new JSONObject();
+        json.put(JSON_KEY_MSG_TYPE,MSG_TYPE_RATE);
+        json.put(JSON_KEY_INTERVAL,interval);
+        if(server.send(socket,json.toString()))
+        {
+            reportingInterval = interval;
+            reportingIntervalSentAt = now;
+        }
+    }
+
     /**
      * converts a JSON record received from the remote android device into a
      *   GpsRecord.
@@ -2,8 +2,10 @@ package domain;
 
 import java.io.IOException;
 import java.net.Socket;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
 
 import lib.Client;
 import lib.TCPServer;
@@ -19,7 +21,7 @@ import lib.TCPServer;
  *
  * @author Eric Tsang
  */
-public class AndroidClientServer extends TCPServer
+public class AndroidClientServer extends TCPServer implements ReportingRatePolicy.Listener
 {
     /**
      * maps connection objects to their client objects. this map has an entry
@@ -32,6 +34,18 @@ public class AndroidClientServer extends TCPServer
      */
     private GpsRecordManager gpsRecordsManager;
 
+    /**
+     * limits the rate of messages accepted from each Android client; null if
+     *   there is no limit.
+     */
+    private AdmissionControl admissionControl;
+
+    /**
+     * chooses the interval each Android client should report at; null to
+     *   leave it to the Android clients.
+     */
+    private ReportingRatePolicy ratePolicy;
+
     /**
      * instantiates a new AndroidClientServer object.
      *
@@ -43,9 +57,149 @@ public class AndroidClientServer extends TCPServer
      */
     public AndroidClientServer(int serverPort, GpsRecordManager gpsRecordsManager) throws IOException
     {
-        super(serverPort);
-        this.clients = new LinkedHashMap<>();
+        this(serverPort,gpsRecordsManager,0,0);
+    }
+
+    /**
+     * instantiates a new AndroidClientServer object that closes connections to
+     *   Android clients that have been idle for too long.
+     *
+     * @param  serverPort port to listen for connections for.
+     * @param  gpsRecordsManager reference to a GpsRecordManager to send GPS
+     *   updates to.
+     * @param  idleTimeout time in milliseconds a connection may go without
+     *   receiving a message before it is closed; 0 to disable.
+     * @param  heartbeatInterval time in milliseconds a connection may go
+     *   without receiving a message before a heartbeat is sent to the Android
+     *   client; 0 to disable.
+     *
+     * @throws IOException
+     */
+    public AndroidClientServer(int serverPort, GpsRecordManager gpsRecordsManager,
+            long idleTimeout, long heartbeatInterval) throws IOException
+    {
+        this(serverPort,gpsRecordsManager,idleTimeout,heartbeatInterval,null);
+    }
+
+    /**
+     * instantiates a new AndroidClientServer object that closes idle
+     *   connections, and limits the rate of messages accepted from each
+     *   Android client. reading from the Android clients is paused while the
+     *   backlog of the GpsRecordManager, if it has one, is closed.
+     *
+     * @param  serverPort port to listen for connections for.
+     * @param  gpsRecordsManager reference to a GpsRecordManager to send GPS
+     *   updates to.
+     * @param  idleTimeout time in milliseconds a connection may go without
+     *   receiving a message before it is closed; 0 to disable.
+     * @param  heartbeatInterval time in milliseconds a connection may go
+     *   without receiving a message before a heartbeat is sent to the Android
+     *   client; 0 to disable.
+     * @param  admissionControl limits the rate of messages accepted from each
+     *   Android client; null if there is no limit.
+     *
+     * @throws IOException
+     */
+    public AndroidClientServer(int serverPort, GpsRecordManager gpsRecordsManager,
+            long idleTimeout, long heartbeatInterval, AdmissionControl admissionControl) throws IOException
+    {
+        this(serverPort,gpsRecordsManager,idleTimeout,heartbeatInterval,admissionControl,
+                DEFAULT_BACKLOG,1);
+    }
+
+    /**
+     * instantiates a new AndroidClientServer object that accepts connections
+     *   on several threads, so that it keeps up when the whole fleet reconnects
+     *   at once.
+     *
+     * @param  serverPort port to listen for connections for.
+     * @param  gpsRecordsManager reference to a GpsRecordManager to send GPS
+     *   updates to.
+     * @param  idleTimeout time in milliseconds a connection may go without
+     *   receiving a message before it is closed; 0 to disable.
+     * @param  heartbeatInterval time in milliseconds a connection may go
+     *   without receiving a message before a heartbeat is sent to the Android
+     *   client; 0 to disable.
+     * @param  admissionControl limits the rate of messages accepted from each
+     *   Android client; null if there is no limit.
+     * @param  backlog maximum number of connections waiting to be accepted.
+     * @param  acceptThreadCount number of threads accepting connections.
+     *
+     * @throws IOException
+     */
+    public AndroidClientServer(int serverPort, GpsRecordManager gpsRecordsManager,
+            long idleTimeout, long heartbeatInterval, AdmissionControl admissionControl,
+            int backlog, int acceptThreadCount) throws IOException
+    {
+        this(serverPort,gpsRecordsManager,idleTimeout,heartbeatInterval,admissionControl,
+                backlog,acceptThreadCount,null);
+    }
+
+    /**
+     * instantiates a new AndroidClientServer object that also tells each
+     *   Android client how often to report its position.
+     *
+     * @param  serverPort port to listen for connections for.
+     * @param  gpsRecordsManager reference to a GpsRecordManager to send GPS
+     *   updates to.
+     * @param  idleTimeout time in milliseconds a connection may go without
+     *   receiving a message before it is closed; 0 to disable.
+     * @param  heartbeatInterval time in milliseconds a connection may go
+     *   without receiving a message before a heartbeat is sent to the Android
+     *   client; 0 to disable.
+     * @param  admissionControl limits the rate of messages accepted from each
+     *   Android client; null if there is no limit.
+     * @param  backlog maximum number of connections waiting to be accepted.
+     * @param  acceptThreadCount number of threads accepting connections.
+     * @param  ratePolicy chooses the interval each Android client should
+     *   report at; null to leave it to the Android clients.
+     *
+     * @throws IOException
+     */
+    public AndroidClientServer(int serverPort, GpsRecordManager gpsRecordsManager,
+            long idleTimeout, long heartbeatInterval, AdmissionControl admissionControl,
+            int backlog, int acceptThreadCount, ReportingRatePolicy ratePolicy) throws IOException
+    {
+        super(serverPort,backlog,acceptThreadCount,idleTimeout,heartbeatInterval,
+                gpsRecordsManager.getBacklog());
+        this.clients = new ConcurrentHashMap<>();
         this.gpsRecordsManager = gpsRecordsManager;
+        this.admissionControl = admissionControl;
+        this.ratePolicy = ratePolicy;
+        if(ratePolicy != null)
+        {
+            ratePolicy.registerListener(this);
+        }
+    }
+
+    /**
+     * returns the admission control applied to the Android clients.
+     *
+     * @return the admission control applied to the Android clients; null if
+     *   there is none.
+     */
+    public AdmissionControl getAdmissionControl()
+    {
+        return admissionControl;
+    }
+
+    //////////////////////////////////
+    // ReportingRatePolicy.Listener //
+    //////////////////////////////////
+
+    /**
+     * sends every Android client its new reporting interval.
+     */
+    @Override
+    public void onConditionsChanged()
+    {
+        for(Client client : clients.values())
+        {
+            if(client instanceof AndroidClient)
+            {
+                ((AndroidClient) client).refreshReportingInterval();
+            }
+        }
     }
 
     //////////////////////////////
@@ -63,7 +217,7 @@ public class AndroidClientServer extends TCPServer
     protected void onOpen(Socket conn)
     {
         System.out.println("socket "+conn.getRemoteSocketAddress()+" has connected");
-        clients.put(conn,new AndroidClient(conn,gpsRecordsManager));
+        clients.put(conn,new AndroidClient(conn,gpsRecordsManager,admissionControl,this,ratePolicy));
     }
 
     /**
@@ -97,4 +251,18 @@ public class AndroidClientServer extends TCPServer
         clients.get(conn).onClose(remote);
         clients.remove(conn);
     }
+
+    /**
+     * returns the heartbeat message sent to idle Android clients, which they
+     *   are expected to echo back.
+     *
+     * @return the heartbeat message sent to idle Android clients.
+     */
+    @Override
+    protected String getHeartbeatMessage()
+    {
+        JSONObject json = new JSONObject();
+        json.put(AndroidClient.JSON_KEY_MSG_TYPE,AndroidClient.MSG_TYPE_HEARTBEAT);
+        return json.toString();
+    }
 }
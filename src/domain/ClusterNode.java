@@ -0,0 +1,594 @@
+package domain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * relays GpsRecordManager events between the nodes of a cluster of servers, so
+ *   that every node sees the events of the whole fleet, while each node only
+ *   accepts a share of the Android connections.
+ *
+ * each node has two GpsRecordManagers: an ingest manager that receives the
+ *   events of the Android clients connected to this node, and a fleet manager
+ *   that receives the events of all nodes. the ClusterNode is registered as a
+ *   listener on the ingest manager; it dispatches local events to the fleet
+ *   manager, and sends them to every other node, which dispatch them to their
+ *   own fleet manager.
+ *
+ * membership is static; every node is started with the same list of member
+ *   addresses, and its own index in that list. sinks that must see each GPS
+ *   update once, like the database, are registered on the ingest manager,
+ *   since each GPS update enters the cluster on exactly one node, and relaying
+ *   is best effort. devices are also assigned to the nodes by hashing their
+ *   ID, so that sinks of what is derived from the fleet, like trips, can be
+ *   fed by one node through partitionedTrips().
+ *
+ * a device that roams between nodes connects to its new node before its old
+ *   node notices it is gone, and the events of different nodes may arrive in
+ *   any order, so each node remembers which node every device connected to
+ *   last, and only dispatches a disconnection from that node.
+ *
+ * events are encoded with GpsEventCodec, and sent to each peer over a single
+ *   TCP connection by a dedicated thread. if a peer is down, or cannot keep
+ *   up, events for it are dropped once its queue is full rather than blocking
+ *   ingest.
+ */
+public class ClusterNode implements GpsRecordManager.GpsBatchListener
+{
+    /**
+     * maximum number of events queued for a peer.
+     */
+    public static final int PEER_QUEUE_CAPACITY = 65536;
+
+    /**
+     * time in milliseconds to wait before reconnecting to a peer.
+     */
+    public static final long RECONNECT_DELAY = 1000;
+
+    /**
+     * index of this node in members.
+     */
+    private final int selfIndex;
+
+    /**
+     * addresses of all nodes in the cluster, including this one.
+     */
+    private final InetSocketAddress[] members;
+
+    /**
+     * manager that events of the whole fleet are dispatched to.
+     */
+    private final GpsRecordManager fleetRecords;
+
+    /**
+     * socket used to accept connections from the other nodes.
+     */
+    private final ServerSocket serverSock;
+
+    /**
+     * threads sending events to the other nodes; null at selfIndex.
+     */
+    private final PeerSender[] senders;
+
+    /**
+     * number of events that were dropped because a peer's queue was full.
+     */
+    private final AtomicLong droppedCount;
+
+    /**
+     * maps device ids to the index of the node they connected to last.
+     */
+    private final ConcurrentMap<String,Integer> deviceNodes;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new cluster node.
+     *
+     * @param selfIndex index of this node in members.
+     * @param members addresses of all nodes in the cluster, including this one.
+     * @param fleetRecords manager to dispatch the events of the whole fleet
+     *   to.
+     *
+     * @throws IOException if the port of this node could not be bound.
+     */
+    public ClusterNode(int selfIndex, InetSocketAddress[] members,
+            GpsRecordManager fleetRecords) throws IOException
+    {
+        this.selfIndex = selfIndex;
+        this.members = members.clone();
+        this.fleetRecords = fleetRecords;
+        this.serverSock = new ServerSocket(members[selfIndex].getPort());
+        this.senders = new PeerSender[members.length];
+        this.droppedCount = new AtomicLong();
+        this.deviceNodes = new ConcurrentHashMap<>();
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * parses a comma separated list of host:port pairs.
+     *
+     * @param members comma separated list of host:port pairs.
+     *
+     * @return the parsed addresses.
+     */
+    public static InetSocketAddress[] parseMembers(String members)
+    {
+        String[] parts = members.split(",");
+        InetSocketAddress[] addresses = new InetSocketAddress[parts.length];
+        for(int i = 0; i < parts.length; i++)
+        {
+            String part = parts[i].trim();
+            int colon = part.lastIndexOf(':');
+            addresses[i] = new InetSocketAddress(part.substring(0,colon),
+                    Integer.valueOf(part.substring(colon+1)));
+        }
+        return addresses;
+    }
+
+    /**
+     * starts accepting connections from the other nodes, and connecting to
+     *   them.
+     */
+    public void start()
+    {
+        for(int i = 0; i < members.length; i++)
+        {
+            if(i != selfIndex)
+            {
+                senders[i] = new PeerSender(members[i]);
+                senders[i].start();
+            }
+        }
+        new AcceptThread().start();
+    }
+
+    /**
+     * stops relaying events, and closes all connections to the other nodes.
+     */
+    public void stop()
+    {
+        try
+        {
+            serverSock.close();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        for(PeerSender sender : senders)
+        {
+            if(sender != null)
+            {
+                sender.cancel();
+            }
+        }
+    }
+
+    /**
+     * returns true if the device is assigned to this node.
+     *
+     * @param deviceId ID of the device.
+     *
+     * @return true if the device is assigned to this node; false otherwise,
+     *   or if the device is not identified.
+     */
+    public boolean isOwner(String deviceId)
+    {
+        return deviceId != null && (deviceId.hashCode()&0x7fffffff)%members.length == selfIndex;
+    }
+
+    /**
+     * returns a trip listener that only forwards the trips of devices that are
+     *   assigned to this node to the passed listener.
+     *
+     * @param listener listener to forward trips to.
+     *
+     * @return a listener that only forwards the trips of devices assigned to
+     *   this node.
+     */
+    public TripSegmenter.TripListener partitionedTrips(final TripSegmenter.TripListener listener)
+    {
+        return new TripSegmenter.TripListener()
+        {
+            @Override
+            public void onTrip(Trip trip)
+            {
+                if(isOwner(trip.getDeviceId()))
+                {
+                    listener.onTrip(trip);
+                }
+            }
+        };
+    }
+
+    /**
+     * returns the number of events that were dropped because a peer's queue
+     *   was full.
+     *
+     * @return the number of events that were dropped.
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    ////////////////////////////////////////
+    // GpsRecordManager.GpsUpdateListener //
+    ////////////////////////////////////////
+
+    /**
+     * dispatches a local GPS update to the fleet manager, and relays it to the
+     *   other nodes. GPS updates of devices that are not identified yet are
+     *   not relayed.
+     */
+    @Override
+    public void onGpsUpdate(GpsRecord gpsRecord)
+    {
+        fleetRecords.dispatchGpsUpdate(gpsRecord);
+        if(gpsRecord.getDeviceId() == null)
+        {
+            return;
+        }
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            GpsEventCodec.writeGpsUpdate(new DataOutputStream(bytes),gpsRecord);
+            relay(bytes.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * dispatches a local batch of GPS updates to the fleet manager as one
+     *   batch, and relays it to the other nodes as one event.
+     */
+    @Override
+    public void onGpsBatch(List<GpsRecord> gpsRecords)
+    {
+        fleetRecords.dispatchGpsBatch(gpsRecords);
+
+        // batches only ever hold the updates of one device
+        if(gpsRecords.get(0).getDeviceId() == null)
+        {
+            return;
+        }
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64*gpsRecords.size());
+            GpsEventCodec.writeGpsBatch(new DataOutputStream(bytes),gpsRecords);
+            relay(bytes.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * dispatches a local connection to the fleet manager, and relays it to the
+     *   other nodes.
+     */
+    @Override
+    public void onClientConnected(String clientId)
+    {
+        if(clientId != null)
+        {
+            deviceNodes.put(clientId,selfIndex);
+        }
+        fleetRecords.dispatchConnection(clientId);
+        relayConnectionEvent(GpsEventCodec.TYPE_CONNECTED,clientId);
+    }
+
+    /**
+     * dispatches a local disconnection to the fleet manager, unless the device
+     *   connected to another node since, and relays it to the other nodes.
+     */
+    @Override
+    public void onClientDisconnected(String clientId)
+    {
+        if(clientId == null)
+        {
+            fleetRecords.dispatchDisconnection(clientId);
+            return;
+        }
+        disconnect(clientId,selfIndex);
+        relayConnectionEvent(GpsEventCodec.TYPE_DISCONNECTED,clientId);
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * records that the device connected to the node.
+     */
+    private void connect(String deviceId, int nodeIndex)
+    {
+        deviceNodes.put(deviceId,nodeIndex);
+        fleetRecords.dispatchConnection(deviceId);
+    }
+
+    /**
+     * dispatches the disconnection of the device from the node, unless the
+     *   device connected to another node since.
+     */
+    private void disconnect(String deviceId, int nodeIndex)
+    {
+        if(deviceNodes.remove(deviceId,nodeIndex))
+        {
+            fleetRecords.dispatchDisconnection(deviceId);
+        }
+    }
+
+    /**
+     * encodes a connection event, and relays it to the other nodes.
+     */
+    private void relayConnectionEvent(byte type, String clientId)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            GpsEventCodec.writeConnectionEvent(new DataOutputStream(bytes),type,clientId);
+            relay(bytes.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * queues an encoded event to be sent to every other node.
+     */
+    private void relay(byte[] event)
+    {
+        for(PeerSender sender : senders)
+        {
+            if(sender != null && !sender.queue.offer(event))
+            {
+                droppedCount.incrementAndGet();
+            }
+        }
+    }
+
+    //////////////////
+    // AcceptThread //
+    //////////////////
+
+    /**
+     * accepts connections from the other nodes, and starts a PeerReceiver for
+     *   each of them.
+     */
+    private class AcceptThread extends Thread
+    {
+        public AcceptThread()
+        {
+            setName("ClusterAcceptThread "+serverSock.getLocalPort());
+        }
+
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                try
+                {
+                    new PeerReceiver(serverSock.accept()).start();
+                }
+                catch (IOException e)
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    //////////////////
+    // PeerReceiver //
+    //////////////////
+
+    /**
+     * reads events relayed by another node, and dispatches them to the fleet
+     *   manager. when the connection is lost, the devices of that node are
+     *   dispatched as disconnected, since their state is no longer known,
+     *   unless they connected to another node since; a device whose GPS
+     *   updates are received again, without a connection event, is
+     *   dispatched as connected first.
+     */
+    private class PeerReceiver extends Thread
+    {
+        private final Socket sock;
+
+        /**
+         * devices that are connected to the remote node.
+         */
+        private final Set<String> remoteDevices;
+
+        public PeerReceiver(Socket sock)
+        {
+            this.sock = sock;
+            this.remoteDevices = new LinkedHashSet<>();
+            setName("PeerReceiver "+sock.getRemoteSocketAddress());
+        }
+
+        @Override
+        public void run()
+        {
+            int peerIndex = -1;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(sock.getInputStream())))
+            {
+                peerIndex = in.readInt();
+                System.out.println("cluster node "+peerIndex+" has connected");
+                while(true)
+                {
+                    byte type = in.readByte();
+                    switch(type)
+                    {
+                    case GpsEventCodec.TYPE_GPS_UPDATE:
+                        GpsRecord gpsRecord = GpsEventCodec.readGpsUpdate(in);
+                        if(remoteDevices.add(gpsRecord.getDeviceId()))
+                        {
+                            connect(gpsRecord.getDeviceId(),peerIndex);
+                        }
+                        fleetRecords.dispatchGpsUpdate(gpsRecord);
+                        break;
+                    case GpsEventCodec.TYPE_GPS_BATCH:
+                        List<GpsRecord> gpsRecords = GpsEventCodec.readGpsBatch(in);
+                        for(GpsRecord batched : gpsRecords)
+                        {
+                            if(remoteDevices.add(batched.getDeviceId()))
+                            {
+                                connect(batched.getDeviceId(),peerIndex);
+                            }
+                        }
+                        fleetRecords.dispatchGpsBatch(gpsRecords);
+                        break;
+                    case GpsEventCodec.TYPE_CONNECTED:
+                        String connected = in.readUTF();
+                        remoteDevices.add(connected);
+                        connect(connected,peerIndex);
+                        break;
+                    case GpsEventCodec.TYPE_DISCONNECTED:
+                        String disconnected = in.readUTF();
+                        remoteDevices.remove(disconnected);
+                        disconnect(disconnected,peerIndex);
+                        break;
+                    default:
+                        throw new IOException("unknown event type "+type);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // connection to the peer lost
+                System.out.println("cluster node "+sock.getRemoteSocketAddress()+" has disconnected");
+            }
+
+            for(String deviceId : remoteDevices)
+            {
+                disconnect(deviceId,peerIndex);
+            }
+        }
+    }
+
+    ////////////////
+    // PeerSender //
+    ////////////////
+
+    /**
+     * sends queued events to another node, reconnecting whenever the
+     *   connection is lost.
+     */
+    private class PeerSender extends Thread
+    {
+        private final InetSocketAddress address;
+        private final BlockingQueue<byte[]> queue;
+        private volatile boolean cancelled;
+        private volatile Socket sock;
+
+        public PeerSender(InetSocketAddress address)
+        {
+            this.address = address;
+            this.queue = new ArrayBlockingQueue<>(PEER_QUEUE_CAPACITY);
+            this.cancelled = false;
+            setName("PeerSender "+address);
+        }
+
+        @Override
+        public void run()
+        {
+            while(!cancelled)
+            {
+                try
+                {
+                    sock = new Socket(address.getAddress(),address.getPort());
+                    sock.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(sock.getOutputStream()));
+                    out.writeInt(selfIndex);
+                    out.flush();
+
+                    // send events, flushing whenever the queue runs dry
+                    while(!cancelled)
+                    {
+                        byte[] event = queue.poll();
+                        if(event == null)
+                        {
+                            out.flush();
+                            event = queue.take();
+                        }
+                        out.write(event);
+                    }
+                }
+                catch (IOException e)
+                {
+                    // peer is down; try again later
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+                finally
+                {
+                    closeSocket();
+                }
+
+                try
+                {
+                    Thread.sleep(RECONNECT_DELAY);
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+            }
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+            interrupt();
+            closeSocket();
+        }
+
+        private void closeSocket()
+        {
+            try
+            {
+                if(sock != null)
+                {
+                    sock.close();
+                }
+            }
+            catch (IOException e)
+            {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package domain;
+
+import java.util.Arrays;
+
+import lib.SlotTable;
+
+/**
+ * suppresses GPS updates that do not tell anybody anything new, before they
+ *   are persisted, and broadcast to the web clients.
+ *
+ * a GPS update is dropped if it is within the dead-band of the last GPS update
+ *   that was accepted for the same device; that is, if the device has moved
+ *   less than minDistance meters, has not turned more than minHeadingChange
+ *   degrees, and the last accepted update is younger than heartbeatInterval.
+ *   the heading is only considered while the device is moving faster than
+ *   stationarySpeed, because parked devices report random headings due to
+ *   jitter.
+ *
+ * per device state is kept in parallel primitive arrays indexed by a
+ *   SlotTable.
+ */
+public class DeadBandFilter implements GpsRecordManager.GpsUpdateFilter
+{
+    /**
+     * mean radius of the earth in meters.
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    /**
+     * minimum distance in meters a device must move from its last accepted
+     *   position for the update to be accepted.
+     */
+    private final double minDistance;
+
+    /**
+     * minimum change of heading in degrees for the update to be accepted.
+     */
+    private final double minHeadingChange;
+
+    /**
+     * speed in meters per second at or below which a device is considered
+     *   stationary.
+     */
+    private final double stationarySpeed;
+
+    /**
+     * maximum time in milliseconds between accepted updates of a device; an
+     *   update is always accepted once this much time has passed.
+     */
+    private final long heartbeatInterval;
+
+    /**
+     * maps device ids to indices into the arrays below.
+     */
+    private final SlotTable devices;
+
+    /**
+     * last accepted latitude, longitude, heading, and sampling time of each
+     *   device. heading is NaN if it is unknown.
+     */
+    private double[] lastLat;
+    private double[] lastLng;
+    private double[] lastHeading;
+    private long[] lastTime;
+
+    /**
+     * number of GPS updates that were accepted, and dropped by this filter.
+     */
+    private long acceptedCount;
+    private long droppedCount;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new dead-band filter.
+     *
+     * @param minDistance minimum distance in meters a device must move from its
+     *   last accepted position for the update to be accepted.
+     * @param minHeadingChange minimum change of heading in degrees for the
+     *   update to be accepted.
+     * @param stationarySpeed speed in meters per second at or below which a
+     *   device is considered stationary.
+     * @param heartbeatInterval maximum time in milliseconds between accepted
+     *   updates of a device.
+     */
+    public DeadBandFilter(double minDistance, double minHeadingChange,
+            double stationarySpeed, long heartbeatInterval)
+    {
+        this.minDistance = minDistance;
+        this.minHeadingChange = minHeadingChange;
+        this.stationarySpeed = stationarySpeed;
+        this.heartbeatInterval = heartbeatInterval;
+        this.devices = new SlotTable();
+        this.lastLat = new double[0];
+        this.lastLng = new double[0];
+        this.lastHeading = new double[0];
+        this.lastTime = new long[0];
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * returns the number of GPS updates accepted by this filter so far.
+     *
+     * @return the number of GPS updates accepted by this filter so far.
+     */
+    public synchronized long getAcceptedCount()
+    {
+        return acceptedCount;
+    }
+
+    /**
+     * returns the number of GPS updates dropped by this filter so far.
+     *
+     * @return the number of GPS updates dropped by this filter so far.
+     */
+    public synchronized long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * returns the distance in meters between two points on the earth.
+     *
+     * @param lat1 latitude of the first point in degrees.
+     * @param lng1 longitude of the first point in degrees.
+     * @param lat2 latitude of the second point in degrees.
+     * @param lng2 longitude of the second point in degrees.
+     *
+     * @return the distance in meters between the two points.
+     */
+    public static double distance(double lat1, double lng1, double lat2, double lng2)
+    {
+        double dLat = Math.toRadians(lat2-lat1);
+        double dLng = Math.toRadians(lng2-lng1);
+        double a = Math.sin(dLat/2)*Math.sin(dLat/2)
+                +Math.cos(Math.toRadians(lat1))*Math.cos(Math.toRadians(lat2))
+                *Math.sin(dLng/2)*Math.sin(dLng/2);
+        return 2*EARTH_RADIUS*Math.asin(Math.min(1,Math.sqrt(a)));
+    }
+
+    /**
+     * returns the initial bearing in degrees [0,360) when travelling from the
+     *   first point to the second point.
+     *
+     * @param lat1 latitude of the first point in degrees.
+     * @param lng1 longitude of the first point in degrees.
+     * @param lat2 latitude of the second point in degrees.
+     * @param lng2 longitude of the second point in degrees.
+     *
+     * @return the initial bearing in degrees.
+     */
+    public static double bearing(double lat1, double lng1, double lat2, double lng2)
+    {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double dLng = Math.toRadians(lng2-lng1);
+        double y = Math.sin(dLng)*Math.cos(phi2);
+        double x = Math.cos(phi1)*Math.sin(phi2)
+                -Math.sin(phi1)*Math.cos(phi2)*Math.cos(dLng);
+        return (Math.toDegrees(Math.atan2(y,x))+360)%360;
+    }
+
+    //////////////////////////////////////
+    // GpsRecordManager.GpsUpdateFilter //
+    //////////////////////////////////////
+
+    /**
+     * returns true if the GPS update is outside of the dead-band of the last
+     *   accepted update of the same device, or if the heartbeat interval has
+     *   elapsed; false otherwise.
+     */
+    @Override
+    public synchronized boolean accept(GpsRecord gpsRecord)
+    {
+        int slot = devices.find(gpsRecord.getDeviceId());
+
+        // first update from the device; always accept it
+        if(slot < 0)
+        {
+            slot = devices.acquire(gpsRecord.getDeviceId());
+            ensureCapacity(slot);
+            save(slot,gpsRecord,Double.NaN);
+            return true;
+        }
+
+        double moved = distance(lastLat[slot],lastLng[slot],
+                gpsRecord.getLat(),gpsRecord.getLng());
+        boolean moving = gpsRecord.getSpeed() > stationarySpeed;
+        double heading = moving
+                ? bearing(lastLat[slot],lastLng[slot],gpsRecord.getLat(),gpsRecord.getLng())
+                : lastHeading[slot];
+
+        // accept the update if it's outside of the dead-band
+        if(gpsRecord.getSamplingTime()-lastTime[slot] >= heartbeatInterval
+                || moved >= minDistance
+                || (moving && headingChange(lastHeading[slot],heading) >= minHeadingChange))
+        {
+            save(slot,gpsRecord,heading);
+            return true;
+        }
+
+        ++droppedCount;
+        return false;
+    }
+
+    /**
+     * forgets the last accepted update of the client, so that its next update
+     *   is always accepted.
+     */
+    @Override
+    public synchronized void reset(String clientId)
+    {
+        if(clientId != null)
+        {
+            devices.release(clientId);
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * saves the GPS update as the last accepted update of the device.
+     *
+     * @param slot slot of the device.
+     * @param gpsRecord the accepted GPS update.
+     * @param heading heading of the device.
+     */
+    private void save(int slot, GpsRecord gpsRecord, double heading)
+    {
+        lastLat[slot] = gpsRecord.getLat();
+        lastLng[slot] = gpsRecord.getLng();
+        lastHeading[slot] = heading;
+        lastTime[slot] = gpsRecord.getSamplingTime();
+        ++acceptedCount;
+    }
+
+    /**
+     * grows the state arrays so they can hold the passed slot.
+     *
+     * @param slot slot that must fit in the arrays.
+     */
+    private void ensureCapacity(int slot)
+    {
+        if(slot >= lastTime.length)
+        {
+            int length = SlotTable.grownLength(lastTime.length,slot);
+            lastLat = Arrays.copyOf(lastLat,length);
+            lastLng = Arrays.copyOf(lastLng,length);
+            lastHeading = Arrays.copyOf(lastHeading,length);
+            lastTime = Arrays.copyOf(lastTime,length);
+        }
+    }
+
+    /**
+     * returns the absolute difference between two headings in degrees, in the
+     *   range [0,180]. returns 0 if the previous heading is unknown.
+     *
+     * @param from previous heading in degrees.
+     * @param to current heading in degrees.
+     *
+     * @return the absolute difference between the two headings.
+     */
+    private static double headingChange(double from, double to)
+    {
+        if(Double.isNaN(from) || Double.isNaN(to))
+        {
+            return 0;
+        }
+        double change = Math.abs(to-from)%360;
+        return (change > 180) ? 360-change : change;
+    }
+}
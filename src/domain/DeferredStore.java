@@ -0,0 +1,528 @@
+package domain;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import lib.FlowGate;
+
+/**
+ * connects a GpsStore in the background, so that the server can start
+ *   accepting connections without waiting for its database.
+ *
+ * connecting is retried with exponential backoff until it succeeds. GPS
+ *   updates dispatched while the store is not connected yet are buffered in a
+ *   bounded queue, and written to the store, in order, once it is connected;
+ *   once the queue is full, further GPS updates are dropped and counted.
+ *   trips reported while the store is connecting are buffered likewise. the
+ *   buffered GPS updates can be accounted in a FlowGate, so that ingest
+ *   pauses before the buffer is full.
+ *
+ * once the store is connected, the buffer is swapped out under the lock and
+ *   written to the store outside of it, in batches of one device each, while
+ *   GPS updates keep being buffered behind it; the lock is only held again to
+ *   write the last few GPS updates, and to switch over to writing straight to
+ *   the store. GPS updates, and trips the store fails to write are dropped
+ *   and counted, rather than keeping the store from ever becoming ready.
+ *
+ * this class is thread safe, if the store is.
+ */
+public class DeferredStore implements GpsStore
+{
+    /**
+     * time in milliseconds waited before the first, and at most before any
+     *   retry of connecting the store.
+     */
+    public static final long INITIAL_BACKOFF = 500;
+    public static final long MAX_BACKOFF     = 30000;
+
+    /**
+     * number of buffered GPS updates written to the store per batch; once no
+     *   more than this many are left, they are written while holding the lock.
+     */
+    public static final int FLUSH_BATCH = 1000;
+
+    /**
+     * the store being connected.
+     */
+    private final GpsStore store;
+
+    /**
+     * maximum number of GPS updates buffered while the store is connecting.
+     */
+    private final int capacity;
+
+    /**
+     * GPS updates dispatched while the store is connecting; guarded by this.
+     */
+    private final Queue<GpsRecord> buffer;
+    private final Queue<Trip> tripBuffer;
+
+    /**
+     * number of GPS updates swapped out of the buffer, and being written to
+     *   the store; counted against the capacity; guarded by this.
+     */
+    private int flushingCount;
+
+    /**
+     * true once the store is connected, and the buffer was written to it.
+     */
+    private volatile boolean ready;
+
+    /**
+     * thread connecting the store; null if it is not connecting.
+     */
+    private ConnectThread connectThread;
+
+    /**
+     * number of GPS updates, and trips dropped because the buffer was full;
+     *   guarded by this.
+     */
+    private long droppedCount;
+
+    /**
+     * account of the buffered GPS updates in the backlog; null if there is
+     *   none.
+     */
+    private final FlowGate.Account backlog;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new deferred store.
+     *
+     * @param store store to connect in the background.
+     * @param capacity maximum number of GPS updates to buffer while the store
+     *   is connecting.
+     */
+    public DeferredStore(GpsStore store, int capacity)
+    {
+        this(store,capacity,null);
+    }
+
+    /**
+     * instantiates a new deferred store that accounts for the buffered GPS
+     *   updates in the passed gate, which closes once the buffer is half full,
+     *   and opens once it is written to the store.
+     *
+     * @param store store to connect in the background.
+     * @param capacity maximum number of GPS updates to buffer while the store
+     *   is connecting.
+     * @param backlog gate to account buffered GPS updates in; null for none.
+     */
+    public DeferredStore(GpsStore store, int capacity, FlowGate backlog)
+    {
+        this.store = store;
+        this.capacity = capacity;
+        this.buffer = new ArrayDeque<>();
+        this.tripBuffer = new ArrayDeque<>();
+        this.backlog = (backlog == null) ? null
+                : backlog.newAccount("deferred store",capacity/2,capacity/8);
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * returns the store being connected.
+     *
+     * @return the store being connected.
+     */
+    public GpsStore getStore()
+    {
+        return store;
+    }
+
+    /**
+     * returns the number of GPS updates buffered until the store is connected.
+     *
+     * @return the number of buffered GPS updates.
+     */
+    public synchronized int getBufferedCount()
+    {
+        return buffer.size();
+    }
+
+    /**
+     * returns the number of GPS updates, and trips dropped because the buffer
+     *   was full.
+     *
+     * @return the number of dropped GPS updates, and trips.
+     */
+    public synchronized long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    ////////////////////////
+    // GpsStore interface //
+    ////////////////////////
+
+    /**
+     * starts connecting the store in the background, and returns at once.
+     */
+    @Override
+    public synchronized void connect()
+    {
+        if(!ready && connectThread == null)
+        {
+            connectThread = new ConnectThread();
+            connectThread.start();
+        }
+    }
+
+    /**
+     * stops connecting the store if it is not connected yet, discarding the
+     *   buffered GPS updates; disconnects it otherwise.
+     */
+    @Override
+    public void disconnect()
+    {
+        ConnectThread thread;
+        synchronized(this)
+        {
+            thread = connectThread;
+            connectThread = null;
+        }
+        if(thread != null)
+        {
+            thread.interrupt();
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized(this)
+        {
+            if(!buffer.isEmpty())
+            {
+                System.out.println("discarded "+buffer.size()+" GPS updates buffered"
+                        +" while the store was not connected");
+                if(backlog != null)
+                {
+                    backlog.remove(buffer.size());
+                }
+                buffer.clear();
+            }
+            tripBuffer.clear();
+            if(ready)
+            {
+                ready = false;
+                store.disconnect();
+            }
+        }
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return ready;
+    }
+
+    /**
+     * returns the GPS updates of a device from the store; none while the store
+     *   is not connected yet.
+     */
+    @Override
+    public List<GpsRecord> findRange(String deviceId, long from, long to)
+    {
+        return ready ? store.findRange(deviceId,from,to) : Collections.<GpsRecord>emptyList();
+    }
+
+    /**
+     * returns the trips of a device from the store; none while the store is
+     *   not connected yet.
+     */
+    @Override
+    public List<Trip> findTrips(String deviceId, long from, long to)
+    {
+        return ready ? store.findTrips(deviceId,from,to) : Collections.<Trip>emptyList();
+    }
+
+    /**
+     * rolls up the GPS updates of the store; none while the store is not
+     *   connected yet.
+     */
+    @Override
+    public long rollUp(long before, long resolution, int batchSize)
+    {
+        return ready ? store.rollUp(before,resolution,batchSize) : 0;
+    }
+
+    @Override
+    public void onTrip(Trip trip)
+    {
+        if(!ready)
+        {
+            synchronized(this)
+            {
+                if(!ready)
+                {
+                    if(tripBuffer.size() < capacity)
+                    {
+                        tripBuffer.add(trip);
+                    }
+                    else
+                    {
+                        ++droppedCount;
+                    }
+                    return;
+                }
+            }
+        }
+        store.onTrip(trip);
+    }
+
+    ////////////////////////////////////////
+    // GpsRecordManager.GpsUpdateListener //
+    ////////////////////////////////////////
+
+    @Override
+    public void onGpsUpdate(GpsRecord gpsRecord)
+    {
+        if(!ready)
+        {
+            synchronized(this)
+            {
+                if(!ready)
+                {
+                    enqueue(gpsRecord);
+                    return;
+                }
+            }
+        }
+        store.onGpsUpdate(gpsRecord);
+    }
+
+    @Override
+    public void onGpsBatch(List<GpsRecord> gpsRecords)
+    {
+        if(!ready)
+        {
+            synchronized(this)
+            {
+                if(!ready)
+                {
+                    for(GpsRecord gpsRecord : gpsRecords)
+                    {
+                        enqueue(gpsRecord);
+                    }
+                    return;
+                }
+            }
+        }
+        store.onGpsBatch(gpsRecords);
+    }
+
+    @Override
+    public void onClientConnected(String clientId)
+    {
+        if(ready)
+        {
+            store.onClientConnected(clientId);
+        }
+    }
+
+    @Override
+    public void onClientDisconnected(String clientId)
+    {
+        if(ready)
+        {
+            store.onClientDisconnected(clientId);
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    private void enqueue(GpsRecord gpsRecord)
+    {
+        if(buffer.size()+flushingCount < capacity)
+        {
+            buffer.add(gpsRecord);
+            if(backlog != null)
+            {
+                backlog.add(1);
+            }
+        }
+        else
+        {
+            ++droppedCount;
+        }
+    }
+
+    ///////////////////
+    // ConnectThread //
+    ///////////////////
+
+    /**
+     * connects the store, retrying with exponential backoff, then writes the
+     *   buffered GPS updates to it.
+     */
+    private class ConnectThread extends Thread
+    {
+        public ConnectThread()
+        {
+            setName("DeferredStore connect");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            long start = System.nanoTime();
+            long backoff = INITIAL_BACKOFF;
+            int attempts = 0;
+            while(true)
+            {
+                ++attempts;
+                try
+                {
+                    store.connect();
+                    break;
+                }
+                catch(RuntimeException e)
+                {
+                    System.out.println("failed to connect the store: "+e.getMessage()
+                            +"; retrying in "+backoff+"ms");
+                }
+                try
+                {
+                    Thread.sleep(backoff);
+                }
+                catch(InterruptedException e)
+                {
+                    return;
+                }
+                backoff = Math.min(backoff*2,MAX_BACKOFF);
+            }
+
+            // GPS updates keep being buffered while the buffer is written, so
+            // they reach the store in the order they were dispatched
+            long flushed = 0;
+            long dropped;
+            while(true)
+            {
+                List<GpsRecord> gpsRecords;
+                List<Trip> trips;
+                synchronized(DeferredStore.this)
+                {
+                    flushingCount = 0;
+                    if(connectThread != this)
+                    {
+                        // disconnected while connecting
+                        store.disconnect();
+                        return;
+                    }
+                    if(buffer.size() <= FLUSH_BATCH)
+                    {
+                        if(backlog != null)
+                        {
+                            backlog.remove(buffer.size());
+                        }
+                        long failed = write(new ArrayList<>(buffer),new ArrayList<>(tripBuffer));
+                        flushed += buffer.size()+tripBuffer.size()-failed;
+                        droppedCount += failed;
+                        dropped = droppedCount;
+                        buffer.clear();
+                        tripBuffer.clear();
+                        ready = true;
+                        connectThread = null;
+                        break;
+                    }
+                    gpsRecords = new ArrayList<>(buffer);
+                    trips = new ArrayList<>(tripBuffer);
+                    buffer.clear();
+                    tripBuffer.clear();
+                    flushingCount = gpsRecords.size();
+                }
+
+                long failed = write(gpsRecords,trips);
+                flushed += gpsRecords.size()+trips.size()-failed;
+                if(backlog != null)
+                {
+                    backlog.remove(gpsRecords.size());
+                }
+                if(failed > 0)
+                {
+                    synchronized(DeferredStore.this)
+                    {
+                        droppedCount += failed;
+                    }
+                }
+            }
+            System.out.println("connected the store after "+attempts+" attempts in "
+                    +(System.nanoTime()-start)/1000000+"ms; wrote "+flushed
+                    +" buffered GPS updates and trips, dropped "+dropped);
+        }
+
+        /**
+         * writes buffered GPS updates, and trips to the store. GPS updates are
+         *   written in batches of one device each, as GpsBatchListener
+         *   expects, in the order each device sent them. a batch, or trip the
+         *   store fails to write is dropped, so that one failure does not
+         *   keep the store from ever becoming ready.
+         *
+         * @return number of GPS updates, and trips that were dropped.
+         */
+        private long write(List<GpsRecord> gpsRecords, List<Trip> trips)
+        {
+            Map<String,List<GpsRecord>> devices = new LinkedHashMap<>();
+            for(GpsRecord gpsRecord : gpsRecords)
+            {
+                List<GpsRecord> device = devices.get(gpsRecord.getDeviceId());
+                if(device == null)
+                {
+                    device = new ArrayList<>();
+                    devices.put(gpsRecord.getDeviceId(),device);
+                }
+                device.add(gpsRecord);
+            }
+
+            long failed = 0;
+            for(List<GpsRecord> device : devices.values())
+            {
+                for(int i = 0; i < device.size(); i += FLUSH_BATCH)
+                {
+                    List<GpsRecord> batch = device.subList(i,Math.min(i+FLUSH_BATCH,device.size()));
+                    try
+                    {
+                        store.onGpsBatch(batch);
+                    }
+                    catch(RuntimeException e)
+                    {
+                        System.out.println("failed to write "+batch.size()
+                                +" buffered GPS updates to the store: "+e);
+                        failed += batch.size();
+                    }
+                }
+            }
+            for(Trip trip : trips)
+            {
+                try
+                {
+                    store.onTrip(trip);
+                }
+                catch(RuntimeException e)
+                {
+                    System.out.println("failed to write a buffered trip to the store: "+e);
+                    ++failed;
+                }
+            }
+            return failed;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package domain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lib.SlotTable;
+
+/**
+ * maintains the number of devices, and their average speed, in every cell of
+ *   a latitude/longitude grid at several zoom levels, so zoomed out web
+ *   clients can be shown the density of the fleet rather than every device.
+ *
+ * the aggregates are updated incrementally: each device's current cell at
+ *   every level, and its last speed, are kept in primitive arrays indexed by a
+ *   SlotTable, so a GPS update only touches the cells the device left and
+ *   entered. cells whose aggregates changed are remembered per level until
+ *   they are drained, so clients can be sent only the cells that changed.
+ *
+ * this class is thread safe.
+ */
+public class DensityAggregator implements GpsRecordManager.GpsUpdateListener
+{
+    /**
+     * marks a device that is not in any cell at a level.
+     */
+    private static final long NO_CELL = -1;
+
+    /**
+     * the zoom levels, from most zoomed out to most zoomed in.
+     */
+    private final Level[] levels;
+
+    /**
+     * slots of the devices whose positions are known.
+     */
+    private final SlotTable devices;
+
+    /**
+     * per device cell at each level, indexed by [level][slot], and last speed.
+     */
+    private long[][] deviceCells;
+    private double[] deviceSpeeds;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new density aggregator.
+     *
+     * @param cellSizes size in degrees of the cells of each zoom level.
+     */
+    public DensityAggregator(double... cellSizes)
+    {
+        this.levels = new Level[cellSizes.length];
+        for(int i = 0; i < cellSizes.length; i++)
+        {
+            levels[i] = new Level(cellSizes[i]);
+        }
+        this.devices = new SlotTable();
+        this.deviceCells = new long[cellSizes.length][0];
+        this.deviceSpeeds = new double[0];
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * returns the number of zoom levels.
+     *
+     * @return the number of zoom levels.
+     */
+    public int getLevelCount()
+    {
+        return levels.length;
+    }
+
+    /**
+     * returns the size in degrees of the cells of a zoom level.
+     *
+     * @param level index of the zoom level.
+     *
+     * @return the size in degrees of the cells of the zoom level.
+     */
+    public double getCellSize(int level)
+    {
+        return levels[level].cellSize;
+    }
+
+    /**
+     * returns every cell of a zoom level that has devices in it.
+     *
+     * @param level index of the zoom level.
+     *
+     * @return the cells of the zoom level that have devices in them.
+     */
+    public synchronized List<Cell> getCells(int level)
+    {
+        Level l = levels[level];
+        List<Cell> cells = new ArrayList<>(l.aggregates.size());
+        for(Map.Entry<Long,Aggregate> entry : l.aggregates.entrySet())
+        {
+            cells.add(l.toCell(entry.getKey(),entry.getValue()));
+        }
+        return cells;
+    }
+
+    /**
+     * returns the cells of a zoom level whose aggregates changed since the
+     *   last time they were drained, and forgets that they changed. cells that
+     *   no longer have devices in them are returned with a count of 0.
+     *
+     * @param level index of the zoom level.
+     *
+     * @return the cells of the zoom level that changed.
+     */
+    public synchronized List<Cell> drainChanges(int level)
+    {
+        Level l = levels[level];
+        List<Cell> cells = new ArrayList<>(l.changed.size());
+        for(Long key : l.changed)
+        {
+            cells.add(l.toCell(key,l.aggregates.get(key)));
+        }
+        l.changed.clear();
+        return cells;
+    }
+
+    ////////////////////////////////////////
+    // GpsRecordManager.GpsUpdateListener //
+    ////////////////////////////////////////
+
+    /**
+     * moves the device into the cells its new position falls in at every
+     *   level, and updates the speeds of the cells.
+     */
+    @Override
+    public synchronized void onGpsUpdate(GpsRecord gpsRecord)
+    {
+        boolean known = devices.find(gpsRecord.getDeviceId()) != -1;
+        int slot = devices.acquire(gpsRecord.getDeviceId());
+        ensureCapacity(slot);
+        double oldSpeed = known ? deviceSpeeds[slot] : 0;
+        double speed = gpsRecord.getSpeed();
+
+        for(int i = 0; i < levels.length; i++)
+        {
+            Level level = levels[i];
+            long oldCell = known ? deviceCells[i][slot] : NO_CELL;
+            long cell = level.cellKey(gpsRecord.getLat(),gpsRecord.getLng());
+            if(oldCell == cell)
+            {
+                level.add(cell,0,speed-oldSpeed);
+            }
+            else
+            {
+                if(oldCell != NO_CELL)
+                {
+                    level.add(oldCell,-1,-oldSpeed);
+                }
+                level.add(cell,1,speed);
+                deviceCells[i][slot] = cell;
+            }
+        }
+        deviceSpeeds[slot] = speed;
+    }
+
+    /**
+     * invoked when Android Clients connect. devices are only counted once
+     *   their position is known.
+     */
+    @Override
+    public void onClientConnected(String clientId){}
+
+    /**
+     * removes the device from the cells it is in.
+     */
+    @Override
+    public synchronized void onClientDisconnected(String clientId)
+    {
+        if(clientId == null)
+        {
+            return;
+        }
+        int slot = devices.release(clientId);
+        if(slot == -1)
+        {
+            return;
+        }
+        for(int i = 0; i < levels.length; i++)
+        {
+            levels[i].add(deviceCells[i][slot],-1,-deviceSpeeds[slot]);
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * grows the state arrays so they can hold the passed slot.
+     */
+    private void ensureCapacity(int slot)
+    {
+        if(slot >= deviceSpeeds.length)
+        {
+            int length = SlotTable.grownLength(deviceSpeeds.length,slot);
+            for(int i = 0; i < levels.length; i++)
+            {
+                deviceCells[i] = Arrays.copyOf(deviceCells[i],length);
+            }
+            deviceSpeeds = Arrays.copyOf(deviceSpeeds,length);
+        }
+    }
+
+    ///////////
+    // Level //
+    ///////////
+
+    /**
+     * the grid, and aggregates of one zoom level.
+     */
+    private static class Level
+    {
+        private final double cellSize;
+        private final int rows;
+        private final int cols;
+
+        /**
+         * aggregates of the cells that have devices in them.
+         */
+        private final Map<Long,Aggregate> aggregates;
+
+        /**
+         * cells whose aggregates changed since they were last drained.
+         */
+        private final Set<Long> changed;
+
+        public Level(double cellSize)
+        {
+            this.cellSize = cellSize;
+            this.rows = (int) Math.ceil(180/cellSize);
+            this.cols = (int) Math.ceil(360/cellSize);
+            this.aggregates = new HashMap<>();
+            this.changed = new LinkedHashSet<>();
+        }
+
+        /**
+         * adds to the device count, and speed sum of a cell, removing it once
+         *   it has no devices left.
+         */
+        public void add(long cell, int count, double speed)
+        {
+            Aggregate aggregate = aggregates.get(cell);
+            if(aggregate == null)
+            {
+                aggregate = new Aggregate();
+                aggregates.put(cell,aggregate);
+            }
+            aggregate.count += count;
+            aggregate.speedSum += speed;
+            if(aggregate.count <= 0)
+            {
+                aggregates.remove(cell);
+            }
+            changed.add(cell);
+        }
+
+        public long cellKey(double lat, double lng)
+        {
+            int row = Math.max(0,Math.min(rows-1,(int) Math.floor((lat+90)/cellSize)));
+            int col = (int) Math.floor((lng+180)/cellSize)%cols;
+            if(col < 0)
+            {
+                col += cols;
+            }
+            return ((long) row<<32)|(col&0xffffffffL);
+        }
+
+        public Cell toCell(long key, Aggregate aggregate)
+        {
+            int row = (int) (key>>>32);
+            int col = (int) key;
+            int count = (aggregate == null) ? 0 : aggregate.count;
+            return new Cell(row*cellSize-90,col*cellSize-180,count,
+                    (count == 0) ? 0 : aggregate.speedSum/count);
+        }
+    }
+
+    ///////////////
+    // Aggregate //
+    ///////////////
+
+    private static class Aggregate
+    {
+        private int count;
+        private double speedSum;
+    }
+
+    //////////
+    // Cell //
+    //////////
+
+    /**
+     * the aggregates of a cell at one point in time.
+     */
+    public static class Cell
+    {
+        private final double lat;
+        private final double lng;
+        private final int count;
+        private final double averageSpeed;
+
+        public Cell(double lat, double lng, int count, double averageSpeed)
+        {
+            this.lat = lat;
+            this.lng = lng;
+            this.count = count;
+            this.averageSpeed = averageSpeed;
+        }
+
+        /**
+         * returns the latitude of the south edge of the cell.
+         */
+        public double getLat()
+        {
+            return lat;
+        }
+
+        /**
+         * returns the longitude of the west edge of the cell.
+         */
+        public double getLng()
+        {
+            return lng;
+        }
+
+        public int getCount()
+        {
+            return count;
+        }
+
+        public double getAverageSpeed()
+        {
+            return averageSpeed;
+        }
+    }
+}
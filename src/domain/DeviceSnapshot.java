@@ -0,0 +1,433 @@
+package domain;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * periodically writes the live state of the devices, i.e. which devices are
+ *   connected, and their last positions, to a snapshot file, so that after a
+ *   restart the state can be restored within milliseconds instead of waiting
+ *   for every device to reconnect and report.
+ *
+ * the state is kept in a map of immutable GpsRecords; taking a snapshot only
+ *   copies the map under the lock, and the file is written outside of it. a
+ *   snapshot is only written if the state changed since the last one. the file
+ *   is written to a temporary file, then renamed over the previous snapshot,
+ *   so a crash never leaves a partial snapshot behind.
+ *
+ * the file starts with a magic number, a version, the time it was written,
+ *   and the number of devices. each device is its ID, a flag that tells if its
+ *   position is known, and if so, its IP, sampling time, latitude, longitude,
+ *   altitude and speed. strings are length prefixed UTF-8. the file is read
+ *   back through a memory mapping, and only restored once all of it was read,
+ *   so a truncated file restores nothing.
+ */
+public class DeviceSnapshot implements GpsRecordManager.GpsUpdateListener
+{
+    /**
+     * identifies snapshot files, and their format.
+     */
+    public static final int MAGIC   = 0x47505353;
+    public static final int VERSION = 1;
+
+    /**
+     * file that snapshots are written to.
+     */
+    private final File file;
+
+    /**
+     * time in milliseconds between snapshots.
+     */
+    private final long interval;
+
+    /**
+     * connected devices, and their last GPS update, or null if they have not
+     *   sent one yet.
+     */
+    private final Map<String,GpsRecord> devices;
+
+    /**
+     * devices that were restored from the snapshot file, and have not
+     *   reconnected since.
+     */
+    private final Set<String> unconfirmed;
+
+    /**
+     * true if the state changed since the last snapshot.
+     */
+    private boolean dirty;
+
+    /**
+     * thread that writes snapshots periodically.
+     */
+    private WriterThread writerThread;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new device snapshot.
+     *
+     * @param file file that snapshots are written to, and restored from.
+     * @param interval time in milliseconds between snapshots.
+     */
+    public DeviceSnapshot(File file, long interval)
+    {
+        this.file = file;
+        this.interval = interval;
+        this.devices = new LinkedHashMap<>();
+        this.unconfirmed = new LinkedHashSet<>();
+        this.dirty = false;
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * restores the state of the devices from the snapshot file, if there is
+     *   one, by dispatching a connection, and the last GPS update of each
+     *   device to the passed listeners. this object's own state is restored as
+     *   well.
+     *
+     * listeners are passed explicitly, rather than dispatching through a
+     *   GpsRecordManager, so that restored GPS updates are not persisted
+     *   again.
+     *
+     * @param maxAge devices whose last GPS update is older than this many
+     *   milliseconds are not restored.
+     * @param listeners listeners to restore the state of the devices to.
+     *
+     * @return the IDs of the devices that were restored.
+     *
+     * @throws IOException if the snapshot file could not be read, or is
+     *   truncated.
+     */
+    public Set<String> restore(long maxAge, GpsRecordManager.GpsUpdateListener... listeners) throws IOException
+    {
+        Set<String> restored = new LinkedHashSet<>();
+        if(!file.exists())
+        {
+            return restored;
+        }
+
+        // read the whole file before restoring anything
+        Map<String,GpsRecord> read = new LinkedHashMap<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file,"r");
+                FileChannel channel = raf.getChannel())
+        {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+            if(buf.getInt() != MAGIC || buf.getInt() != VERSION)
+            {
+                throw new IOException(file+" is not a device snapshot");
+            }
+            long writtenAt = buf.getLong();
+            int count = buf.getInt();
+            long now = System.currentTimeMillis();
+
+            for(int i = 0; i < count; i++)
+            {
+                String deviceId = readString(buf);
+                GpsRecord gpsRecord = null;
+                if(buf.get() != 0)
+                {
+                    gpsRecord = new GpsRecord(deviceId,readString(buf),buf.getLong(),
+                            buf.getDouble(),buf.getDouble(),buf.getDouble(),buf.getDouble());
+                }
+
+                long lastSeen = (gpsRecord == null) ? writtenAt : gpsRecord.getSamplingTime();
+                if(now-lastSeen <= maxAge)
+                {
+                    read.put(deviceId,gpsRecord);
+                }
+            }
+        }
+        catch (BufferUnderflowException e)
+        {
+            throw new IOException(file+" is truncated");
+        }
+
+        for(Map.Entry<String,GpsRecord> entry : read.entrySet())
+        {
+            String deviceId = entry.getKey();
+            GpsRecord gpsRecord = entry.getValue();
+            restored.add(deviceId);
+            onClientConnected(deviceId);
+            for(GpsRecordManager.GpsUpdateListener listener : listeners)
+            {
+                listener.onClientConnected(deviceId);
+            }
+            if(gpsRecord != null)
+            {
+                onGpsUpdate(gpsRecord);
+                for(GpsRecordManager.GpsUpdateListener listener : listeners)
+                {
+                    listener.onGpsUpdate(gpsRecord);
+                }
+            }
+        }
+
+        synchronized(this)
+        {
+            unconfirmed.addAll(restored);
+        }
+        return restored;
+    }
+
+    /**
+     * dispatches restored devices that have not reconnected within the grace
+     *   period as disconnected, so that devices that went away while the
+     *   server was down do not linger.
+     *
+     * @param gracePeriod time in milliseconds restored devices have to
+     *   reconnect.
+     * @param gpsRecordsManager manager to dispatch the disconnections to.
+     */
+    public void expireUnconfirmed(final long gracePeriod, final GpsRecordManager gpsRecordsManager)
+    {
+        Thread expiryThread = new Thread("DeviceSnapshotExpiry "+file)
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(gracePeriod);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+
+                List<String> expired;
+                synchronized(DeviceSnapshot.this)
+                {
+                    expired = new ArrayList<>(unconfirmed);
+                    unconfirmed.clear();
+                }
+                for(String deviceId : expired)
+                {
+                    gpsRecordsManager.dispatchDisconnection(deviceId);
+                }
+            }
+        };
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+    }
+
+    /**
+     * starts writing snapshots periodically.
+     */
+    public void start()
+    {
+        if(writerThread == null)
+        {
+            writerThread = new WriterThread();
+            writerThread.start();
+        }
+    }
+
+    /**
+     * stops writing snapshots periodically, and writes a final one once the
+     *   snapshot being written periodically, if any, is done.
+     */
+    public void stop()
+    {
+        if(writerThread != null)
+        {
+            writerThread.interrupt();
+            try
+            {
+                writerThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+            try
+            {
+                write();
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * writes a snapshot if the state changed since the last one.
+     *
+     * @return true if a snapshot was written; false otherwise.
+     *
+     * @throws IOException if the snapshot could not be written.
+     */
+    public boolean write() throws IOException
+    {
+        List<Map.Entry<String,GpsRecord>> entries;
+        synchronized(this)
+        {
+            if(!dirty)
+            {
+                return false;
+            }
+            entries = new ArrayList<>(new LinkedHashMap<>(devices).entrySet());
+            dirty = false;
+        }
+
+        File tmp = new File(file.getPath()+".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(entries.size());
+            for(Map.Entry<String,GpsRecord> entry : entries)
+            {
+                writeString(out,entry.getKey());
+                GpsRecord gpsRecord = entry.getValue();
+                out.writeByte(gpsRecord == null ? 0 : 1);
+                if(gpsRecord != null)
+                {
+                    writeString(out,gpsRecord.getDeviceIp() == null ? "" : gpsRecord.getDeviceIp());
+                    out.writeLong(gpsRecord.getSamplingTime());
+                    out.writeDouble(gpsRecord.getLat());
+                    out.writeDouble(gpsRecord.getLng());
+                    out.writeDouble(gpsRecord.getAltitude());
+                    out.writeDouble(gpsRecord.getSpeed());
+                }
+            }
+        }
+        Files.move(tmp.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    ////////////////////////////////////////
+    // GpsRecordManager.GpsUpdateListener //
+    ////////////////////////////////////////
+
+    /**
+     * records the device's last position; GPS updates of devices that are not
+     *   identified yet are ignored.
+     */
+    @Override
+    public synchronized void onGpsUpdate(GpsRecord gpsRecord)
+    {
+        if(gpsRecord.getDeviceId() == null)
+        {
+            return;
+        }
+        devices.put(gpsRecord.getDeviceId(),gpsRecord);
+        unconfirmed.remove(gpsRecord.getDeviceId());
+        dirty = true;
+    }
+
+    /**
+     * records that the device is connected.
+     */
+    @Override
+    public synchronized void onClientConnected(String clientId)
+    {
+        if(clientId == null)
+        {
+            return;
+        }
+        unconfirmed.remove(clientId);
+        if(!devices.containsKey(clientId))
+        {
+            devices.put(clientId,null);
+            dirty = true;
+        }
+    }
+
+    /**
+     * records that the device is no longer connected.
+     */
+    @Override
+    public synchronized void onClientDisconnected(String clientId)
+    {
+        if(clientId != null && devices.containsKey(clientId))
+        {
+            devices.remove(clientId);
+            unconfirmed.remove(clientId);
+            dirty = true;
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    private static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf)
+    {
+        byte[] bytes = new byte[buf.getShort()&0xffff];
+        buf.get(bytes);
+        return new String(bytes,StandardCharsets.UTF_8);
+    }
+
+    //////////////////
+    // WriterThread //
+    //////////////////
+
+    /**
+     * writes a snapshot every interval.
+     */
+    private class WriterThread extends Thread
+    {
+        public WriterThread()
+        {
+            setName("DeviceSnapshotWriter "+file);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                try
+                {
+                    Thread.sleep(interval);
+                    write();
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    // keep writing snapshots; the next one may succeed
+                    System.out.println("failed to write snapshot "+file+": "+e);
+                }
+            }
+        }
+    }
+}
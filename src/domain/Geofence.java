@@ -0,0 +1,118 @@
+package domain;
+
+/**
+ * a simple immutable polygon on the map, which devices can enter and exit.
+ *
+ * vertices are given in degrees, and edges are treated as straight lines in
+ *   latitude/longitude space, which is accurate enough for fences that are not
+ *   hundreds of kilometers wide. fences must not cross the antimeridian.
+ */
+public class Geofence
+{
+    /**
+     * ID of the geofence.
+     */
+    private final String id;
+
+    /**
+     * latitudes and longitudes of the vertices of the polygon, in order.
+     */
+    private final double[] lats;
+    private final double[] lngs;
+
+    /**
+     * bounding box of the polygon.
+     */
+    private final double minLat;
+    private final double maxLat;
+    private final double minLng;
+    private final double maxLng;
+
+    /**
+     * instantiates a new geofence.
+     *
+     * @param id ID of the geofence.
+     * @param lats latitudes of the vertices of the polygon, in order.
+     * @param lngs longitudes of the vertices of the polygon, in order.
+     */
+    public Geofence(String id, double[] lats, double[] lngs)
+    {
+        if(lats.length != lngs.length || lats.length < 3)
+        {
+            throw new IllegalArgumentException("a geofence needs at least 3 vertices");
+        }
+
+        this.id = id;
+        this.lats = lats.clone();
+        this.lngs = lngs.clone();
+
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double minLng = Double.POSITIVE_INFINITY;
+        double maxLng = Double.NEGATIVE_INFINITY;
+        for(int i = 0; i < lats.length; i++)
+        {
+            minLat = Math.min(minLat,lats[i]);
+            maxLat = Math.max(maxLat,lats[i]);
+            minLng = Math.min(minLng,lngs[i]);
+            maxLng = Math.max(maxLng,lngs[i]);
+        }
+        this.minLat = minLat;
+        this.maxLat = maxLat;
+        this.minLng = minLng;
+        this.maxLng = maxLng;
+    }
+
+    /**
+     * returns true if the point is inside of the polygon; false otherwise.
+     *
+     * @param lat latitude of the point in degrees.
+     * @param lng longitude of the point in degrees.
+     *
+     * @return true if the point is inside of the polygon; false otherwise.
+     */
+    public boolean contains(double lat, double lng)
+    {
+        if(lat < minLat || lat > maxLat || lng < minLng || lng > maxLng)
+        {
+            return false;
+        }
+
+        // count the edges crossed by a ray going east from the point
+        boolean inside = false;
+        for(int i = 0, j = lats.length-1; i < lats.length; j = i++)
+        {
+            if((lats[i] > lat) != (lats[j] > lat)
+                    && lng < (lngs[j]-lngs[i])*(lat-lats[i])/(lats[j]-lats[i])+lngs[i])
+            {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public double getMinLat()
+    {
+        return minLat;
+    }
+
+    public double getMaxLat()
+    {
+        return maxLat;
+    }
+
+    public double getMinLng()
+    {
+        return minLng;
+    }
+
+    public double getMaxLng()
+    {
+        return maxLng;
+    }
+}
@@ -0,0 +1,489 @@
+package domain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lib.SlotTable;
+
+/**
+ * evaluates every GPS update against the registered geofences, and notifies
+ *   registered listeners when a device enters or exits a geofence.
+ *
+ * geofences are indexed by a grid of latitude/longitude cells; each cell holds
+ *   the geofences whose bounding box overlaps it, so a GPS update is only
+ *   tested against the few geofences of the cell it falls in. the index is an
+ *   immutable snapshot that is rebuilt whenever geofences are added or
+ *   removed, so evaluating GPS updates never waits for those changes.
+ *
+ * for every device, the handles of the geofences it is currently inside of are
+ *   kept in a small sorted int array indexed by a SlotTable; the array is only
+ *   replaced when the device enters or exits a geofence.
+ */
+public class GeofenceEngine implements GpsRecordManager.GpsUpdateListener
+{
+    /**
+     * height and width of a cell of the index in degrees.
+     */
+    private final double cellSize;
+
+    /**
+     * registered geofences by ID, and the handle assigned to each of them.
+     */
+    private final Map<String,Fence> fences;
+
+    /**
+     * handle to assign to the next geofence that is added.
+     */
+    private int nextHandle;
+
+    /**
+     * current index of the geofences.
+     */
+    private volatile Index index;
+
+    /**
+     * maps device ids to indices into insideOf.
+     */
+    private final SlotTable devices;
+
+    /**
+     * sorted handles of the geofences each device is currently inside of.
+     */
+    private int[][] insideOf;
+
+    /**
+     * scratch buffer used to compute the geofences a device is inside of.
+     */
+    private int[] scratch;
+
+    /**
+     * listeners notified of geofence events.
+     */
+    private final Set<GeofenceListener> registeredListeners;
+
+    /**
+     * shared empty array of handles.
+     */
+    private static final int[] NO_FENCES = new int[0];
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new geofence engine without any geofences.
+     *
+     * @param cellSize height and width of a cell of the index in degrees.
+     */
+    public GeofenceEngine(double cellSize)
+    {
+        this.cellSize = cellSize;
+        this.fences = new LinkedHashMap<>();
+        this.nextHandle = 0;
+        this.index = new Index(new ArrayList<Fence>(),cellSize);
+        this.devices = new SlotTable();
+        this.insideOf = new int[0][];
+        this.scratch = new int[16];
+        this.registeredListeners = new LinkedHashSet<>();
+    }
+
+    /**
+     * interface for a listener that is notified when a device enters or exits
+     *   a geofence.
+     */
+    public interface GeofenceListener
+    {
+        public void onGeofenceEntered(Geofence geofence, GpsRecord gpsRecord);
+        public void onGeofenceExited(Geofence geofence, GpsRecord gpsRecord);
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * adds a geofence listener to the engine.
+     *
+     * @param listener reference to the listener to register.
+     */
+    public synchronized void registerListener(GeofenceListener listener)
+    {
+        registeredListeners.add(listener);
+    }
+
+    /**
+     * removes a geofence listener from the engine.
+     *
+     * @param listener reference to the listener to unregister.
+     */
+    public synchronized void unregisterListener(GeofenceListener listener)
+    {
+        registeredListeners.remove(listener);
+    }
+
+    /**
+     * adds a geofence to the engine, replacing any geofence with the same ID.
+     *
+     * @param geofence geofence to add.
+     */
+    public void addGeofence(Geofence geofence)
+    {
+        addGeofences(Collections.singletonList(geofence));
+    }
+
+    /**
+     * adds geofences to the engine, replacing any geofences with the same IDs,
+     *   and rebuilds the index once for all of them.
+     *
+     * a replaced geofence keeps its handle, so devices that were inside of it
+     *   are only notified if they are outside of its replacement, in which
+     *   case they exit it.
+     *
+     * @param geofences geofences to add.
+     */
+    public synchronized void addGeofences(Collection<Geofence> geofences)
+    {
+        for(Geofence geofence : geofences)
+        {
+            Fence replaced = fences.get(geofence.getId());
+            fences.put(geofence.getId(),new Fence(geofence,
+                    (replaced == null) ? nextHandle++ : replaced.handle));
+        }
+        index = new Index(new ArrayList<>(fences.values()),cellSize);
+    }
+
+    /**
+     * parses geofences from properties of the form:
+     *
+     *   [geofence ID]=[lat],[lng];[lat],[lng];[lat],[lng]...
+     *
+     *   where each pair is a vertex of the polygon in degrees, in order, and
+     *   adds them to the engine.
+     *
+     * @param properties properties to parse.
+     *
+     * @throws IllegalArgumentException if a property is malformed.
+     */
+    public void configure(Map<String,String> properties)
+    {
+        List<Geofence> geofences = new ArrayList<>(properties.size());
+        for(Map.Entry<String,String> entry : properties.entrySet())
+        {
+            String[] vertices = entry.getValue().split(";");
+            if(vertices.length < 3)
+            {
+                throw new IllegalArgumentException(entry.getKey()+"="+entry.getValue());
+            }
+            double[] lats = new double[vertices.length];
+            double[] lngs = new double[vertices.length];
+            for(int i = 0; i < vertices.length; i++)
+            {
+                String[] values = vertices[i].split(",");
+                if(values.length != 2)
+                {
+                    throw new IllegalArgumentException(entry.getKey()+"="+entry.getValue());
+                }
+                lats[i] = Double.parseDouble(values[0].trim());
+                lngs[i] = Double.parseDouble(values[1].trim());
+            }
+            geofences.add(new Geofence(entry.getKey(),lats,lngs));
+        }
+        addGeofences(geofences);
+    }
+
+    /**
+     * removes a geofence from the engine. no exit events are generated for the
+     *   devices that were inside of it.
+     *
+     * @param geofenceId ID of the geofence to remove.
+     */
+    public synchronized void removeGeofence(String geofenceId)
+    {
+        if(fences.remove(geofenceId) != null)
+        {
+            index = new Index(new ArrayList<>(fences.values()),cellSize);
+        }
+    }
+
+    /**
+     * returns the number of geofences registered with the engine.
+     *
+     * @return the number of geofences registered with the engine.
+     */
+    public synchronized int size()
+    {
+        return fences.size();
+    }
+
+    ////////////////////////////////////////
+    // GpsRecordManager.GpsUpdateListener //
+    ////////////////////////////////////////
+
+    /**
+     * tests the GPS update against the geofences of the cell it falls in, and
+     *   notifies listeners of geofences that the device entered or exited.
+     */
+    @Override
+    public void onGpsUpdate(GpsRecord gpsRecord)
+    {
+        Index index = this.index;
+        Fence[] candidates = index.candidates(gpsRecord.getLat(),gpsRecord.getLng());
+        List<Fence> entered = null;
+        List<Fence> exited = null;
+        Set<GeofenceListener> listeners;
+
+        synchronized(this)
+        {
+            int slot = devices.acquire(gpsRecord.getDeviceId());
+            if(slot >= insideOf.length)
+            {
+                int length = SlotTable.grownLength(insideOf.length,slot);
+                insideOf = Arrays.copyOf(insideOf,length);
+            }
+            int[] before = (insideOf[slot] == null) ? NO_FENCES : insideOf[slot];
+
+            // compute the handles of the geofences the device is inside of now
+            int count = 0;
+            for(Fence fence : candidates)
+            {
+                if(fence.geofence.contains(gpsRecord.getLat(),gpsRecord.getLng()))
+                {
+                    if(count == scratch.length)
+                    {
+                        scratch = Arrays.copyOf(scratch,count*2);
+                    }
+                    scratch[count++] = fence.handle;
+                }
+            }
+            Arrays.sort(scratch,0,count);
+
+            // nothing changed; this is by far the most common case
+            if(count == before.length && equals(scratch,before,count))
+            {
+                return;
+            }
+
+            // diff the sorted arrays of handles
+            int i = 0;
+            int j = 0;
+            while(i < count || j < before.length)
+            {
+                if(j == before.length || (i < count && scratch[i] < before[j]))
+                {
+                    entered = add(entered,index.fence(scratch[i++]));
+                }
+                else if(i == count || before[j] < scratch[i])
+                {
+                    exited = add(exited,index.fence(before[j++]));
+                }
+                else
+                {
+                    ++i;
+                    ++j;
+                }
+            }
+            insideOf[slot] = (count == 0) ? NO_FENCES : Arrays.copyOf(scratch,count);
+            listeners = new LinkedHashSet<>(registeredListeners);
+        }
+
+        // notify listeners outside of the lock
+        for(GeofenceListener listener : listeners)
+        {
+            if(exited != null)
+            {
+                for(Fence fence : exited)
+                {
+                    listener.onGeofenceExited(fence.geofence,gpsRecord);
+                }
+            }
+            if(entered != null)
+            {
+                for(Fence fence : entered)
+                {
+                    listener.onGeofenceEntered(fence.geofence,gpsRecord);
+                }
+            }
+        }
+    }
+
+    /**
+     * invoked when Android Clients connect. devices are only evaluated once
+     *   their position is known.
+     */
+    @Override
+    public void onClientConnected(String clientId){}
+
+    /**
+     * forgets which geofences the device is inside of.
+     */
+    @Override
+    public synchronized void onClientDisconnected(String clientId)
+    {
+        if(clientId == null)
+        {
+            return;
+        }
+        int slot = devices.release(clientId);
+        if(slot >= 0)
+        {
+            insideOf[slot] = null;
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * returns true if the first count elements of both arrays are equal.
+     */
+    private static boolean equals(int[] a, int[] b, int count)
+    {
+        for(int i = 0; i < count; i++)
+        {
+            if(a[i] != b[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * adds the fence to the list, creating the list if necessary. fences that
+     *   were removed from the engine are not added.
+     */
+    private static List<Fence> add(List<Fence> list, Fence fence)
+    {
+        if(fence == null)
+        {
+            return list;
+        }
+        if(list == null)
+        {
+            list = new ArrayList<>(2);
+        }
+        list.add(fence);
+        return list;
+    }
+
+    /**
+     * a registered geofence, and its handle.
+     */
+    private static class Fence
+    {
+        private final Geofence geofence;
+        private final int handle;
+
+        public Fence(Geofence geofence, int handle)
+        {
+            this.geofence = geofence;
+            this.handle = handle;
+        }
+    }
+
+    /**
+     * immutable grid index of geofences. cells are kept in an open addressed
+     *   hash table keyed by primitive longs, so looking up the candidates of
+     *   a GPS update does not allocate.
+     */
+    private static class Index
+    {
+        private static final Fence[] NO_CANDIDATES = new Fence[0];
+
+        private final double cellSize;
+        private final long[] keys;
+        private final Fence[][] cells;
+        private final Map<Integer,Fence> byHandle;
+
+        public Index(List<Fence> fences, double cellSize)
+        {
+            this.cellSize = cellSize;
+            this.byHandle = new LinkedHashMap<>();
+
+            // collect the fences overlapping each cell
+            Map<Long,List<Fence>> cellFences = new LinkedHashMap<>();
+            for(Fence fence : fences)
+            {
+                byHandle.put(fence.handle,fence);
+                Geofence geofence = fence.geofence;
+                for(long r = cell(geofence.getMinLat()); r <= cell(geofence.getMaxLat()); r++)
+                {
+                    for(long c = cell(geofence.getMinLng()); c <= cell(geofence.getMaxLng()); c++)
+                    {
+                        Long key = key(r,c);
+                        List<Fence> list = cellFences.get(key);
+                        if(list == null)
+                        {
+                            list = new ArrayList<>();
+                            cellFences.put(key,list);
+                        }
+                        list.add(fence);
+                    }
+                }
+            }
+
+            // build the open addressed table with a load factor of at most 0.5
+            int capacity = Integer.highestOneBit(Math.max(1,cellFences.size())*2)*2;
+            keys = new long[capacity];
+            cells = new Fence[capacity][];
+            for(Map.Entry<Long,List<Fence>> entry : cellFences.entrySet())
+            {
+                int i = slot(entry.getKey());
+                while(cells[i] != null)
+                {
+                    i = (i+1)&(capacity-1);
+                }
+                keys[i] = entry.getKey();
+                cells[i] = entry.getValue().toArray(new Fence[entry.getValue().size()]);
+            }
+        }
+
+        /**
+         * returns the fences whose bounding box overlaps the cell of the point.
+         */
+        public Fence[] candidates(double lat, double lng)
+        {
+            long key = key(cell(lat),cell(lng));
+            for(int i = slot(key); cells[i] != null; i = (i+1)&(cells.length-1))
+            {
+                if(keys[i] == key)
+                {
+                    return cells[i];
+                }
+            }
+            return NO_CANDIDATES;
+        }
+
+        /**
+         * returns the fence with the handle, or null if it has been removed.
+         */
+        public Fence fence(int handle)
+        {
+            return byHandle.get(handle);
+        }
+
+        private long cell(double degrees)
+        {
+            return (long) Math.floor(degrees/cellSize);
+        }
+
+        private static long key(long row, long col)
+        {
+            return (row<<32)^(col&0xffffffffL);
+        }
+
+        private int slot(long key)
+        {
+            long hash = key*0x9e3779b97f4a7c15L;
+            return (int) (hash>>>32)&(cells.length-1);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package domain;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * encodes and decodes GpsRecordManager events in a compact binary form, so
+ *   they can be sent to other processes, or written to disk.
+ *
+ * every event starts with a one byte type, followed by the ID of the device.
+ *   GPS updates are followed by the IP of the device, the sampling time, and
+ *   the latitude, longitude, altitude and speed as doubles. batches of GPS
+ *   updates carry no device ID of their own; they are the number of GPS
+ *   updates as an int, followed by each GPS update without its type. reset
+ *   events carry no device ID; they tell the receiver to forget all devices,
+ *   because the state of every device is about to be sent again. snapshot end
+ *   events carry no device ID either; they tell the receiver that the state
+ *   of every device was sent.
+ */
+public class GpsEventCodec
+{
+    /**
+     * types of events.
+     */
+    public static final byte TYPE_GPS_UPDATE   = 1;
+    public static final byte TYPE_CONNECTED    = 2;
+    public static final byte TYPE_DISCONNECTED = 3;
+    public static final byte TYPE_RESET        = 4;
+    public static final byte TYPE_SNAPSHOT_END = 5;
+    public static final byte TYPE_GPS_BATCH    = 6;
+
+    /**
+     * writes a GPS update.
+     *
+     * @param out output to write the event to.
+     * @param gpsRecord the GPS update to write.
+     *
+     * @throws IOException
+     */
+    public static void writeGpsUpdate(DataOutput out, GpsRecord gpsRecord) throws IOException
+    {
+        out.writeByte(TYPE_GPS_UPDATE);
+        writeGpsRecord(out,gpsRecord);
+    }
+
+    /**
+     * writes a batch of GPS updates as one event.
+     *
+     * @param out output to write the event to.
+     * @param gpsRecords the GPS updates to write.
+     *
+     * @throws IOException
+     */
+    public static void writeGpsBatch(DataOutput out, List<GpsRecord> gpsRecords) throws IOException
+    {
+        out.writeByte(TYPE_GPS_BATCH);
+        out.writeInt(gpsRecords.size());
+        for(GpsRecord gpsRecord : gpsRecords)
+        {
+            writeGpsRecord(out,gpsRecord);
+        }
+    }
+
+    /**
+     * writes a connection, or disconnection of a device.
+     *
+     * @param out output to write the event to.
+     * @param type either TYPE_CONNECTED, or TYPE_DISCONNECTED.
+     * @param clientId ID of the device.
+     *
+     * @throws IOException
+     */
+    public static void writeConnectionEvent(DataOutput out, byte type, String clientId) throws IOException
+    {
+        out.writeByte(type);
+        out.writeUTF(clientId);
+    }
+
+    /**
+     * writes a reset event.
+     *
+     * @param out output to write the event to.
+     *
+     * @throws IOException
+     */
+    public static void writeReset(DataOutput out) throws IOException
+    {
+        out.writeByte(TYPE_RESET);
+    }
+
+    /**
+     * writes a snapshot end event.
+     *
+     * @param out output to write the event to.
+     *
+     * @throws IOException
+     */
+    public static void writeSnapshotEnd(DataOutput out) throws IOException
+    {
+        out.writeByte(TYPE_SNAPSHOT_END);
+    }
+
+    /**
+     * reads the rest of a GPS update whose type byte has already been read.
+     *
+     * @param in input to read the event from.
+     *
+     * @return the GPS update that was read.
+     *
+     * @throws IOException
+     */
+    public static GpsRecord readGpsUpdate(DataInput in) throws IOException
+    {
+        return new GpsRecord(
+                in.readUTF(),
+                in.readUTF(),
+                in.readLong(),
+                in.readDouble(),
+                in.readDouble(),
+                in.readDouble(),
+                in.readDouble());
+    }
+
+    /**
+     * reads the rest of a batch of GPS updates whose type byte has already
+     *   been read.
+     *
+     * @param in input to read the event from.
+     *
+     * @return the GPS updates that were read.
+     *
+     * @throws IOException
+     */
+    public static List<GpsRecord> readGpsBatch(DataInput in) throws IOException
+    {
+        int count = in.readInt();
+        if(count < 0)
+        {
+            throw new IOException("invalid batch size "+count);
+        }
+        List<GpsRecord> gpsRecords = new ArrayList<>(Math.min(count,1024));
+        for(int i = 0; i < count; i++)
+        {
+            gpsRecords.add(readGpsUpdate(in));
+        }
+        return gpsRecords;
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * writes a GPS update without its type.
+     */
+    private static void writeGpsRecord(DataOutput out, GpsRecord gpsRecord) throws IOException
+    {
+        out.writeUTF(gpsRecord.getDeviceId());
+        out.writeUTF(gpsRecord.getDeviceIp() == null ? "" : gpsRecord.getDeviceIp());
+        out.writeLong(gpsRecord.getSamplingTime());
+        out.writeDouble(gpsRecord.getLat());
+        out.writeDouble(gpsRecord.getLng());
+        out.writeDouble(gpsRecord.getAltitude());
+        out.writeDouble(gpsRecord.getSpeed());
+    }
+}
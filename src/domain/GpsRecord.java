@@ -13,9 +13,9 @@ public class GpsRecord
     private final String deviceId;
 
     /**
-     * IP address that was used to send the server the GPS update.
+     * IP address and port that was used to send the server the GPS update.
      */
-    private final Socket deviceIp;
+    private final String deviceIp;
 
     /**
      * time that the latitude and longitude of the device was recorded in Linux
@@ -56,6 +56,25 @@ public class GpsRecord
      */
     public GpsRecord(String deviceId, Socket deviceIp, long samplingTime,
             double lat, double lng, double altitude, double speed)
+    {
+        this(deviceId,deviceIp.getInetAddress().getHostAddress()+":"+deviceIp.getPort(),
+                samplingTime,lat,lng,altitude,speed);
+    }
+
+    /**
+     * instantiates a new GPS record object from a GPS update that did not come
+     *   directly from a socket, i.e. one that was read back from storage.
+     *
+     * @param deviceId ID of the device that sent the GPS update.
+     * @param deviceIp IP address and port that was used to send the server the
+     *   GPS update.
+     * @param samplingTime time that the latitude and longitude of the device
+     *   was recorded.
+     * @param lat latitude of the device at samplingTime.
+     * @param lng longitude of the device at samplingTime.
+     */
+    public GpsRecord(String deviceId, String deviceIp, long samplingTime,
+            double lat, double lng, double altitude, double speed)
     {
         this.deviceId = deviceId;
         this.deviceIp = deviceIp;
@@ -73,7 +92,7 @@ public class GpsRecord
 
     public String getDeviceIp()
     {
-        return deviceIp.getInetAddress().getHostAddress()+":"+deviceIp.getPort();
+        return deviceIp;
     }
 
     public long getSamplingTime()
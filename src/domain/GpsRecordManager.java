@@ -1,8 +1,12 @@
 package domain;
 
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
+import lib.FlowGate;
+
 /**
  * the GPSRecordManager class is used to take care of GPS updates, and notifying
  *   all registered observers.
@@ -13,12 +17,26 @@ public class GpsRecordManager
 {
     private Set<GpsUpdateListener> registeredListeners;
 
+    /**
+     * filters that GPS updates must pass before they are dispatched to the
+     *   registered listeners.
+     */
+    private Set<GpsUpdateFilter> registeredFilters;
+
+    /**
+     * counts the events dispatched by this manager that are queued downstream,
+     *   and tells the producers dispatching to this manager when to pause;
+     *   null if there is no flow control.
+     */
+    private FlowGate backlog;
+
     /**
      * instantiates a new GPS record manager.
      */
     public GpsRecordManager()
     {
         registeredListeners = new LinkedHashSet<>();
+        registeredFilters = new LinkedHashSet<>();
     }
 
     /**
@@ -32,6 +50,40 @@ public class GpsRecordManager
         public void onClientDisconnected(String clientId);
     }
 
+    /**
+     * interface for a GPS update listener that wants to handle batches of GPS
+     *   updates at once. listeners that do not implement it are passed the GPS
+     *   updates of a batch one at a time.
+     */
+    public interface GpsBatchListener extends GpsUpdateListener
+    {
+        /**
+         * invoked with a batch of GPS updates from one device, ordered the way
+         *   the device sent them.
+         */
+        public void onGpsBatch(List<GpsRecord> gpsRecords);
+    }
+
+    /**
+     * interface for a GPS update filter that can be registered with this
+     *   class. filters are consulted before GPS updates are dispatched to the
+     *   registered listeners, and may suppress them.
+     */
+    public interface GpsUpdateFilter
+    {
+        /**
+         * returns true if the GPS update should be dispatched to the
+         *   registered listeners; false if it should be dropped.
+         */
+        public boolean accept(GpsRecord gpsRecord);
+
+        /**
+         * discards any state the filter is keeping for the client; invoked
+         *   when the client connects, and when it disconnects.
+         */
+        public void reset(String clientId);
+    }
+
     /**
      * adds a GPS update listener to the GPS record manager. when a GPS update
      *   is added to the manager, then the registered listeners will be
@@ -56,18 +108,111 @@ public class GpsRecordManager
     }
 
     /**
-     * dispatches a GPS update to all registered GPS update listeners.
+     * adds a GPS update filter to the GPS record manager. GPS updates are only
+     *   dispatched to listeners if all registered filters accept them.
+     *
+     * @param filter reference to the filter to register.
+     */
+    public void registerFilter(GpsUpdateFilter filter)
+    {
+        registeredFilters.add(filter);
+    }
+
+    /**
+     * removes a GPS update filter from the GPS record manager.
+     *
+     * @param filter reference to the filter to unregister.
+     */
+    public void unregisterFilter(GpsUpdateFilter filter)
+    {
+        registeredFilters.remove(filter);
+    }
+
+    /**
+     * sets the gate that listeners that queue the events dispatched by this
+     *   manager account for them in, so that the producers dispatching to this
+     *   manager can pause while the queues drain.
+     *
+     * @param backlog gate to account queued events in; null for no flow
+     *   control.
+     */
+    public void setBacklog(FlowGate backlog)
+    {
+        this.backlog = backlog;
+    }
+
+    /**
+     * returns the gate that the events dispatched by this manager that are
+     *   queued downstream are accounted in.
+     *
+     * @return the gate that queued events are accounted in; null if there is
+     *   no flow control.
+     */
+    public FlowGate getBacklog()
+    {
+        return backlog;
+    }
+
+    /**
+     * dispatches a GPS update to all registered GPS update listeners, unless
+     *   it is rejected by one of the registered filters.
      *
      * @param gpsRecord the new GPS record.
      */
     public void dispatchGpsUpdate(GpsRecord gpsRecord)
     {
+        if (!accept(gpsRecord))
+        {
+            return;
+        }
+
         for (GpsUpdateListener listsner : registeredListeners)
         {
             listsner.onGpsUpdate(gpsRecord);
         }
     }
     
+    /**
+     * dispatches a batch of GPS updates from one device to all registered
+     *   listeners. the GPS updates are passed through the registered filters
+     *   one at a time; the ones that are accepted are dispatched as one batch
+     *   to listeners that implement GpsBatchListener, and one at a time to the
+     *   others.
+     *
+     * @param gpsRecords the new GPS records, ordered the way the device sent
+     *   them.
+     */
+    public void dispatchGpsBatch(List<GpsRecord> gpsRecords)
+    {
+        List<GpsRecord> accepted = new ArrayList<>(gpsRecords.size());
+        for (GpsRecord gpsRecord : gpsRecords)
+        {
+            if (accept(gpsRecord))
+            {
+                accepted.add(gpsRecord);
+            }
+        }
+        if (accepted.isEmpty())
+        {
+            return;
+        }
+
+        for (GpsUpdateListener listsner : registeredListeners)
+        {
+            if (listsner instanceof GpsBatchListener)
+            {
+                ((GpsBatchListener) listsner).onGpsBatch(accepted);
+            }
+            else
+            {
+                for (GpsRecord gpsRecord : accepted)
+                {
+                    listsner.onGpsUpdate(gpsRecord);
+                }
+            }
+        }
+    }
+
     /**
      * dispatches an Android Client connection to all registered listeners
      * 
@@ -75,6 +220,11 @@ public class GpsRecordManager
      */
     public void dispatchConnection(String clientId)
     {
+        for (GpsUpdateFilter filter : registeredFilters)
+        {
+            filter.reset(clientId);
+        }
+
         for (GpsUpdateListener listsner : registeredListeners)
         {
             listsner.onClientConnected(clientId);
@@ -88,9 +238,33 @@ public class GpsRecordManager
      */
     public void dispatchDisconnection(String clientId)
     {
+        for (GpsUpdateFilter filter : registeredFilters)
+        {
+            filter.reset(clientId);
+        }
+
         for (GpsUpdateListener listsner : registeredListeners)
         {
             listsner.onClientDisconnected(clientId);
         }
     }
+
+    /**
+     * returns true if all registered filters accept the GPS update.
+     *
+     * @param gpsRecord the GPS record to filter.
+     *
+     * @return true if all registered filters accept the GPS update.
+     */
+    private boolean accept(GpsRecord gpsRecord)
+    {
+        for (GpsUpdateFilter filter : registeredFilters)
+        {
+            if (!filter.accept(gpsRecord))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
 }
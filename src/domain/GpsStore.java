@@ -0,0 +1,75 @@
+package domain;
+
+import java.util.List;
+
+/**
+ * interface for a sink that persists the GPS updates dispatched to it by a
+ *   GpsRecordManager, and the trips reported to it by a TripSegmenter, and can
+ *   read them back by device and time range.
+ *
+ * implementations must be connected before they store anything; GPS updates
+ *   dispatched to a store that is not connected are dropped.
+ */
+public interface GpsStore extends GpsRecordManager.GpsBatchListener, TripSegmenter.TripListener
+{
+    /**
+     * connects the store to its storage, i.e. the database, or the files it
+     *   keeps GPS updates in.
+     */
+    public void connect();
+
+    /**
+     * disconnects the store from its storage, making sure that everything that
+     *   was stored so far is persisted.
+     */
+    public void disconnect();
+
+    /**
+     * returns true if the store is connected; false otherwise.
+     *
+     * @return true if the store is connected; false otherwise.
+     */
+    public boolean isConnected();
+
+    /**
+     * returns the GPS updates of a device that were sampled within the passed
+     *   time range, ordered by sampling time.
+     *
+     * @param deviceId ID of the device to get the GPS updates of.
+     * @param from start of the time range (inclusive).
+     * @param to end of the time range (inclusive).
+     *
+     * @return the GPS updates of the device within the time range.
+     */
+    public List<GpsRecord> findRange(String deviceId, long from, long to);
+
+    /**
+     * returns the trips of a device that started within the passed time range,
+     *   ordered by start time.
+     *
+     * @param deviceId ID of the device to get the trips of.
+     * @param from start of the time range (inclusive).
+     * @param to end of the time range (inclusive).
+     *
+     * @return the trips of the device that started within the time range.
+     */
+    public List<Trip> findTrips(String deviceId, long from, long to);
+
+    /**
+     * rolls the GPS updates sampled before the passed time up into a
+     *   downsampled track of each device, which keeps the first GPS update of
+     *   the device in every interval of the passed resolution, and deletes the
+     *   rest. only a bounded amount of work is done per call, so that rolling
+     *   up does not hold up the GPS updates being stored meanwhile; callers
+     *   call it repeatedly until it returns 0.
+     *
+     * @param before only GPS updates sampled before this time are rolled up.
+     * @param resolution length in milliseconds of the intervals that one GPS
+     *   update of each device is kept for.
+     * @param batchSize number of GPS updates to roll up per call, roughly.
+     *
+     * @return number of GPS updates that were rolled up; 0 once there are none
+     *   left to roll up.
+     */
+    public long rollUp(long before, long resolution, int batchSize);
+}
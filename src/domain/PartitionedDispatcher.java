@@ -0,0 +1,388 @@
+package domain;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.FlowGate;
+
+/**
+ * dispatches the events it receives to a downstream GpsRecordManager on a
+ *   fixed number of partition threads, so that the listener chain runs on as
+ *   many cores as there are partitions, rather than on whatever thread
+ *   delivered each event.
+ *
+ * devices are assigned to partitions by hashing their ID, and each partition
+ *   is a single thread consuming a bounded queue, so the GPS updates,
+ *   connections and disconnections of any one device are always dispatched
+ *   one at a time, in the order they were received. listeners of the
+ *   downstream manager are called concurrently for different devices, so they
+ *   must be thread safe; none may be registered after the dispatcher is
+ *   started.
+ *
+ * when a partition's queue is full, the thread delivering an event to it
+ *   blocks until there is room. to keep producers from getting there, the
+ *   events queued on each partition can be accounted in a FlowGate, which
+ *   producers pause on; since each partition has its own watermarks, one hot
+ *   partition closes the gate before its queue is full.
+ */
+public class PartitionedDispatcher implements GpsRecordManager.GpsBatchListener
+{
+    /**
+     * types of events passed through the partitions' queues.
+     */
+    private static final int EVENT_GPS_UPDATE   = 0;
+    private static final int EVENT_GPS_BATCH    = 1;
+    private static final int EVENT_CONNECTED    = 2;
+    private static final int EVENT_DISCONNECTED = 3;
+    private static final int EVENT_STOP         = 4;
+
+    /**
+     * manager that events are dispatched to by the partitions.
+     */
+    private final GpsRecordManager downstream;
+
+    /**
+     * the partitions.
+     */
+    private final Partition[] partitions;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new partitioned dispatcher.
+     *
+     * @param partitionCount number of partitions.
+     * @param queueCapacity maximum number of events queued per partition.
+     * @param downstream manager to dispatch events to.
+     */
+    public PartitionedDispatcher(int partitionCount, int queueCapacity, GpsRecordManager downstream)
+    {
+        this(partitionCount,queueCapacity,downstream,null,0,0);
+    }
+
+    /**
+     * instantiates a new partitioned dispatcher that accounts for the events
+     *   queued on each of its partitions in the passed gate.
+     *
+     * @param partitionCount number of partitions.
+     * @param queueCapacity maximum number of events queued per partition.
+     * @param downstream manager to dispatch events to.
+     * @param backlog gate to account queued events in; null for none.
+     * @param highWatermark number of events queued on a partition at which
+     *   the gate closes.
+     * @param lowWatermark number of events queued on a partition at which it
+     *   no longer keeps the gate closed.
+     */
+    public PartitionedDispatcher(int partitionCount, int queueCapacity,
+            GpsRecordManager downstream, FlowGate backlog, int highWatermark, int lowWatermark)
+    {
+        if(partitionCount < 1)
+        {
+            throw new IllegalArgumentException("there must be at least one partition");
+        }
+        this.downstream = downstream;
+        this.partitions = new Partition[partitionCount];
+        for(int i = 0; i < partitionCount; i++)
+        {
+            partitions[i] = new Partition(i,queueCapacity,(backlog == null) ? null
+                    : backlog.newAccount("partition "+i,highWatermark,lowWatermark));
+        }
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * starts the partition threads.
+     */
+    public void start()
+    {
+        for(Partition partition : partitions)
+        {
+            partition.start();
+        }
+    }
+
+    /**
+     * stops the partition threads once they have dispatched the events that
+     *   are already queued.
+     */
+    public void stop()
+    {
+        for(Partition partition : partitions)
+        {
+            partition.enqueue(new Event(EVENT_STOP,null,null,null));
+        }
+        for(Partition partition : partitions)
+        {
+            try
+            {
+                partition.join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * returns the number of partitions.
+     *
+     * @return the number of partitions.
+     */
+    public int getPartitionCount()
+    {
+        return partitions.length;
+    }
+
+    /**
+     * returns the partition that the events of a device are dispatched on.
+     *
+     * @param deviceId ID of the device.
+     *
+     * @return the index of the partition that the events of the device are
+     *   dispatched on.
+     */
+    public int getPartition(String deviceId)
+    {
+        return (deviceId == null) ? 0 : (deviceId.hashCode()&0x7fffffff)%partitions.length;
+    }
+
+    /**
+     * returns the number of events queued on a partition.
+     *
+     * @param partition index of the partition.
+     *
+     * @return the number of events queued on the partition.
+     */
+    public int getQueueDepth(int partition)
+    {
+        return partitions[partition].queue.size();
+    }
+
+    /**
+     * returns the largest number of events that were ever queued on a
+     *   partition.
+     *
+     * @param partition index of the partition.
+     *
+     * @return the largest number of events ever queued on the partition.
+     */
+    public int getMaxQueueDepth(int partition)
+    {
+        return (int) partitions[partition].maxDepth.get();
+    }
+
+    /**
+     * returns the number of events a partition has dispatched.
+     *
+     * @param partition index of the partition.
+     *
+     * @return the number of events the partition has dispatched.
+     */
+    public long getDispatchedCount(int partition)
+    {
+        return partitions[partition].dispatched.get();
+    }
+
+    /**
+     * returns the number of times a thread had to wait for room in the queue of
+     *   a partition.
+     *
+     * @param partition index of the partition.
+     *
+     * @return the number of times a thread had to wait for room in the queue.
+     */
+    public long getBlockedCount(int partition)
+    {
+        return partitions[partition].blocked.get();
+    }
+
+    ////////////////////////////////////////
+    // GpsRecordManager.GpsUpdateListener //
+    ////////////////////////////////////////
+
+    @Override
+    public void onGpsUpdate(GpsRecord gpsRecord)
+    {
+        enqueue(new Event(EVENT_GPS_UPDATE,gpsRecord.getDeviceId(),gpsRecord,null));
+    }
+
+    @Override
+    public void onGpsBatch(List<GpsRecord> gpsRecords)
+    {
+        // batches only ever hold the updates of one device
+        enqueue(new Event(EVENT_GPS_BATCH,gpsRecords.get(0).getDeviceId(),null,gpsRecords));
+    }
+
+    @Override
+    public void onClientConnected(String clientId)
+    {
+        enqueue(new Event(EVENT_CONNECTED,clientId,null,null));
+    }
+
+    @Override
+    public void onClientDisconnected(String clientId)
+    {
+        enqueue(new Event(EVENT_DISCONNECTED,clientId,null,null));
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    private void enqueue(Event event)
+    {
+        partitions[getPartition(event.deviceId)].enqueue(event);
+    }
+
+    ///////////
+    // Event //
+    ///////////
+
+    /**
+     * an event queued on a partition.
+     */
+    private static class Event
+    {
+        private final int type;
+        private final String deviceId;
+        private final GpsRecord gpsRecord;
+        private final List<GpsRecord> gpsRecords;
+
+        public Event(int type, String deviceId, GpsRecord gpsRecord, List<GpsRecord> gpsRecords)
+        {
+            this.type = type;
+            this.deviceId = deviceId;
+            this.gpsRecord = gpsRecord;
+            this.gpsRecords = gpsRecords;
+        }
+    }
+
+    ///////////////
+    // Partition //
+    ///////////////
+
+    /**
+     * a thread that dispatches the events queued on it, one at a time.
+     */
+    private class Partition extends Thread
+    {
+        private final BlockingQueue<Event> queue;
+        private final AtomicLong maxDepth;
+        private final AtomicLong dispatched;
+        private final AtomicLong blocked;
+
+        /**
+         * account of the queued events in the backlog; null if there is none.
+         */
+        private final FlowGate.Account backlog;
+
+        public Partition(int index, int queueCapacity, FlowGate.Account backlog)
+        {
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.backlog = backlog;
+            this.maxDepth = new AtomicLong();
+            this.dispatched = new AtomicLong();
+            this.blocked = new AtomicLong();
+            setName("PartitionedDispatcher "+index);
+            setDaemon(true);
+        }
+
+        /**
+         * queues an event, waiting for room if the queue is full.
+         */
+        public void enqueue(Event event)
+        {
+            if(backlog != null)
+            {
+                backlog.add(1);
+            }
+            try
+            {
+                if(!queue.offer(event))
+                {
+                    blocked.incrementAndGet();
+                    queue.put(event);
+                }
+            }
+            catch(InterruptedException e)
+            {
+                if(backlog != null)
+                {
+                    backlog.remove(1);
+                }
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            // only ever raised, so a stale read merely costs another attempt
+            long depth = queue.size();
+            long max = maxDepth.get();
+            while(depth > max && !maxDepth.compareAndSet(max,depth))
+            {
+                max = maxDepth.get();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                Event event;
+                try
+                {
+                    event = queue.take();
+                }
+                catch(InterruptedException e)
+                {
+                    break;
+                }
+
+                try
+                {
+                    switch(event.type)
+                    {
+                    case EVENT_GPS_UPDATE:
+                        downstream.dispatchGpsUpdate(event.gpsRecord);
+                        break;
+                    case EVENT_GPS_BATCH:
+                        downstream.dispatchGpsBatch(event.gpsRecords);
+                        break;
+                    case EVENT_CONNECTED:
+                        downstream.dispatchConnection(event.deviceId);
+                        break;
+                    case EVENT_DISCONNECTED:
+                        downstream.dispatchDisconnection(event.deviceId);
+                        break;
+                    case EVENT_STOP:
+                        // the stop event was accounted like any other
+                        if(backlog != null)
+                        {
+                            backlog.remove(1);
+                        }
+                        return;
+                    }
+                }
+                catch(RuntimeException e)
+                {
+                    // a failing listener must not stop the partition
+                    e.printStackTrace();
+                }
+                dispatched.incrementAndGet();
+                if(backlog != null)
+                {
+                    backlog.remove(1);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package domain;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import lib.FlowGate;
+
+/**
+ * chooses the interval at which an Android client should report its
+ *   position, so that the volume of GPS updates follows what is actually
+ *   needed, rather than every phone reporting at a fixed rate.
+ *
+ * the interval depends on how fast the device is moving, on whether any web
+ *   client is viewing live positions, and on how backlogged the server is.
+ *   parked devices, and devices nobody is watching report rarely; the
+ *   intervals are stretched while the server is under load, but never beyond
+ *   the maximum interval, so that clients are not dropped as idle.
+ *
+ * while started, the policy checks every check interval whether live
+ *   positions started or stopped being viewed, or the load changed, and if
+ *   so, tells its listeners, so that every client can be sent its new
+ *   interval at once, rather than with its next GPS update.
+ *
+ * this class is thread safe.
+ */
+public class ReportingRatePolicy
+{
+    /**
+     * speeds in metres per second below which a device is parked, and above
+     *   which it is moving fast.
+     */
+    public static final double PARKED_SPEED = 0.5;
+    public static final double FAST_SPEED   = 15;
+
+    /**
+     * reporting intervals in milliseconds of parked, moving, and fast moving
+     *   devices, while live positions are being viewed, and while they are not.
+     */
+    public static final long[] WATCHED_INTERVALS   = {15000,2000,1000};
+    public static final long[] UNWATCHED_INTERVALS = {60000,15000,10000};
+
+    /**
+     * factors the intervals are multiplied by while the server's backlog is
+     *   half way to its high watermark, and while the backlog is closed.
+     */
+    public static final int BUSY_FACTOR       = 2;
+    public static final int OVERLOADED_FACTOR = 4;
+
+    /**
+     * fill of the backlog at which the server becomes busy, and below which it
+     *   is no longer busy; the gap keeps the load factor from flipping, and
+     *   every client from being sent a new interval, with every check.
+     */
+    public static final double BUSY_FILL = 0.5;
+    public static final double CALM_FILL = 0.25;
+
+    /**
+     * minimum time in milliseconds between lengthening the interval of a
+     *   client, so a device whose speed hovers around a threshold is not sent
+     *   a new interval with every update. intervals are shortened at once.
+     */
+    public static final long MIN_LENGTHEN_INTERVAL = 30000;
+
+    /**
+     * time in milliseconds between checks for changes of the audience, and
+     *   of the load.
+     */
+    public static final long CHECK_INTERVAL = 1000;
+
+    /**
+     * interface of whatever sends the chosen intervals to the clients, to
+     *   learn when the intervals of all of them may have changed.
+     */
+    public interface Listener
+    {
+        /**
+         * invoked when live positions started or stopped being viewed, or the
+         *   load changed.
+         */
+        public void onConditionsChanged();
+    }
+
+    /**
+     * interface of whatever serves live positions, to learn whether anybody is
+     *   viewing them.
+     */
+    public interface Audience
+    {
+        /**
+         * returns true if any client is being sent the live positions of
+         *   devices.
+         *
+         * @return true if live positions are being viewed; false otherwise.
+         */
+        public boolean hasLiveViewers();
+    }
+
+    /**
+     * audience of the live positions; null if unknown, in which case devices
+     *   are assumed to be watched.
+     */
+    private volatile Audience audience;
+
+    /**
+     * backlog of the server; null if the load is not considered.
+     */
+    private final FlowGate backlog;
+
+    /**
+     * longest interval chosen, whatever the speed, audience, and load.
+     */
+    private final long maxInterval;
+
+    /**
+     * true while the backlog is filled beyond BUSY_FILL, and has not drained
+     *   below CALM_FILL since.
+     */
+    private volatile boolean busy;
+
+    /**
+     * listeners told when the conditions change.
+     */
+    private final List<Listener> listeners;
+
+    /**
+     * thread that checks for changes of the conditions.
+     */
+    private CheckThread checkThread;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new reporting rate policy.
+     *
+     * @param backlog backlog of the server used to gauge its load; null to
+     *   disregard the load.
+     */
+    public ReportingRatePolicy(FlowGate backlog)
+    {
+        this(backlog,Long.MAX_VALUE);
+    }
+
+    /**
+     * instantiates a new reporting rate policy whose intervals never exceed
+     *   the passed maximum.
+     *
+     * @param backlog backlog of the server used to gauge its load; null to
+     *   disregard the load.
+     * @param maxInterval longest interval in milliseconds to choose; should be
+     *   well below the time after which idle clients are dropped.
+     */
+    public ReportingRatePolicy(FlowGate backlog, long maxInterval)
+    {
+        this.backlog = backlog;
+        this.maxInterval = maxInterval;
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * sets the audience of live positions.
+     *
+     * @param audience audience of live positions; null to assume devices are
+     *   always watched.
+     */
+    public void setAudience(Audience audience)
+    {
+        this.audience = audience;
+    }
+
+    /**
+     * adds a listener to tell when the conditions change.
+     *
+     * @param listener listener to register.
+     */
+    public void registerListener(Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    /**
+     * starts checking for changes of the conditions.
+     */
+    public void start()
+    {
+        if(checkThread == null)
+        {
+            checkThread = new CheckThread();
+            checkThread.start();
+        }
+    }
+
+    /**
+     * stops checking for changes of the conditions.
+     */
+    public void stop()
+    {
+        if(checkThread != null)
+        {
+            checkThread.interrupt();
+            checkThread = null;
+        }
+    }
+
+    /**
+     * returns the interval a device moving at the passed speed should report
+     *   at.
+     *
+     * @param speed speed of the device in metres per second.
+     *
+     * @return the reporting interval in milliseconds.
+     */
+    public long getInterval(double speed)
+    {
+        long[] intervals = isWatched() ? WATCHED_INTERVALS : UNWATCHED_INTERVALS;
+        long interval;
+        if(speed < PARKED_SPEED)
+        {
+            interval = intervals[0];
+        }
+        else if(speed < FAST_SPEED)
+        {
+            interval = intervals[1];
+        }
+        else
+        {
+            interval = intervals[2];
+        }
+        return Math.min(interval*getLoadFactor(),maxInterval);
+    }
+
+    /**
+     * returns true if a client should be sent a new interval.
+     *
+     * @param current interval the client was last sent; 0 if it was never
+     *   sent one.
+     * @param interval interval chosen for the client.
+     * @param sentAt time in milliseconds the client was last sent an interval.
+     * @param now current time in milliseconds.
+     *
+     * @return true if the client should be sent the chosen interval.
+     */
+    public boolean isChangeDue(long current, long interval, long sentAt, long now)
+    {
+        return current == 0 || interval < current
+                || (interval > current && now-sentAt >= MIN_LENGTHEN_INTERVAL);
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * returns true if live positions are being viewed, or may be.
+     */
+    private boolean isWatched()
+    {
+        Audience audience = this.audience;
+        return audience == null || audience.hasLiveViewers();
+    }
+
+    /**
+     * returns the factor intervals are stretched by under the current load.
+     */
+    private int getLoadFactor()
+    {
+        if(backlog == null)
+        {
+            return 1;
+        }
+        if(!backlog.isOpen())
+        {
+            return OVERLOADED_FACTOR;
+        }
+        double fill = backlog.getFill();
+        if(fill >= BUSY_FILL)
+        {
+            busy = true;
+        }
+        else if(fill < CALM_FILL)
+        {
+            busy = false;
+        }
+        return busy ? BUSY_FACTOR : 1;
+    }
+
+    /////////////////
+    // CheckThread //
+    /////////////////
+
+    /**
+     * tells the listeners whenever the audience, or the load factor changed
+     *   since the last check.
+     */
+    private class CheckThread extends Thread
+    {
+        public CheckThread()
+        {
+            setName("ReportingRatePolicy");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            boolean watched = isWatched();
+            int loadFactor = getLoadFactor();
+            while(true)
+            {
+                try
+                {
+                    Thread.sleep(CHECK_INTERVAL);
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+
+                boolean nowWatched = isWatched();
+                int nowLoadFactor = getLoadFactor();
+                if(nowWatched != watched || nowLoadFactor != loadFactor)
+                {
+                    watched = nowWatched;
+                    loadFactor = nowLoadFactor;
+                    for(Listener listener : listeners)
+                    {
+                        listener.onConditionsChanged();
+                    }
+                }
+            }
+        }
+    }
+}
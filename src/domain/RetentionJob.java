@@ -0,0 +1,216 @@
+package domain;
+
+/**
+ * periodically rolls the GPS updates of a GpsStore that are older than the
+ *   retention window up into downsampled tracks, so that the store does not
+ *   keep every GPS update at full resolution forever, and range queries do
+ *   not get slower as it grows; see GpsStore.rollUp.
+ *
+ * each run rolls up batches until there is nothing left to roll up. after
+ *   each batch, the job waits at least as long as the batch took, so that it
+ *   never takes more than half of the store's time from the GPS updates being
+ *   stored meanwhile.
+ */
+public class RetentionJob
+{
+    /**
+     * minimum time in milliseconds waited between batches.
+     */
+    public static final long MIN_BATCH_PAUSE = 100;
+
+    /**
+     * store whose GPS updates are rolled up.
+     */
+    private final GpsStore store;
+
+    /**
+     * time in milliseconds that GPS updates are kept at full resolution.
+     */
+    private final long window;
+
+    /**
+     * length in milliseconds of the intervals that one GPS update of each
+     *   device is kept for once rolled up.
+     */
+    private final long resolution;
+
+    /**
+     * number of GPS updates rolled up per batch, roughly.
+     */
+    private final int batchSize;
+
+    /**
+     * time in milliseconds between runs.
+     */
+    private final long interval;
+
+    /**
+     * thread that runs the job periodically.
+     */
+    private RetentionThread retentionThread;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new retention job.
+     *
+     * @param store store whose GPS updates are rolled up.
+     * @param window time in milliseconds that GPS updates are kept at full
+     *   resolution.
+     * @param resolution length in milliseconds of the intervals that one GPS
+     *   update of each device is kept for once rolled up.
+     * @param batchSize number of GPS updates rolled up per batch, roughly.
+     * @param interval time in milliseconds between runs.
+     */
+    public RetentionJob(GpsStore store, long window, long resolution, int batchSize, long interval)
+    {
+        this.store = store;
+        this.window = window;
+        this.resolution = resolution;
+        this.batchSize = batchSize;
+        this.interval = interval;
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * starts running the job periodically.
+     */
+    public void start()
+    {
+        if(retentionThread == null)
+        {
+            retentionThread = new RetentionThread();
+            retentionThread.start();
+        }
+    }
+
+    /**
+     * stops running the job once the batch in progress, if any, is done.
+     */
+    public void stop()
+    {
+        if(retentionThread != null)
+        {
+            retentionThread.cancel();
+            try
+            {
+                retentionThread.join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            retentionThread = null;
+        }
+    }
+
+    /**
+     * rolls up the GPS updates that are older than the retention window now,
+     *   in batches, without pausing between them.
+     *
+     * @return number of GPS updates that were rolled up.
+     */
+    public long rollUp()
+    {
+        long before = System.currentTimeMillis()-window;
+        long rolled = 0;
+        long count;
+        while((count = store.rollUp(before,resolution,batchSize)) > 0)
+        {
+            rolled += count;
+        }
+        return rolled;
+    }
+
+    /////////////////////
+    // RetentionThread //
+    /////////////////////
+
+    /**
+     * runs the job every interval.
+     */
+    private class RetentionThread extends Thread
+    {
+        private volatile boolean running = true;
+
+        public RetentionThread()
+        {
+            setName("RetentionJob");
+            setDaemon(true);
+        }
+
+        /**
+         * stops the thread once the batch in progress, if any, is done.
+         */
+        public synchronized void cancel()
+        {
+            running = false;
+            notifyAll();
+        }
+
+        @Override
+        public void run()
+        {
+            while(pause(interval))
+            {
+                long start = System.nanoTime();
+                long before = System.currentTimeMillis()-window;
+                long rolled = 0;
+                int batches = 0;
+                try
+                {
+                    while(running)
+                    {
+                        long batchStart = System.nanoTime();
+                        long count = store.rollUp(before,resolution,batchSize);
+                        if(count == 0)
+                        {
+                            break;
+                        }
+                        rolled += count;
+                        ++batches;
+                        if(!pause(Math.max(MIN_BATCH_PAUSE,(System.nanoTime()-batchStart)/1000000)))
+                        {
+                            break;
+                        }
+                    }
+                }
+                catch(RuntimeException e)
+                {
+                    System.out.println("failed to roll up GPS updates: "+e);
+                }
+                if(rolled > 0)
+                {
+                    System.out.println("rolled up "+rolled+" GPS updates older than "+window
+                            +"ms in "+batches+" batches in "+(System.nanoTime()-start)/1000000+"ms");
+                }
+            }
+        }
+
+        /**
+         * waits for the passed time.
+         *
+         * @return true if the thread should keep running; false otherwise.
+         */
+        private synchronized boolean pause(long time)
+        {
+            if(running)
+            {
+                try
+                {
+                    wait(time);
+                }
+                catch(InterruptedException e)
+                {
+                    running = false;
+                }
+            }
+            return running;
+        }
+    }
+}
@@ -0,0 +1,1335 @@
+package domain;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * an embedded GpsStore that keeps GPS updates in files on the local disk, so
+ *   the server can run on a single box without any external services.
+ *
+ * GPS updates are appended to a log segment, a file of fixed size that is
+ *   written through a memory mapping. when a log segment is full, it is sealed,
+ *   and a new one is started. an in-memory index maps each device to the
+ *   offsets of its GPS updates in each log segment.
+ *
+ * in the background, sealed log segments are compacted: their GPS updates are
+ *   rewritten grouped by device, and ordered by sampling time, along with an
+ *   index file that holds, for each device, the range of its GPS updates, and
+ *   a sparse index of every SPARSE_INTERVAL-th GPS update's sampling time and
+ *   offset. a range scan of a compacted segment is then a binary search of the
+ *   sparse index, followed by a sequential read.
+ *
+ * compacted segments that only hold GPS updates older than the retention
+ *   window are rolled up: they are rewritten the same way, keeping only the
+ *   first GPS update of each device in every interval of the roll up's
+ *   resolution, to files with their own suffixes, which supersede the files
+ *   of the compacted segment once both are complete. rolled up segments are
+ *   not rolled up again.
+ *
+ * records are written with their length last, so a log segment that was being
+ *   written when the process died is recovered up to its last complete record.
+ *   records are laid out as:
+ *
+ *   [int length][long time][double lat][double lng][double altitude]
+ *     [double speed][short id length][id][short ip length][ip]
+ *
+ * trips are few, so they are appended to a single trips file, which is
+ *   scanned to find the trips of a device. a trip cut short by the process
+ *   dying is truncated when the store is connected. trips are laid out as:
+ *
+ *   [long start][double lat][double lng][long end][double lat][double lng]
+ *     [double distance][double max speed][short id length][id]
+ *
+ * this class is thread safe.
+ */
+public class SegmentLogStore implements GpsStore
+{
+    /**
+     * identifies index files of compacted segments, and their format.
+     */
+    public static final int MAGIC   = 0x4750534c;
+    public static final int VERSION = 1;
+
+    /**
+     * default size of a log segment in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64<<20;
+
+    /**
+     * default time in milliseconds between compactions.
+     */
+    public static final long DEFAULT_COMPACTION_INTERVAL = 10*1000;
+
+    /**
+     * number of GPS updates of a device between entries of the sparse index.
+     */
+    public static final int SPARSE_INTERVAL = 64;
+
+    /**
+     * suffixes of the files of log segments, and compacted segments.
+     */
+    public static final String SUFFIX_LOG   = ".log";
+    public static final String SUFFIX_DATA  = ".seg";
+    public static final String SUFFIX_INDEX = ".idx";
+    public static final String SUFFIX_ROLLUP_DATA  = ".rseg";
+    public static final String SUFFIX_ROLLUP_INDEX = ".ridx";
+    public static final String SUFFIX_TMP   = ".tmp";
+
+    /**
+     * name of the file trips are appended to.
+     */
+    public static final String TRIPS_FILE = "trips.dat";
+
+    /**
+     * size in bytes of the fixed size fields of a record.
+     */
+    private static final int RECORD_HEADER = 4+8+4*8+2+2;
+
+    /**
+     * size in bytes of the fixed size fields of a trip.
+     */
+    private static final int TRIP_HEADER = 8*8+2;
+
+    /**
+     * directory that segments are kept in.
+     */
+    private final File directory;
+
+    /**
+     * size in bytes of a log segment.
+     */
+    private final int segmentSize;
+
+    /**
+     * time in milliseconds between compactions.
+     */
+    private final long compactionInterval;
+
+    /**
+     * segments, ordered from oldest to newest; the last one is the active log
+     *   segment. replaced rather than modified, so it can be read without
+     *   holding the lock.
+     */
+    private volatile List<Segment> segments;
+
+    /**
+     * log segment that GPS updates are appended to; null when not connected.
+     */
+    private LogSegment active;
+
+    /**
+     * ID of the next segment.
+     */
+    private long nextSegmentId;
+
+    /**
+     * thread that compacts sealed log segments periodically.
+     */
+    private CompactionThread compactionThread;
+
+    /**
+     * held while compacting, so that compactions never overlap.
+     */
+    private final Object compactionLock;
+
+    /**
+     * stream trips are appended to, and its length in bytes; null when not
+     *   connected. guarded by tripLock, so that trips are not written under
+     *   the lock GPS updates are written under.
+     */
+    private DataOutputStream tripLog;
+    private long tripLogLength;
+    private final Object tripLock;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new segment log store.
+     *
+     * @param directory directory that segments are kept in.
+     */
+    public SegmentLogStore(File directory)
+    {
+        this(directory,DEFAULT_SEGMENT_SIZE,DEFAULT_COMPACTION_INTERVAL);
+    }
+
+    /**
+     * instantiates a new segment log store.
+     *
+     * @param directory directory that segments are kept in.
+     * @param segmentSize size in bytes of a log segment.
+     * @param compactionInterval time in milliseconds between compactions.
+     */
+    public SegmentLogStore(File directory, int segmentSize, long compactionInterval)
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionInterval = compactionInterval;
+        this.segments = Collections.emptyList();
+        this.active = null;
+        this.nextSegmentId = 0;
+        this.compactionLock = new Object();
+        this.tripLock = new Object();
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * opens the segments in the directory, recovering log segments up to their
+     *   last complete record, starts a new log segment, and starts compacting
+     *   in the background.
+     */
+    @Override
+    public synchronized void connect()
+    {
+        if(isConnected())
+        {
+            return;
+        }
+
+        try
+        {
+            if(!directory.isDirectory() && !directory.mkdirs())
+            {
+                throw new IOException("could not create "+directory);
+            }
+
+            // group the files in the directory by segment ID
+            Map<Long,List<String>> files = new TreeMap<>();
+            for(String name : directory.list())
+            {
+                if(name.endsWith(SUFFIX_TMP))
+                {
+                    // left behind by a compaction that did not complete
+                    Files.delete(new File(directory,name).toPath());
+                    continue;
+                }
+                int dot = name.indexOf('.');
+                if(dot <= 0)
+                {
+                    continue;
+                }
+                try
+                {
+                    long id = Long.parseLong(name.substring(0,dot));
+                    if(!files.containsKey(id))
+                    {
+                        files.put(id,new ArrayList<String>());
+                    }
+                    files.get(id).add(name.substring(dot));
+                }
+                catch(NumberFormatException e)
+                {
+                    continue;
+                }
+            }
+
+            List<Segment> opened = new ArrayList<>();
+            for(Map.Entry<Long,List<String>> entry : files.entrySet())
+            {
+                long id = entry.getKey();
+                List<String> suffixes = entry.getValue();
+                if(suffixes.contains(SUFFIX_ROLLUP_DATA) && suffixes.contains(SUFFIX_ROLLUP_INDEX))
+                {
+                    // roll up completed; the compacted segment may not have
+                    // been deleted yet
+                    opened.add(new CompactedSegment(id,file(id,SUFFIX_ROLLUP_DATA),
+                            file(id,SUFFIX_ROLLUP_INDEX),true));
+                    Files.deleteIfExists(file(id,SUFFIX_INDEX).toPath());
+                    Files.deleteIfExists(file(id,SUFFIX_DATA).toPath());
+                    Files.deleteIfExists(file(id,SUFFIX_LOG).toPath());
+                }
+                else if(suffixes.contains(SUFFIX_DATA) && suffixes.contains(SUFFIX_INDEX))
+                {
+                    // compaction completed; the log segment may not have been
+                    // deleted yet
+                    Files.deleteIfExists(file(id,SUFFIX_ROLLUP_INDEX).toPath());
+                    opened.add(new CompactedSegment(id,file(id,SUFFIX_DATA),file(id,SUFFIX_INDEX),false));
+                    Files.deleteIfExists(file(id,SUFFIX_LOG).toPath());
+                }
+                else if(suffixes.contains(SUFFIX_LOG))
+                {
+                    Files.deleteIfExists(file(id,SUFFIX_DATA).toPath());
+                    Files.deleteIfExists(file(id,SUFFIX_INDEX).toPath());
+                    LogSegment log = new LogSegment(id,file(id,SUFFIX_LOG),segmentSize,true);
+                    log.sealed = true;
+                    opened.add(log);
+                }
+                nextSegmentId = id+1;
+            }
+
+            active = new LogSegment(nextSegmentId++,file(nextSegmentId-1,SUFFIX_LOG),segmentSize,false);
+            opened.add(active);
+            segments = Collections.unmodifiableList(opened);
+            openTripLog();
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        compactionThread = new CompactionThread();
+        compactionThread.start();
+    }
+
+    /**
+     * stops compacting, and forces the active log segment to disk.
+     */
+    @Override
+    public void disconnect()
+    {
+        CompactionThread thread;
+        synchronized(this)
+        {
+            if(!isConnected())
+            {
+                return;
+            }
+            thread = compactionThread;
+            compactionThread = null;
+            active.buffer.force();
+            active = null;
+            segments = Collections.emptyList();
+        }
+        synchronized(tripLock)
+        {
+            try
+            {
+                tripLog.close();
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+            tripLog = null;
+        }
+
+        thread.cancel();
+        try
+        {
+            thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * returns true if the object is connected; false otherwise.
+     *
+     * @return true if the object is connected; false otherwise.
+     */
+    @Override
+    public synchronized boolean isConnected()
+    {
+        return active != null;
+    }
+
+    /**
+     * returns the GPS updates of a device that were sampled within the passed
+     *   time range, ordered by sampling time.
+     *
+     * @param deviceId ID of the device to get the GPS updates of.
+     * @param from start of the time range (inclusive).
+     * @param to end of the time range (inclusive).
+     *
+     * @return the GPS updates of the device within the time range.
+     */
+    @Override
+    public List<GpsRecord> findRange(String deviceId, long from, long to)
+    {
+        List<GpsRecord> records = new ArrayList<>();
+        for(Segment segment : segments)
+        {
+            segment.scan(deviceId,from,to,records);
+        }
+
+        // GPS updates that arrived late may be out of order between segments
+        Collections.sort(records,new Comparator<GpsRecord>()
+        {
+            @Override
+            public int compare(GpsRecord a, GpsRecord b)
+            {
+                return Long.compare(a.getSamplingTime(),b.getSamplingTime());
+            }
+        });
+        return records;
+    }
+
+    /**
+     * returns the trips of a device that started within the passed time range,
+     *   ordered by start time.
+     *
+     * @param deviceId ID of the device to get the trips of.
+     * @param from start of the time range (inclusive).
+     * @param to end of the time range (inclusive).
+     *
+     * @return the trips of the device that started within the time range.
+     */
+    @Override
+    public List<Trip> findTrips(String deviceId, long from, long to)
+    {
+        List<Trip> trips = new ArrayList<>();
+        long length;
+        synchronized(tripLock)
+        {
+            if(tripLog == null)
+            {
+                return trips;
+            }
+            length = tripLogLength;
+        }
+        if(length == 0)
+        {
+            return trips;
+        }
+
+        // only the part of the file that was written so far is read
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory,TRIPS_FILE),"r"))
+        {
+            scanTrips(file.getChannel().map(FileChannel.MapMode.READ_ONLY,0,length),
+                    deviceId,from,to,trips);
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        // trips are appended in the order they end, which may differ
+        Collections.sort(trips,new Comparator<Trip>()
+        {
+            @Override
+            public int compare(Trip a, Trip b)
+            {
+                return Long.compare(a.getStartTime(),b.getStartTime());
+            }
+        });
+        return trips;
+    }
+
+    /**
+     * compacts all sealed log segments now, rather than waiting for the
+     *   compaction thread to do it.
+     *
+     * @return number of log segments that were compacted.
+     *
+     * @throws IOException if a segment could not be compacted.
+     */
+    public int compact() throws IOException
+    {
+        synchronized(compactionLock)
+        {
+            int compacted = 0;
+            for(Segment segment : segments)
+            {
+                if(segment instanceof LogSegment && ((LogSegment) segment).sealed)
+                {
+                    compact((LogSegment) segment);
+                    ++compacted;
+                }
+            }
+            return compacted;
+        }
+    }
+
+    /**
+     * rolls up the compacted segments that only hold GPS updates sampled
+     *   before the passed time, and were not rolled up yet; see the class
+     *   comment. whole segments are rolled up, until at least batchSize GPS
+     *   updates were. log segments are rolled up once they are compacted.
+     *
+     * @param before only GPS updates sampled before this time are rolled up.
+     * @param resolution length in milliseconds of the intervals that one GPS
+     *   update of each device is kept for.
+     * @param batchSize number of GPS updates to roll up per call, roughly.
+     *
+     * @return number of GPS updates in the segments that were rolled up.
+     */
+    @Override
+    public long rollUp(long before, long resolution, int batchSize)
+    {
+        synchronized(compactionLock)
+        {
+            long rolled = 0;
+            for(Segment segment : segments)
+            {
+                if(rolled >= batchSize)
+                {
+                    break;
+                }
+                if(segment instanceof CompactedSegment)
+                {
+                    CompactedSegment compacted = (CompactedSegment) segment;
+                    if(!compacted.rolledUp && compacted.maxTime < before)
+                    {
+                        try
+                        {
+                            rolled += rollUp(compacted,resolution);
+                        }
+                        catch(IOException e)
+                        {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+            }
+            return rolled;
+        }
+    }
+
+    /**
+     * returns the number of segments, including the active log segment.
+     *
+     * @return the number of segments.
+     */
+    public int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+    ////////////////////////////////////////
+    // GpsRecordManager.GpsUpdateListener //
+    ////////////////////////////////////////
+
+    /**
+     * appends the GPS update to the active log segment.
+     */
+    @Override
+    public synchronized void onGpsUpdate(GpsRecord gpsRecord)
+    {
+        if(isConnected())
+        {
+            append(gpsRecord);
+        }
+    }
+
+    /**
+     * appends the GPS updates to the active log segment.
+     */
+    @Override
+    public synchronized void onGpsBatch(List<GpsRecord> gpsRecords)
+    {
+        if(isConnected())
+        {
+            for(GpsRecord gpsRecord : gpsRecords)
+            {
+                append(gpsRecord);
+            }
+        }
+    }
+
+    /**
+     * appends the trip to the trips file.
+     */
+    @Override
+    public void onTrip(Trip trip)
+    {
+        synchronized(tripLock)
+        {
+            if(tripLog == null)
+            {
+                return;
+            }
+            try
+            {
+                int start = tripLog.size();
+                tripLog.writeLong(trip.getStartTime());
+                tripLog.writeDouble(trip.getStartLat());
+                tripLog.writeDouble(trip.getStartLng());
+                tripLog.writeLong(trip.getEndTime());
+                tripLog.writeDouble(trip.getEndLat());
+                tripLog.writeDouble(trip.getEndLng());
+                tripLog.writeDouble(trip.getDistance());
+                tripLog.writeDouble(trip.getMaxSpeed());
+                writeString(tripLog,trip.getDeviceId());
+                tripLog.flush();
+                tripLogLength += tripLog.size()-start;
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * invoked when Android Clients connect. Not needed by SegmentLogStore.
+     */
+    @Override
+    public void onClientConnected(String clientId){}
+
+    /**
+     * invoked when Android Clients disconnect. Not needed by SegmentLogStore.
+     */
+    @Override
+    public void onClientDisconnected(String clientId){}
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    private File file(long id, String suffix)
+    {
+        return new File(directory,String.format("%016d",id)+suffix);
+    }
+
+    /**
+     * appends a GPS update to the active log segment, sealing it, and starting
+     *   a new one if it is full. GPS updates sent before their device
+     *   identified itself are stored under an empty device ID. must be called
+     *   while holding the lock.
+     */
+    private void append(GpsRecord gpsRecord)
+    {
+        if(gpsRecord.getDeviceId() == null)
+        {
+            gpsRecord = new GpsRecord("",gpsRecord.getDeviceIp(),gpsRecord.getSamplingTime(),
+                    gpsRecord.getLat(),gpsRecord.getLng(),gpsRecord.getAltitude(),
+                    gpsRecord.getSpeed());
+        }
+        byte[] deviceId = gpsRecord.getDeviceId().getBytes(StandardCharsets.UTF_8);
+        byte[] deviceIp = (gpsRecord.getDeviceIp() == null) ? new byte[0]
+                : gpsRecord.getDeviceIp().getBytes(StandardCharsets.UTF_8);
+        if(active.append(gpsRecord,deviceId,deviceIp))
+        {
+            return;
+        }
+
+        try
+        {
+            active.seal();
+            active = new LogSegment(nextSegmentId++,file(nextSegmentId-1,SUFFIX_LOG),segmentSize,false);
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        List<Segment> rolled = new ArrayList<>(segments);
+        rolled.add(active);
+        segments = Collections.unmodifiableList(rolled);
+
+        if(!active.append(gpsRecord,deviceId,deviceIp))
+        {
+            throw new IllegalArgumentException("GPS update does not fit in a segment");
+        }
+    }
+
+    /**
+     * opens the trips file for appending, truncating a trip that was cut short
+     *   when the process died.
+     */
+    private void openTripLog() throws IOException
+    {
+        File file = new File(directory,TRIPS_FILE);
+        long length = 0;
+        if(file.exists())
+        {
+            try (RandomAccessFile raf = new RandomAccessFile(file,"rw"))
+            {
+                if(raf.length() > 0)
+                {
+                    length = scanTrips(raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                            0,raf.length()),null,0,0,null);
+                }
+                raf.setLength(length);
+            }
+        }
+        synchronized(tripLock)
+        {
+            tripLog = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file,true)));
+            tripLogLength = length;
+        }
+    }
+
+    /**
+     * reads the trips in a buffer, adding those of the passed device that
+     *   started within the passed time range to the list.
+     *
+     * @param deviceId ID of the device to find the trips of; null to only find
+     *   the end of the trips.
+     *
+     * @return position of the end of the last complete trip.
+     */
+    private static int scanTrips(ByteBuffer buf, String deviceId, long from, long to, List<Trip> trips)
+    {
+        byte[] id = (deviceId == null) ? null : deviceId.getBytes(StandardCharsets.UTF_8);
+        while(buf.remaining() >= TRIP_HEADER)
+        {
+            int position = buf.position();
+            long startTime = buf.getLong();
+            double startLat = buf.getDouble();
+            double startLng = buf.getDouble();
+            long endTime = buf.getLong();
+            double endLat = buf.getDouble();
+            double endLng = buf.getDouble();
+            double distance = buf.getDouble();
+            double maxSpeed = buf.getDouble();
+            int idLength = buf.getShort()&0xffff;
+            if(buf.remaining() < idLength)
+            {
+                buf.position(position);
+                break;
+            }
+            if(id != null && idLength == id.length && startTime >= from && startTime <= to)
+            {
+                byte[] tripId = new byte[idLength];
+                buf.get(tripId);
+                if(Arrays.equals(id,tripId))
+                {
+                    trips.add(new Trip(deviceId,startTime,startLat,startLng,
+                            endTime,endLat,endLng,distance,maxSpeed));
+                }
+            }
+            else
+            {
+                buf.position(buf.position()+idLength);
+            }
+        }
+        return buf.position();
+    }
+
+    /**
+     * rewrites a sealed log segment as a compacted segment, and replaces it.
+     */
+    private void compact(LogSegment log) throws IOException
+    {
+        if(log.devices.isEmpty())
+        {
+            replace(log,null);
+            Files.deleteIfExists(log.file.toPath());
+            return;
+        }
+
+        // order the GPS updates of each device by sampling time
+        ByteBuffer buf = log.buffer.duplicate();
+        Map<String,int[]> devices = new TreeMap<>();
+        for(Map.Entry<String,Offsets> entry : log.devices.entrySet())
+        {
+            Offsets offsets = entry.getValue();
+            final long[] times = new long[offsets.size];
+            Integer[] order = new Integer[offsets.size];
+            for(int i = 0; i < offsets.size; i++)
+            {
+                times[i] = buf.getLong(offsets.values[i]+4);
+                order[i] = i;
+            }
+            Arrays.sort(order,new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer a, Integer b)
+                {
+                    return Long.compare(times[a],times[b]);
+                }
+            });
+            int[] positions = new int[offsets.size];
+            for(int i = 0; i < offsets.size; i++)
+            {
+                positions[i] = offsets.values[order[i]];
+            }
+            devices.put(entry.getKey(),positions);
+        }
+
+        File dataFile = file(log.id,SUFFIX_DATA);
+        File indexFile = file(log.id,SUFFIX_INDEX);
+        write(dataFile,indexFile,log.minTime,log.maxTime,buf,devices);
+        replace(log,new CompactedSegment(log.id,dataFile,indexFile,false));
+
+        // scans in progress keep reading the mapping of the deleted file
+        Files.deleteIfExists(log.file.toPath());
+    }
+
+    /**
+     * rewrites a compacted segment that only holds GPS updates sampled before
+     *   the cutoff of a roll up, keeping the first GPS update of each device
+     *   in every interval of the passed resolution, and replaces it.
+     *
+     * @return number of GPS updates in the compacted segment.
+     */
+    private int rollUp(CompactedSegment compacted, long resolution) throws IOException
+    {
+        ByteBuffer buf = compacted.buffer.duplicate();
+        Map<String,int[]> devices = new TreeMap<>();
+        int count = 0;
+        for(Map.Entry<String,SparseIndex> entry : compacted.devices.entrySet())
+        {
+            // GPS updates are ordered by sampling time, so each one that is
+            // kept is the first one of its interval
+            SparseIndex sparseIndex = entry.getValue();
+            int[] positions = new int[16];
+            int size = 0;
+            long interval = Long.MIN_VALUE;
+            for(int position = sparseIndex.start; position < sparseIndex.end;
+                    position += buf.getInt(position))
+            {
+                long time = buf.getLong(position+4);
+                long start = time-(((time%resolution)+resolution)%resolution);
+                if(start != interval)
+                {
+                    if(size == positions.length)
+                    {
+                        positions = Arrays.copyOf(positions,size*2);
+                    }
+                    positions[size++] = position;
+                    interval = start;
+                }
+                ++count;
+            }
+            devices.put(entry.getKey(),Arrays.copyOf(positions,size));
+        }
+
+        File dataFile = file(compacted.id,SUFFIX_ROLLUP_DATA);
+        File indexFile = file(compacted.id,SUFFIX_ROLLUP_INDEX);
+        write(dataFile,indexFile,compacted.minTime,compacted.maxTime,buf,devices);
+        replace(compacted,new CompactedSegment(compacted.id,dataFile,indexFile,true));
+
+        // scans in progress keep reading the mappings of the deleted files
+        Files.deleteIfExists(file(compacted.id,SUFFIX_INDEX).toPath());
+        Files.deleteIfExists(file(compacted.id,SUFFIX_DATA).toPath());
+        return count;
+    }
+
+    /**
+     * writes the data, and index files of a compacted segment, first to
+     *   temporary files, which are then moved into place.
+     *
+     * @param buf buffer holding the records to write.
+     * @param devices positions in the buffer of the records of each device to
+     *   write, ordered by device ID, then sampling time.
+     */
+    private static void write(File dataFile, File indexFile, long minTime, long maxTime,
+            ByteBuffer buf, Map<String,int[]> devices) throws IOException
+    {
+        File dataTmp = new File(dataFile.getPath()+SUFFIX_TMP);
+        File indexTmp = new File(indexFile.getPath()+SUFFIX_TMP);
+        buf = buf.duplicate();
+
+        try (FileOutputStream dataOut = new FileOutputStream(dataTmp);
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(dataOut,1<<16));
+                FileOutputStream indexOut = new FileOutputStream(indexTmp);
+                DataOutputStream index = new DataOutputStream(new BufferedOutputStream(indexOut,1<<16)))
+        {
+            index.writeInt(MAGIC);
+            index.writeInt(VERSION);
+            index.writeLong(minTime);
+            index.writeLong(maxTime);
+            index.writeInt(devices.size());
+
+            byte[] record = new byte[256];
+            int offset = 0;
+            for(Map.Entry<String,int[]> entry : devices.entrySet())
+            {
+                int[] positions = entry.getValue();
+                int sparseCount = (positions.length+SPARSE_INTERVAL-1)/SPARSE_INTERVAL;
+                writeString(index,entry.getKey());
+                index.writeInt(offset);
+                index.writeInt(sparseCount);
+                for(int i = 0; i < positions.length; i++)
+                {
+                    int length = buf.getInt(positions[i]);
+                    if(i%SPARSE_INTERVAL == 0)
+                    {
+                        index.writeLong(buf.getLong(positions[i]+4));
+                        index.writeInt(offset);
+                    }
+                    if(record.length < length)
+                    {
+                        record = new byte[length];
+                    }
+                    buf.position(positions[i]);
+                    buf.get(record,0,length);
+                    data.write(record,0,length);
+                    offset += length;
+                }
+                index.writeInt(offset);
+            }
+
+            data.flush();
+            dataOut.getChannel().force(true);
+            index.flush();
+            indexOut.getChannel().force(true);
+        }
+
+        // the index is moved into place first, so a segment is only considered
+        // written once both of its files are complete
+        Files.move(indexTmp.toPath(),indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        Files.move(dataTmp.toPath(),dataFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * replaces a segment with another, or removes it if the other is null.
+     */
+    private synchronized void replace(Segment segment, Segment replacement)
+    {
+        List<Segment> replaced = new ArrayList<>(segments.size());
+        for(Segment existing : segments)
+        {
+            if(existing != segment)
+            {
+                replaced.add(existing);
+            }
+            else if(replacement != null)
+            {
+                replaced.add(replacement);
+            }
+        }
+        segments = Collections.unmodifiableList(replaced);
+    }
+
+    /**
+     * reads the record at the passed position.
+     */
+    private static GpsRecord readRecord(ByteBuffer buf, int position)
+    {
+        ByteBuffer record = buf.duplicate();
+        record.position(position+4);
+        long time = record.getLong();
+        double lat = record.getDouble();
+        double lng = record.getDouble();
+        double altitude = record.getDouble();
+        double speed = record.getDouble();
+        String deviceId = readString(record);
+        String deviceIp = readString(record);
+        return new GpsRecord(deviceId,deviceIp.isEmpty() ? null : deviceIp,
+                time,lat,lng,altitude,speed);
+    }
+
+    /**
+     * writes a string, or an empty one if it is null.
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        byte[] bytes = (string == null) ? new byte[0] : string.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf)
+    {
+        byte[] bytes = new byte[buf.getShort()&0xffff];
+        buf.get(bytes);
+        return new String(bytes,StandardCharsets.UTF_8);
+    }
+
+    /////////////
+    // Segment //
+    /////////////
+
+    /**
+     * a file holding GPS updates.
+     */
+    private static abstract class Segment
+    {
+        protected final long id;
+
+        protected Segment(long id)
+        {
+            this.id = id;
+        }
+
+        /**
+         * adds the GPS updates of the device that were sampled within the
+         *   passed time range to the passed list.
+         */
+        public abstract void scan(String deviceId, long from, long to, List<GpsRecord> records);
+    }
+
+    ////////////////
+    // LogSegment //
+    ////////////////
+
+    /**
+     * a segment that GPS updates are appended to in the order they arrive.
+     */
+    private static class LogSegment extends Segment
+    {
+        private final File file;
+        private final MappedByteBuffer buffer;
+
+        /**
+         * offsets of the GPS updates of each device.
+         */
+        private final Map<String,Offsets> devices;
+
+        /**
+         * offset the next record is written at.
+         */
+        private int end;
+
+        /**
+         * range of the sampling times of the GPS updates in the segment.
+         */
+        private long minTime;
+        private long maxTime;
+
+        /**
+         * true once no more GPS updates are appended to the segment.
+         */
+        private volatile boolean sealed;
+
+        /**
+         * opens a log segment.
+         *
+         * @param recover true to recover an existing segment; false to create
+         *   a new one.
+         */
+        public LogSegment(long id, File file, int size, boolean recover) throws IOException
+        {
+            super(id);
+            this.file = file;
+            this.devices = new HashMap<>();
+            this.end = 0;
+            this.minTime = Long.MAX_VALUE;
+            this.maxTime = Long.MIN_VALUE;
+            this.sealed = false;
+
+            try (RandomAccessFile raf = new RandomAccessFile(file,"rw");
+                    FileChannel channel = raf.getChannel())
+            {
+                if(!recover)
+                {
+                    raf.setLength(size);
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE,0,raf.length());
+            }
+
+            if(recover)
+            {
+                // records are complete up to the first one without a length
+                while(end+RECORD_HEADER <= buffer.limit())
+                {
+                    int length = buffer.getInt(end);
+                    if(length < RECORD_HEADER || end+length > buffer.limit())
+                    {
+                        break;
+                    }
+                    index(readRecord(buffer,end).getDeviceId(),buffer.getLong(end+4),end);
+                    end += length;
+                }
+            }
+        }
+
+        /**
+         * appends a GPS update to the segment.
+         *
+         * @return true if the GPS update was appended; false if the segment is
+         *   full.
+         */
+        public synchronized boolean append(GpsRecord gpsRecord, byte[] deviceId, byte[] deviceIp)
+        {
+            int length = RECORD_HEADER+deviceId.length+deviceIp.length;
+            if(end+length > buffer.limit())
+            {
+                return false;
+            }
+
+            ByteBuffer record = buffer.duplicate();
+            record.position(end+4);
+            record.putLong(gpsRecord.getSamplingTime());
+            record.putDouble(gpsRecord.getLat());
+            record.putDouble(gpsRecord.getLng());
+            record.putDouble(gpsRecord.getAltitude());
+            record.putDouble(gpsRecord.getSpeed());
+            record.putShort((short) deviceId.length);
+            record.put(deviceId);
+            record.putShort((short) deviceIp.length);
+            record.put(deviceIp);
+
+            // the length is written last, which completes the record
+            buffer.putInt(end,length);
+            index(gpsRecord.getDeviceId(),gpsRecord.getSamplingTime(),end);
+            end += length;
+            return true;
+        }
+
+        /**
+         * stops GPS updates from being appended to the segment, and forces it
+         *   to disk.
+         */
+        public synchronized void seal()
+        {
+            sealed = true;
+            buffer.force();
+        }
+
+        @Override
+        public void scan(String deviceId, long from, long to, List<GpsRecord> records)
+        {
+            int[] positions;
+            int count;
+            synchronized(this)
+            {
+                Offsets offsets = devices.get(deviceId);
+                if(offsets == null || to < minTime || from > maxTime)
+                {
+                    return;
+                }
+                positions = offsets.values;
+                count = offsets.size;
+            }
+
+            for(int i = 0; i < count; i++)
+            {
+                long time = buffer.getLong(positions[i]+4);
+                if(time >= from && time <= to)
+                {
+                    records.add(readRecord(buffer,positions[i]));
+                }
+            }
+        }
+
+        private void index(String deviceId, long time, int position)
+        {
+            Offsets offsets = devices.get(deviceId);
+            if(offsets == null)
+            {
+                offsets = new Offsets();
+                devices.put(deviceId,offsets);
+            }
+            offsets.add(position);
+            minTime = Math.min(minTime,time);
+            maxTime = Math.max(maxTime,time);
+        }
+    }
+
+    //////////////////////
+    // CompactedSegment //
+    //////////////////////
+
+    /**
+     * a segment whose GPS updates are grouped by device, and ordered by
+     *   sampling time, with a sparse index of each device's GPS updates.
+     */
+    private static class CompactedSegment extends Segment
+    {
+        private final MappedByteBuffer buffer;
+        private final long minTime;
+        private final long maxTime;
+
+        /**
+         * true if the segment was rolled up.
+         */
+        private final boolean rolledUp;
+
+        /**
+         * sparse indices of the GPS updates of each device.
+         */
+        private final Map<String,SparseIndex> devices;
+
+        /**
+         * opens a compacted segment.
+         */
+        public CompactedSegment(long id, File dataFile, File indexFile, boolean rolledUp)
+                throws IOException
+        {
+            super(id);
+            this.devices = new HashMap<>();
+            this.rolledUp = rolledUp;
+
+            try (RandomAccessFile raf = new RandomAccessFile(dataFile,"r");
+                    FileChannel channel = raf.getChannel())
+            {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(indexFile,"r");
+                    FileChannel channel = raf.getChannel())
+            {
+                MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+                if(index.getInt() != MAGIC || index.getInt() != VERSION)
+                {
+                    throw new IOException(indexFile+" is not a segment index");
+                }
+                minTime = index.getLong();
+                maxTime = index.getLong();
+                int count = index.getInt();
+                for(int i = 0; i < count; i++)
+                {
+                    String deviceId = readString(index);
+                    int start = index.getInt();
+                    int entries = index.getInt();
+                    long[] times = new long[entries];
+                    int[] offsets = new int[entries];
+                    for(int j = 0; j < entries; j++)
+                    {
+                        times[j] = index.getLong();
+                        offsets[j] = index.getInt();
+                    }
+                    devices.put(deviceId,new SparseIndex(start,index.getInt(),times,offsets));
+                }
+            }
+        }
+
+        @Override
+        public void scan(String deviceId, long from, long to, List<GpsRecord> records)
+        {
+            SparseIndex sparseIndex = devices.get(deviceId);
+            if(sparseIndex == null || to < minTime || from > maxTime)
+            {
+                return;
+            }
+
+            // start at the last indexed GPS update sampled before the range;
+            // every GPS update before it was sampled before the range too
+            int lo = 0;
+            int hi = sparseIndex.times.length;
+            while(lo < hi)
+            {
+                int mid = (lo+hi)>>>1;
+                if(sparseIndex.times[mid] < from)
+                {
+                    lo = mid+1;
+                }
+                else
+                {
+                    hi = mid;
+                }
+            }
+            int position = (lo == 0) ? sparseIndex.start : sparseIndex.offsets[lo-1];
+
+            while(position < sparseIndex.end)
+            {
+                long time = buffer.getLong(position+4);
+                if(time > to)
+                {
+                    break;
+                }
+                if(time >= from)
+                {
+                    records.add(readRecord(buffer,position));
+                }
+                position += buffer.getInt(position);
+            }
+        }
+    }
+
+    /////////////////
+    // SparseIndex //
+    /////////////////
+
+    /**
+     * range of a device's GPS updates in a compacted segment, and the sampling
+     *   times and offsets of every SPARSE_INTERVAL-th one of them.
+     */
+    private static class SparseIndex
+    {
+        private final int start;
+        private final int end;
+        private final long[] times;
+        private final int[] offsets;
+
+        public SparseIndex(int start, int end, long[] times, int[] offsets)
+        {
+            this.start = start;
+            this.end = end;
+            this.times = times;
+            this.offsets = offsets;
+        }
+    }
+
+    /////////////
+    // Offsets //
+    /////////////
+
+    /**
+     * growable list of offsets. the array is replaced when it grows, so a
+     *   reader may keep using the array and size it read under the lock.
+     */
+    private static class Offsets
+    {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        public void add(int value)
+        {
+            if(size == values.length)
+            {
+                values = Arrays.copyOf(values,size*2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    //////////////////////
+    // CompactionThread //
+    //////////////////////
+
+    /**
+     * compacts sealed log segments every compaction interval.
+     */
+    private class CompactionThread extends Thread
+    {
+        private volatile boolean running = true;
+
+        public CompactionThread()
+        {
+            setName("SegmentLogStoreCompaction "+directory);
+            setDaemon(true);
+        }
+
+        /**
+         * stops the thread once the compaction in progress, if any, is done.
+         */
+        public synchronized void cancel()
+        {
+            running = false;
+            notifyAll();
+        }
+
+        @Override
+        public void run()
+        {
+            while(running)
+            {
+                synchronized(this)
+                {
+                    try
+                    {
+                        wait(compactionInterval);
+                    }
+                    catch(InterruptedException e)
+                    {
+                        break;
+                    }
+                    if(!running)
+                    {
+                        break;
+                    }
+                }
+
+                try
+                {
+                    compact();
+                }
+                catch(IOException e)
+                {
+                    System.out.println("failed to compact "+directory+": "+e);
+                }
+            }
+        }
+    }
+}
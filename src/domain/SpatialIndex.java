@@ -0,0 +1,456 @@
+package domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * keeps track of the last known position of every connected device in a grid
+ *   of latitude/longitude cells, so that the devices nearest to a point, or
+ *   within a radius of a point can be found without scanning the database.
+ *
+ * the index is maintained incrementally from GPS updates; a device is only
+ *   moved between cells when it crosses a cell boundary, and is removed when it
+ *   disconnects. the cells and positions are kept in concurrent maps, so
+ *   updates and queries from different threads do not contend on one lock.
+ */
+public class SpatialIndex implements GpsRecordManager.GpsUpdateListener
+{
+    /**
+     * length of one degree of latitude in meters.
+     */
+    public static final double METERS_PER_DEGREE = DeadBandFilter.EARTH_RADIUS*Math.PI/180;
+
+    /**
+     * height and width of a cell in degrees.
+     */
+    private final double cellSize;
+
+    /**
+     * number of columns and rows of cells in the grid.
+     */
+    private final int cols;
+    private final int rows;
+
+    /**
+     * maps cell keys to the ids of the devices in the cell.
+     */
+    private final ConcurrentMap<Long,Set<String>> cells;
+
+    /**
+     * maps device ids to their last known position.
+     */
+    private final ConcurrentMap<String,Entry> positions;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new, empty spatial index.
+     *
+     * @param cellSize height and width of a cell in degrees; should be about
+     *   the radius of typical queries.
+     */
+    public SpatialIndex(double cellSize)
+    {
+        this.cellSize = cellSize;
+        this.cols = (int) Math.ceil(360/cellSize);
+        this.rows = (int) Math.ceil(180/cellSize);
+        this.cells = new ConcurrentHashMap<>();
+        this.positions = new ConcurrentHashMap<>();
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * returns the number of devices in the index.
+     *
+     * @return the number of devices in the index.
+     */
+    public int size()
+    {
+        return positions.size();
+    }
+
+    /**
+     * returns the last known position of the device, or null if the device is
+     *   not in the index.
+     *
+     * @param deviceId id of the device to get the position of.
+     *
+     * @return the last GPS update of the device.
+     */
+    public GpsRecord get(String deviceId)
+    {
+        Entry entry = positions.get(deviceId);
+        return (entry == null) ? null : entry.gpsRecord;
+    }
+
+    /**
+     * returns the last known positions of all devices within radius meters of
+     *   the passed point, ordered by distance.
+     *
+     * @param lat latitude of the point in degrees.
+     * @param lng longitude of the point in degrees.
+     * @param radius radius around the point in meters.
+     *
+     * @return the last GPS updates of the devices within the radius; none if
+     *   the radius is negative.
+     */
+    public List<GpsRecord> withinRadius(double lat, double lng, double radius)
+    {
+        List<Hit> hits = new ArrayList<>();
+        if(!(radius >= 0))
+        {
+            return Collections.emptyList();
+        }
+
+        int row = row(lat);
+        int col = col(lng);
+        int rowSpan = (int) Math.ceil(radius/METERS_PER_DEGREE/cellSize);
+        double cos = Math.cos(Math.toRadians(Math.min(90,Math.abs(lat)+(rowSpan+1)*cellSize)));
+        double cellWidth = cos*METERS_PER_DEGREE*cellSize;
+        int colSpan = (cellWidth <= radius/cols) ? cols : (int) Math.ceil(radius/cellWidth);
+
+        for(int r = Math.max(0,row-rowSpan); r <= Math.min(rows-1,row+rowSpan); r++)
+        {
+            for(int dc = Math.max(-colSpan,minColOffset()); dc <= Math.min(colSpan,maxColOffset()); dc++)
+            {
+                collect(r,col+dc,lat,lng,radius,hits);
+            }
+        }
+
+        return toRecords(hits,hits.size());
+    }
+
+    /**
+     * returns the last known positions of the k devices nearest to the passed
+     *   point, ordered by distance.
+     *
+     * searches rings of cells around the point's cell outwards, until k devices
+     *   were found, and no device in any further ring can be nearer than the
+     *   k-th nearest device found so far. once the rings reach a pole, cells
+     *   of any column may be near, so the rings no longer bound the distance;
+     *   all devices are scanned instead.
+     *
+     * @param lat latitude of the point in degrees.
+     * @param lng longitude of the point in degrees.
+     * @param k maximum number of devices to return.
+     *
+     * @return the last GPS updates of up to k devices nearest to the point;
+     *   none if k is not positive.
+     */
+    public List<GpsRecord> nearest(double lat, double lng, int k)
+    {
+        List<Hit> hits = new ArrayList<>();
+        if(k <= 0)
+        {
+            return Collections.emptyList();
+        }
+        int row = row(lat);
+        int col = col(lng);
+        int maxRing = Math.max(rows,cols/2);
+        int total = positions.size();
+
+        for(int ring = 0; ring <= maxRing && k > 0; ring++)
+        {
+            if(ring > 0 && reachesPole(lat,ring))
+            {
+                hits.clear();
+                collectAll(lat,lng,hits);
+                break;
+            }
+
+            // visit the cells on the border of the ring
+            for(int r = row-ring; r <= row+ring; r++)
+            {
+                if(r < 0 || r >= rows)
+                {
+                    continue;
+                }
+                if(r == row-ring || r == row+ring)
+                {
+                    for(int dc = Math.max(-ring,minColOffset()); dc <= Math.min(ring,maxColOffset()); dc++)
+                    {
+                        collect(r,col+dc,lat,lng,Double.POSITIVE_INFINITY,hits);
+                    }
+                }
+                else
+                {
+                    if(-ring >= minColOffset())
+                    {
+                        collect(r,col-ring,lat,lng,Double.POSITIVE_INFINITY,hits);
+                    }
+                    if(ring <= maxColOffset())
+                    {
+                        collect(r,col+ring,lat,lng,Double.POSITIVE_INFINITY,hits);
+                    }
+                }
+            }
+
+            // stop if no device outside of this ring can be nearer than the
+            // k-th nearest device found so far
+            if(hits.size() >= k)
+            {
+                Collections.sort(hits,HIT_COMPARATOR);
+                double kth = hits.get(k-1).distance;
+                if(kth <= ringDistance(lat,ring) || hits.size() >= total)
+                {
+                    break;
+                }
+            }
+            else if(hits.size() >= total)
+            {
+                break;
+            }
+        }
+
+        return toRecords(hits,k);
+    }
+
+    ////////////////////////////////////////
+    // GpsRecordManager.GpsUpdateListener //
+    ////////////////////////////////////////
+
+    /**
+     * moves the device to its new position, and into a different cell if it
+     *   crossed a cell boundary. GPS updates sent before the device identified
+     *   itself are ignored.
+     */
+    @Override
+    public void onGpsUpdate(GpsRecord gpsRecord)
+    {
+        if(gpsRecord.getDeviceId() == null)
+        {
+            return;
+        }
+        long cell = cellKey(row(gpsRecord.getLat()),col(gpsRecord.getLng()));
+        Entry old = positions.put(gpsRecord.getDeviceId(),new Entry(gpsRecord,cell));
+        if(old == null || old.cell != cell)
+        {
+            cellDevices(cell).add(gpsRecord.getDeviceId());
+            if(old != null)
+            {
+                cellDevices(old.cell).remove(gpsRecord.getDeviceId());
+            }
+        }
+    }
+
+    /**
+     * invoked when Android Clients connect. devices are only added to the
+     *   index once their position is known.
+     */
+    @Override
+    public void onClientConnected(String clientId){}
+
+    /**
+     * removes the device from the index.
+     */
+    @Override
+    public void onClientDisconnected(String clientId)
+    {
+        if(clientId == null)
+        {
+            return;
+        }
+        Entry old = positions.remove(clientId);
+        if(old != null)
+        {
+            cellDevices(old.cell).remove(clientId);
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * orders hits by ascending distance.
+     */
+    private static final Comparator<Hit> HIT_COMPARATOR = new Comparator<Hit>()
+    {
+        @Override
+        public int compare(Hit a, Hit b)
+        {
+            return Double.compare(a.distance,b.distance);
+        }
+    };
+
+    /**
+     * returns the row of the cell that the latitude falls in.
+     */
+    private int row(double lat)
+    {
+        return Math.max(0,Math.min(rows-1,(int) Math.floor((lat+90)/cellSize)));
+    }
+
+    /**
+     * returns the column of the cell that the longitude falls in.
+     */
+    private int col(double lng)
+    {
+        return wrapCol((int) Math.floor((lng+180)/cellSize));
+    }
+
+    /**
+     * wraps a column index around the antimeridian.
+     */
+    private int wrapCol(int col)
+    {
+        return ((col%cols)+cols)%cols;
+    }
+
+    /**
+     * returns the smallest and largest column offset from a cell that still
+     *   reaches a distinct column when wrapping around the antimeridian.
+     */
+    private int minColOffset()
+    {
+        return -(cols/2);
+    }
+
+    private int maxColOffset()
+    {
+        return (cols-1)/2;
+    }
+
+    /**
+     * returns the key of the cell at the row and column.
+     */
+    private static long cellKey(int row, int col)
+    {
+        return ((long) row<<32)|(col&0xffffffffL);
+    }
+
+    /**
+     * returns the set of devices in the cell, creating it if necessary.
+     */
+    private Set<String> cellDevices(long cell)
+    {
+        Set<String> devices = cells.get(cell);
+        if(devices == null)
+        {
+            Set<String> created = Collections.newSetFromMap(
+                    new ConcurrentHashMap<String,Boolean>());
+            devices = cells.putIfAbsent(cell,created);
+            if(devices == null)
+            {
+                devices = created;
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * returns a lower bound of the distance in meters from the point to any
+     *   cell outside of the ring around the point's cell.
+     */
+    private double ringDistance(double lat, int ring)
+    {
+        double cos = Math.cos(Math.toRadians(Math.min(90,Math.abs(lat)+(ring+1)*cellSize)));
+        return ring*cellSize*METERS_PER_DEGREE*Math.max(0,cos);
+    }
+
+    /**
+     * returns true if the ring around the point's cell reaches a pole, beyond
+     *   which ringDistance is no longer a useful bound.
+     */
+    private boolean reachesPole(double lat, int ring)
+    {
+        return Math.abs(lat)+(ring+1)*cellSize >= 90;
+    }
+
+    /**
+     * adds the devices of the cell at the row and column that are within the
+     *   radius of the point to the list of hits. the column may be out of
+     *   range, and is wrapped around the antimeridian.
+     */
+    private void collect(int row, int col, double lat, double lng, double radius, List<Hit> hits)
+    {
+        long cell = cellKey(row,wrapCol(col));
+        Set<String> devices = cells.get(cell);
+        if(devices == null)
+        {
+            return;
+        }
+        for(String deviceId : devices)
+        {
+            // skip devices that are being moved out of this cell
+            Entry entry = positions.get(deviceId);
+            if(entry == null || entry.cell != cell)
+            {
+                continue;
+            }
+            double distance = DeadBandFilter.distance(lat,lng,
+                    entry.gpsRecord.getLat(),entry.gpsRecord.getLng());
+            if(distance <= radius)
+            {
+                hits.add(new Hit(entry.gpsRecord,distance));
+            }
+        }
+    }
+
+    /**
+     * adds every device in the index to the list of hits.
+     */
+    private void collectAll(double lat, double lng, List<Hit> hits)
+    {
+        for(Entry entry : positions.values())
+        {
+            hits.add(new Hit(entry.gpsRecord,DeadBandFilter.distance(lat,lng,
+                    entry.gpsRecord.getLat(),entry.gpsRecord.getLng())));
+        }
+    }
+
+    /**
+     * sorts the hits by distance, and returns the GPS records of up to limit
+     *   hits.
+     */
+    private static List<GpsRecord> toRecords(List<Hit> hits, int limit)
+    {
+        Collections.sort(hits,HIT_COMPARATOR);
+        List<GpsRecord> records = new ArrayList<>(Math.min(limit,hits.size()));
+        for(int i = 0; i < hits.size() && i < limit; i++)
+        {
+            records.add(hits.get(i).gpsRecord);
+        }
+        return records;
+    }
+
+    /**
+     * last known position of a device, and the cell it is in.
+     */
+    private static class Entry
+    {
+        private final GpsRecord gpsRecord;
+        private final long cell;
+
+        public Entry(GpsRecord gpsRecord, long cell)
+        {
+            this.gpsRecord = gpsRecord;
+            this.cell = cell;
+        }
+    }
+
+    /**
+     * a device found by a query, and its distance from the query point.
+     */
+    private static class Hit
+    {
+        private final GpsRecord gpsRecord;
+        private final double distance;
+
+        public Hit(GpsRecord gpsRecord, double distance)
+        {
+            this.gpsRecord = gpsRecord;
+            this.distance = distance;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package domain;
+
+/**
+ * a simple immutable summary of a trip made by a device: where and when it
+ *   started moving, where and when it stopped, how far it went, and how fast
+ *   it went at most. the stops of a device are the gaps between its trips.
+ */
+public class Trip
+{
+    /**
+     * ID of the device that made the trip.
+     */
+    private final String deviceId;
+
+    /**
+     * times the trip started and ended at in Linux epoch time.
+     */
+    private final long startTime;
+    private final long endTime;
+
+    /**
+     * positions the trip started and ended at in degrees.
+     */
+    private final double startLat;
+    private final double startLng;
+    private final double endLat;
+    private final double endLng;
+
+    /**
+     * distance travelled in meters, and maximum speed in meters per second.
+     */
+    private final double distance;
+    private final double maxSpeed;
+
+    /**
+     * instantiates a new trip.
+     *
+     * @param deviceId ID of the device that made the trip.
+     * @param startTime time the trip started at.
+     * @param startLat latitude the trip started at.
+     * @param startLng longitude the trip started at.
+     * @param endTime time the trip ended at.
+     * @param endLat latitude the trip ended at.
+     * @param endLng longitude the trip ended at.
+     * @param distance distance travelled in meters.
+     * @param maxSpeed maximum speed in meters per second.
+     */
+    public Trip(String deviceId, long startTime, double startLat, double startLng,
+            long endTime, double endLat, double endLng, double distance, double maxSpeed)
+    {
+        this.deviceId = deviceId;
+        this.startTime = startTime;
+        this.startLat = startLat;
+        this.startLng = startLng;
+        this.endTime = endTime;
+        this.endLat = endLat;
+        this.endLng = endLng;
+        this.distance = distance;
+        this.maxSpeed = maxSpeed;
+    }
+
+    public String getDeviceId()
+    {
+        return deviceId;
+    }
+
+    public long getStartTime()
+    {
+        return startTime;
+    }
+
+    public double getStartLat()
+    {
+        return startLat;
+    }
+
+    public double getStartLng()
+    {
+        return startLng;
+    }
+
+    public long getEndTime()
+    {
+        return endTime;
+    }
+
+    public double getEndLat()
+    {
+        return endLat;
+    }
+
+    public double getEndLng()
+    {
+        return endLng;
+    }
+
+    public double getDistance()
+    {
+        return distance;
+    }
+
+    public double getMaxSpeed()
+    {
+        return maxSpeed;
+    }
+}
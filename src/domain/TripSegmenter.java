@@ -0,0 +1,510 @@
+package domain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import lib.SlotTable;
+
+/**
+ * splits the GPS updates of every device into trips as they arrive, and
+ *   notifies registered listeners with a summary of each trip once it ends, so
+ *   that reports can read trips and stops rather than scanning raw GPS
+ *   updates.
+ *
+ * each device runs a small state machine. a trip starts when the device
+ *   moves faster than STOP_SPEED; it ends once the device has been slower than
+ *   that for STOP_DWELL, at the position where it slowed down, or when the
+ *   device sends nothing for MAX_GAP, at its last position. trips shorter than
+ *   MIN_TRIP_DISTANCE are GPS noise, and are discarded.
+ *
+ * a device that is switched off mid-trip sends no further GPS update to end
+ *   its trip with, so a sweep thread started with start ends the trips of
+ *   devices that were not heard from for MAX_GAP every SWEEP_INTERVAL. the
+ *   state of a device is released once it disconnected, and is not on a trip.
+ *
+ * the state of each device is kept in primitive arrays indexed by a
+ *   SlotTable, so a GPS update costs a few array accesses, and one distance
+ *   computation. GPS updates older than the last one of their device are
+ *   ignored.
+ */
+public class TripSegmenter implements GpsRecordManager.GpsUpdateListener
+{
+    /**
+     * speed in meters per second below which a device is stopping.
+     */
+    public static final double STOP_SPEED = 1;
+
+    /**
+     * time in milliseconds a device must stay below STOP_SPEED for its trip to
+     *   end.
+     */
+    public static final long STOP_DWELL = 3*60*1000;
+
+    /**
+     * time in milliseconds without GPS updates after which a trip ends; longer
+     *   than the heartbeat interval of the dead-band filter, so parked devices
+     *   that only send heartbeats are not mistaken for gone.
+     */
+    public static final long MAX_GAP = 10*60*1000;
+
+    /**
+     * minimum distance in meters of a trip.
+     */
+    public static final double MIN_TRIP_DISTANCE = 100;
+
+    /**
+     * time in milliseconds between sweeps for devices that went quiet.
+     */
+    public static final long SWEEP_INTERVAL = 60*1000;
+
+    /**
+     * maps device ids to indices into the state arrays.
+     */
+    private final SlotTable devices;
+
+    /**
+     * id of the device each slot belongs to; null if the slot is free.
+     */
+    private String[] deviceIds;
+
+    /**
+     * true if the device disconnected since its last GPS update.
+     */
+    private boolean[] disconnected;
+
+    /**
+     * time in milliseconds, by the clock of the server, the last GPS update of
+     *   each device arrived at.
+     */
+    private long[] lastArrival;
+
+    /**
+     * true if the device is on a trip, and true if it has been slower than
+     *   STOP_SPEED since slowTime.
+     */
+    private boolean[] moving;
+    private boolean[] slow;
+
+    /**
+     * time, and position of the last GPS update of each device.
+     */
+    private long[] lastTime;
+    private double[] lastLat;
+    private double[] lastLng;
+
+    /**
+     * time, and position the current trip started at, the distance travelled
+     *   since, and the maximum speed.
+     */
+    private long[] startTime;
+    private double[] startLat;
+    private double[] startLng;
+    private double[] distance;
+    private double[] maxSpeed;
+
+    /**
+     * time, and position the device slowed down at, and the distance of the
+     *   trip up to there.
+     */
+    private long[] slowTime;
+    private double[] slowLat;
+    private double[] slowLng;
+    private double[] slowDistance;
+
+    /**
+     * listeners notified of trips.
+     */
+    private final Set<TripListener> registeredListeners;
+
+    /**
+     * thread that ends the trips of devices that went quiet; null if it is not
+     *   running.
+     */
+    private SweepThread sweepThread;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new trip segmenter.
+     */
+    public TripSegmenter()
+    {
+        this.devices = new SlotTable();
+        this.registeredListeners = new LinkedHashSet<>();
+        this.deviceIds = new String[0];
+        this.disconnected = new boolean[0];
+        this.lastArrival = new long[0];
+        this.moving = new boolean[0];
+        this.slow = new boolean[0];
+        this.lastTime = new long[0];
+        this.lastLat = new double[0];
+        this.lastLng = new double[0];
+        this.startTime = new long[0];
+        this.startLat = new double[0];
+        this.startLng = new double[0];
+        this.distance = new double[0];
+        this.maxSpeed = new double[0];
+        this.slowTime = new long[0];
+        this.slowLat = new double[0];
+        this.slowLng = new double[0];
+        this.slowDistance = new double[0];
+    }
+
+    /**
+     * interface for a listener that is notified when a device ends a trip.
+     */
+    public interface TripListener
+    {
+        public void onTrip(Trip trip);
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * adds a trip listener to the segmenter.
+     *
+     * @param listener reference to the listener to register.
+     */
+    public synchronized void registerListener(TripListener listener)
+    {
+        registeredListeners.add(listener);
+    }
+
+    /**
+     * removes a trip listener from the segmenter.
+     *
+     * @param listener reference to the listener to unregister.
+     */
+    public synchronized void unregisterListener(TripListener listener)
+    {
+        registeredListeners.remove(listener);
+    }
+
+    /**
+     * starts ending the trips of devices that went quiet every SWEEP_INTERVAL.
+     */
+    public synchronized void start()
+    {
+        if(sweepThread == null)
+        {
+            sweepThread = new SweepThread();
+            sweepThread.start();
+        }
+    }
+
+    /**
+     * stops ending the trips of devices that went quiet.
+     */
+    public synchronized void stop()
+    {
+        if(sweepThread != null)
+        {
+            sweepThread.interrupt();
+            sweepThread = null;
+        }
+    }
+
+    /**
+     * ends the trips of devices whose last GPS update arrived MAX_GAP or
+     *   longer ago, at their last position, notifying listeners, and releases
+     *   the state of those that disconnected.
+     *
+     * @param now current time in milliseconds.
+     *
+     * @return number of trips that were ended.
+     */
+    public int sweep(long now)
+    {
+        List<Trip> trips = new ArrayList<>();
+        Set<TripListener> listeners;
+
+        synchronized(this)
+        {
+            for(int slot = 0; slot < devices.capacity(); slot++)
+            {
+                String deviceId = deviceIds[slot];
+                if(deviceId == null || now-lastArrival[slot] < MAX_GAP)
+                {
+                    continue;
+                }
+                if(moving[slot])
+                {
+                    Trip trip = endTrip(slot,deviceId,lastTime[slot],
+                            lastLat[slot],lastLng[slot],distance[slot]);
+                    if(trip.getDistance() >= MIN_TRIP_DISTANCE)
+                    {
+                        trips.add(trip);
+                    }
+                }
+                if(disconnected[slot])
+                {
+                    release(slot);
+                }
+            }
+            if(trips.isEmpty())
+            {
+                return 0;
+            }
+            listeners = new LinkedHashSet<>(registeredListeners);
+        }
+
+        // notify listeners outside of the lock
+        for(Trip trip : trips)
+        {
+            for(TripListener listener : listeners)
+            {
+                listener.onTrip(trip);
+            }
+        }
+        return trips.size();
+    }
+
+    /**
+     * returns the number of devices whose state is kept.
+     *
+     * @return the number of devices whose state is kept.
+     */
+    public synchronized int getDeviceCount()
+    {
+        return devices.size();
+    }
+
+    ////////////////////////////////////////
+    // GpsRecordManager.GpsUpdateListener //
+    ////////////////////////////////////////
+
+    /**
+     * advances the state machine of the device, and notifies listeners if the
+     *   GPS update ended its trip.
+     */
+    @Override
+    public void onGpsUpdate(GpsRecord gpsRecord)
+    {
+        Trip trip = null;
+        Set<TripListener> listeners;
+
+        synchronized(this)
+        {
+            boolean known = devices.find(gpsRecord.getDeviceId()) != -1;
+            int slot = devices.acquire(gpsRecord.getDeviceId());
+            ensureCapacity(slot);
+            deviceIds[slot] = gpsRecord.getDeviceId();
+            disconnected[slot] = false;
+            lastArrival[slot] = System.currentTimeMillis();
+            long time = gpsRecord.getSamplingTime();
+            double lat = gpsRecord.getLat();
+            double lng = gpsRecord.getLng();
+            double speed = gpsRecord.getSpeed();
+            if(known && time <= lastTime[slot])
+            {
+                return;
+            }
+            boolean gap = known && time-lastTime[slot] >= MAX_GAP;
+
+            if(moving[slot])
+            {
+                if(gap)
+                {
+                    // the device went quiet; the trip ended where it was last
+                    // heard from
+                    trip = endTrip(slot,gpsRecord.getDeviceId(),lastTime[slot],
+                            lastLat[slot],lastLng[slot],distance[slot]);
+                }
+                else
+                {
+                    distance[slot] += DeadBandFilter.distance(lastLat[slot],lastLng[slot],lat,lng);
+                    maxSpeed[slot] = Math.max(maxSpeed[slot],speed);
+                    if(speed >= STOP_SPEED)
+                    {
+                        slow[slot] = false;
+                    }
+                    else if(!slow[slot])
+                    {
+                        slow[slot] = true;
+                        slowTime[slot] = time;
+                        slowLat[slot] = lat;
+                        slowLng[slot] = lng;
+                        slowDistance[slot] = distance[slot];
+                    }
+                    else if(time-slowTime[slot] >= STOP_DWELL)
+                    {
+                        // the trip ended where the device slowed down
+                        trip = endTrip(slot,gpsRecord.getDeviceId(),slowTime[slot],
+                                slowLat[slot],slowLng[slot],slowDistance[slot]);
+                    }
+                }
+            }
+
+            if(!moving[slot] && speed >= STOP_SPEED)
+            {
+                // the trip starts where the device was stopped, unless it was
+                // not heard from in a while
+                moving[slot] = true;
+                slow[slot] = false;
+                if(known && !gap)
+                {
+                    startTime[slot] = lastTime[slot];
+                    startLat[slot] = lastLat[slot];
+                    startLng[slot] = lastLng[slot];
+                    distance[slot] = DeadBandFilter.distance(lastLat[slot],lastLng[slot],lat,lng);
+                }
+                else
+                {
+                    startTime[slot] = time;
+                    startLat[slot] = lat;
+                    startLng[slot] = lng;
+                    distance[slot] = 0;
+                }
+                maxSpeed[slot] = speed;
+            }
+
+            lastTime[slot] = time;
+            lastLat[slot] = lat;
+            lastLng[slot] = lng;
+            if(trip == null || trip.getDistance() < MIN_TRIP_DISTANCE)
+            {
+                return;
+            }
+            listeners = new LinkedHashSet<>(registeredListeners);
+        }
+
+        // notify listeners outside of the lock
+        for(TripListener listener : listeners)
+        {
+            listener.onTrip(trip);
+        }
+    }
+
+    /**
+     * invoked when Android Clients connect; keeps the state of the device
+     *   if it reconnected.
+     */
+    @Override
+    public synchronized void onClientConnected(String clientId)
+    {
+        int slot = devices.find(clientId);
+        if(slot != -1)
+        {
+            disconnected[slot] = false;
+        }
+    }
+
+    /**
+     * invoked when Android Clients disconnect. trips carry on across
+     *   reconnections, so the state of a device on a trip is kept until the
+     *   device reconnects, or the sweep ends its trip; it is released at once
+     *   otherwise.
+     */
+    @Override
+    public synchronized void onClientDisconnected(String clientId)
+    {
+        int slot = devices.find(clientId);
+        if(slot != -1)
+        {
+            if(moving[slot])
+            {
+                disconnected[slot] = true;
+            }
+            else
+            {
+                release(slot);
+            }
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * ends the trip of a device, returning its summary.
+     */
+    private Trip endTrip(int slot, String deviceId, long time, double lat, double lng,
+            double tripDistance)
+    {
+        moving[slot] = false;
+        slow[slot] = false;
+        return new Trip(deviceId,startTime[slot],startLat[slot],startLng[slot],
+                time,lat,lng,tripDistance,maxSpeed[slot]);
+    }
+
+    /**
+     * releases the slot of a device, so it can be reused by another device.
+     */
+    private void release(int slot)
+    {
+        devices.release(deviceIds[slot]);
+        deviceIds[slot] = null;
+        disconnected[slot] = false;
+        moving[slot] = false;
+        slow[slot] = false;
+    }
+
+    /**
+     * grows the state arrays so they can hold the passed slot.
+     */
+    private void ensureCapacity(int slot)
+    {
+        if(slot >= lastTime.length)
+        {
+            int length = SlotTable.grownLength(lastTime.length,slot);
+            deviceIds = Arrays.copyOf(deviceIds,length);
+            disconnected = Arrays.copyOf(disconnected,length);
+            lastArrival = Arrays.copyOf(lastArrival,length);
+            moving = Arrays.copyOf(moving,length);
+            slow = Arrays.copyOf(slow,length);
+            lastTime = Arrays.copyOf(lastTime,length);
+            lastLat = Arrays.copyOf(lastLat,length);
+            lastLng = Arrays.copyOf(lastLng,length);
+            startTime = Arrays.copyOf(startTime,length);
+            startLat = Arrays.copyOf(startLat,length);
+            startLng = Arrays.copyOf(startLng,length);
+            distance = Arrays.copyOf(distance,length);
+            maxSpeed = Arrays.copyOf(maxSpeed,length);
+            slowTime = Arrays.copyOf(slowTime,length);
+            slowLat = Arrays.copyOf(slowLat,length);
+            slowLng = Arrays.copyOf(slowLng,length);
+            slowDistance = Arrays.copyOf(slowDistance,length);
+        }
+    }
+
+    /////////////////
+    // SweepThread //
+    /////////////////
+
+    /**
+     * ends the trips of devices that went quiet every SWEEP_INTERVAL.
+     */
+    private class SweepThread extends Thread
+    {
+        public SweepThread()
+        {
+            setName("TripSegmenter");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                try
+                {
+                    Thread.sleep(SWEEP_INTERVAL);
+                }
+                catch(InterruptedException e)
+                {
+                    break;
+                }
+                sweep(System.currentTimeMillis());
+            }
+        }
+    }
+}
@@ -0,0 +1,598 @@
+package domain;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import lib.SlotTable;
+
+/**
+ * receives GPS updates from high frequency trackers as UDP datagrams, and
+ *   dispatches them to a GpsRecordManager, alongside the AndroidClientServer.
+ *
+ * every datagram carries one GPS update: the device's token and ID as length
+ *   prefixed UTF-8 strings, a sequence number as a long, the sampling time as
+ *   a long, and the latitude, longitude, altitude and speed as doubles.
+ *   datagrams whose token does not match the device's token are dropped.
+ *
+ * datagrams are deduplicated by sequence number using a sliding window of the
+ *   last 64 sequence numbers of each device. per device, the number of
+ *   received, duplicate, reordered and late datagrams are counted, and the
+ *   number of lost datagrams is estimated from gaps in the sequence numbers.
+ *   this state is kept in parallel primitive arrays indexed by a SlotTable. a
+ *   sequence number far below the highest one means the tracker restarted its
+ *   sequence, e.g. after a reboot, so the window is seeded from it again. the
+ *   statistics of a device are logged when it goes idle, and added to totals
+ *   over all devices.
+ *
+ * a single thread receives datagrams; on every wake up, it drains as many
+ *   datagrams as are available, up to the number of pooled direct buffers,
+ *   before decoding and dispatching them. since there are no connections, a
+ *   device is dispatched as connected when its first datagram arrives, and as
+ *   disconnected once it has not sent anything for the idle timeout.
+ */
+public class UdpIngestServer
+{
+    /**
+     * maximum size of a datagram, and number of datagrams received per wake
+     *   up.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 512;
+    public static final int RECEIVE_BATCH     = 64;
+
+    /**
+     * size of the deduplication window in sequence numbers.
+     */
+    public static final int WINDOW = 64;
+
+    /**
+     * distance in sequence numbers below the highest one, beyond which a
+     *   datagram is taken as the start of a restarted sequence rather than as
+     *   late.
+     */
+    public static final int RESET_DISTANCE = 16*WINDOW;
+
+    /**
+     * channel that datagrams are received on.
+     */
+    private final DatagramChannel channel;
+
+    /**
+     * manager to dispatch GPS updates to.
+     */
+    private final GpsRecordManager gpsRecordsManager;
+
+    /**
+     * tokens of the devices that may send GPS updates, by device ID.
+     */
+    private final Map<String,String> deviceTokens;
+
+    /**
+     * time in milliseconds a device may go without sending anything before it
+     *   is dispatched as disconnected.
+     */
+    private final long idleTimeout;
+
+    /**
+     * maps device ids to indices into the arrays below.
+     */
+    private final SlotTable devices;
+
+    /**
+     * per device highest sequence number, bitmap of the sequence numbers
+     *   received in the window below it, first sequence number, number of
+     *   datagrams expected before the sequence was last restarted, time of the
+     *   last datagram, and datagram counters.
+     */
+    private long[] highestSeq;
+    private long[] window;
+    private long[] firstSeq;
+    private long[] priorExpected;
+    private long[] lastSeen;
+    private long[] received;
+    private long[] duplicates;
+    private long[] reordered;
+    private long[] late;
+    private long[] resets;
+
+    /**
+     * datagram statistics of devices that have gone idle, summed.
+     */
+    private Stats idleTotals;
+
+    /**
+     * number of datagrams dropped because they were malformed, or failed
+     *   authentication.
+     */
+    private long rejectedCount;
+
+    /**
+     * thread receiving datagrams.
+     */
+    private ReceiveThread receiveThread;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new UdpIngestServer.
+     *
+     * @param port port to receive datagrams on.
+     * @param gpsRecordsManager manager to dispatch GPS updates to.
+     * @param deviceTokens tokens of the devices that may send GPS updates, by
+     *   device ID.
+     * @param idleTimeout time in milliseconds a device may go without sending
+     *   anything before it is dispatched as disconnected.
+     *
+     * @throws IOException if the port could not be bound.
+     */
+    public UdpIngestServer(int port, GpsRecordManager gpsRecordsManager,
+            Map<String,String> deviceTokens, long idleTimeout) throws IOException
+    {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(port));
+        this.channel.configureBlocking(false);
+        this.gpsRecordsManager = gpsRecordsManager;
+        this.deviceTokens = deviceTokens;
+        this.idleTimeout = idleTimeout;
+        this.devices = new SlotTable();
+        this.highestSeq = new long[0];
+        this.window = new long[0];
+        this.firstSeq = new long[0];
+        this.priorExpected = new long[0];
+        this.lastSeen = new long[0];
+        this.received = new long[0];
+        this.duplicates = new long[0];
+        this.reordered = new long[0];
+        this.late = new long[0];
+        this.resets = new long[0];
+        this.idleTotals = new Stats(0,0,0,0,0,0);
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * starts receiving datagrams.
+     */
+    public void start()
+    {
+        if(receiveThread == null)
+        {
+            receiveThread = new ReceiveThread();
+            receiveThread.start();
+        }
+    }
+
+    /**
+     * stops receiving datagrams.
+     */
+    public void stop()
+    {
+        if(receiveThread != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+            receiveThread = null;
+        }
+    }
+
+    /**
+     * returns the datagram statistics of the device, or null if the device has
+     *   not sent anything, or has been idle for the idle timeout.
+     *
+     * @param deviceId ID of the device.
+     *
+     * @return the datagram statistics of the device.
+     */
+    public synchronized Stats getStats(String deviceId)
+    {
+        int slot = devices.find(deviceId);
+        return (slot < 0) ? null : stats(slot);
+    }
+
+    /**
+     * returns the datagram statistics of all devices that have sent anything
+     *   since the server was started, summed.
+     *
+     * @return the datagram statistics of all devices.
+     */
+    public synchronized Stats getTotals()
+    {
+        Stats totals = idleTotals;
+        for(String deviceId : deviceTokens.keySet())
+        {
+            int slot = devices.find(deviceId);
+            if(slot >= 0)
+            {
+                totals = totals.plus(stats(slot));
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * returns the number of datagrams dropped because they were malformed, or
+     *   failed authentication.
+     *
+     * @return the number of datagrams that were rejected.
+     */
+    public synchronized long getRejectedCount()
+    {
+        return rejectedCount;
+    }
+
+    ///////////
+    // Stats //
+    ///////////
+
+    /**
+     * a simple immutable object that contains the datagram statistics of a
+     *   device.
+     */
+    public static class Stats
+    {
+        private final long received;
+        private final long duplicates;
+        private final long reordered;
+        private final long late;
+        private final long lost;
+        private final long resets;
+
+        public Stats(long received, long duplicates, long reordered, long late, long lost, long resets)
+        {
+            this.received = received;
+            this.duplicates = duplicates;
+            this.reordered = reordered;
+            this.late = late;
+            this.lost = lost;
+            this.resets = resets;
+        }
+
+        /**
+         * number of distinct datagrams received.
+         */
+        public long getReceived()
+        {
+            return received;
+        }
+
+        /**
+         * number of datagrams dropped because they had been received before.
+         */
+        public long getDuplicates()
+        {
+            return duplicates;
+        }
+
+        /**
+         * number of datagrams received after a datagram with a higher sequence
+         *   number.
+         */
+        public long getReordered()
+        {
+            return reordered;
+        }
+
+        /**
+         * number of datagrams dropped because they were older than the
+         *   deduplication window.
+         */
+        public long getLate()
+        {
+            return late;
+        }
+
+        /**
+         * estimated number of datagrams that were lost.
+         */
+        public long getLost()
+        {
+            return lost;
+        }
+
+        /**
+         * number of times the sequence numbers were restarted.
+         */
+        public long getResets()
+        {
+            return resets;
+        }
+
+        /**
+         * returns the sum of these, and the passed statistics.
+         */
+        public Stats plus(Stats other)
+        {
+            return new Stats(received+other.received,duplicates+other.duplicates,
+                    reordered+other.reordered,late+other.late,lost+other.lost,resets+other.resets);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "received="+received+" duplicates="+duplicates+" reordered="+reordered
+                    +" late="+late+" lost="+lost+" resets="+resets;
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * decodes a datagram, and dispatches it if it is authentic, and has not
+     *   been received before.
+     *
+     * @param buf buffer holding the datagram.
+     * @param sender address of the sender.
+     */
+    private void process(ByteBuffer buf, SocketAddress sender)
+    {
+        GpsRecord gpsRecord;
+        long seq;
+        try
+        {
+            String token = readString(buf);
+            String deviceId = readString(buf);
+            seq = buf.getLong();
+            String expectedToken = deviceTokens.get(deviceId);
+            if(expectedToken == null || !expectedToken.equals(token))
+            {
+                synchronized(this)
+                {
+                    ++rejectedCount;
+                }
+                return;
+            }
+
+            InetSocketAddress address = (InetSocketAddress) sender;
+            gpsRecord = new GpsRecord(deviceId,
+                    address.getAddress().getHostAddress()+":"+address.getPort(),
+                    buf.getLong(),buf.getDouble(),buf.getDouble(),buf.getDouble(),buf.getDouble());
+        }
+        catch (BufferUnderflowException e)
+        {
+            synchronized(this)
+            {
+                ++rejectedCount;
+            }
+            return;
+        }
+
+        boolean connected;
+        synchronized(this)
+        {
+            int slot = devices.find(gpsRecord.getDeviceId());
+            connected = slot < 0;
+            if(connected)
+            {
+                slot = devices.acquire(gpsRecord.getDeviceId());
+                ensureCapacity(slot);
+                highestSeq[slot] = seq;
+                window[slot] = 1;
+                firstSeq[slot] = seq;
+                priorExpected[slot] = 0;
+                received[slot] = 1;
+                duplicates[slot] = 0;
+                reordered[slot] = 0;
+                late[slot] = 0;
+                resets[slot] = 0;
+            }
+
+            // duplicates, and late datagrams still show the device is there
+            lastSeen[slot] = System.currentTimeMillis();
+            if(!connected && !accept(slot,seq))
+            {
+                return;
+            }
+        }
+
+        if(connected)
+        {
+            gpsRecordsManager.dispatchConnection(gpsRecord.getDeviceId());
+        }
+        gpsRecordsManager.dispatchGpsUpdate(gpsRecord);
+    }
+
+    /**
+     * updates the deduplication window of the device with the sequence
+     *   number, and returns true if it has not been received before. must be
+     *   called while synchronized on this.
+     */
+    private boolean accept(int slot, long seq)
+    {
+        long offset = highestSeq[slot]-seq;
+        if(offset < 0)
+        {
+            // newer than anything received so far; slide the window
+            window[slot] = (-offset >= WINDOW) ? 1 : (window[slot]<<-offset)|1;
+            highestSeq[slot] = seq;
+        }
+        else if(offset >= RESET_DISTANCE)
+        {
+            // the tracker restarted its sequence; start a new window from it
+            priorExpected[slot] += highestSeq[slot]-firstSeq[slot]+1;
+            highestSeq[slot] = seq;
+            window[slot] = 1;
+            firstSeq[slot] = seq;
+            ++resets[slot];
+        }
+        else if(offset >= WINDOW)
+        {
+            ++late[slot];
+            return false;
+        }
+        else if((window[slot]&(1L<<offset)) != 0)
+        {
+            ++duplicates[slot];
+            return false;
+        }
+        else
+        {
+            window[slot] |= 1L<<offset;
+            ++reordered[slot];
+        }
+        firstSeq[slot] = Math.min(firstSeq[slot],seq);
+        ++received[slot];
+        return true;
+    }
+
+    /**
+     * returns the datagram statistics of the device in the slot. must be
+     *   called while synchronized on this.
+     */
+    private Stats stats(int slot)
+    {
+        long expected = priorExpected[slot]+highestSeq[slot]-firstSeq[slot]+1;
+        return new Stats(received[slot],duplicates[slot],reordered[slot],late[slot],
+                Math.max(0,expected-received[slot]),resets[slot]);
+    }
+
+    /**
+     * dispatches devices that have been idle for the idle timeout as
+     *   disconnected, logging their datagram statistics.
+     */
+    private void expireIdleDevices()
+    {
+        List<String> expired = new ArrayList<>();
+        List<Stats> expiredStats = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized(this)
+        {
+            for(String deviceId : deviceTokens.keySet())
+            {
+                int slot = devices.find(deviceId);
+                if(slot >= 0 && now-lastSeen[slot] >= idleTimeout)
+                {
+                    Stats stats = stats(slot);
+                    idleTotals = idleTotals.plus(stats);
+                    devices.release(deviceId);
+                    expired.add(deviceId);
+                    expiredStats.add(stats);
+                }
+            }
+        }
+        for(int i = 0; i < expired.size(); i++)
+        {
+            System.out.println("udp device "+expired.get(i)+" went idle: "+expiredStats.get(i));
+            gpsRecordsManager.dispatchDisconnection(expired.get(i));
+        }
+    }
+
+    /**
+     * grows the state arrays so they can hold the passed slot.
+     */
+    private void ensureCapacity(int slot)
+    {
+        if(slot >= highestSeq.length)
+        {
+            int length = SlotTable.grownLength(highestSeq.length,slot);
+            highestSeq = Arrays.copyOf(highestSeq,length);
+            window = Arrays.copyOf(window,length);
+            firstSeq = Arrays.copyOf(firstSeq,length);
+            priorExpected = Arrays.copyOf(priorExpected,length);
+            lastSeen = Arrays.copyOf(lastSeen,length);
+            received = Arrays.copyOf(received,length);
+            duplicates = Arrays.copyOf(duplicates,length);
+            reordered = Arrays.copyOf(reordered,length);
+            late = Arrays.copyOf(late,length);
+            resets = Arrays.copyOf(resets,length);
+        }
+    }
+
+    private static String readString(ByteBuffer buf)
+    {
+        int length = buf.getShort()&0xffff;
+        if(length > buf.remaining())
+        {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes,StandardCharsets.UTF_8);
+    }
+
+    ///////////////////
+    // ReceiveThread //
+    ///////////////////
+
+    /**
+     * receives datagrams in batches, and expires idle devices.
+     */
+    private class ReceiveThread extends Thread
+    {
+        public ReceiveThread()
+        {
+            setName("UdpReceiveThread "+channel.socket().getLocalPort());
+        }
+
+        @Override
+        public void run()
+        {
+            ByteBuffer[] buffers = new ByteBuffer[RECEIVE_BATCH];
+            SocketAddress[] senders = new SocketAddress[RECEIVE_BATCH];
+            for(int i = 0; i < buffers.length; i++)
+            {
+                buffers[i] = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+            }
+            long nextExpiry = System.currentTimeMillis()+idleTimeout/4;
+
+            try (Selector selector = Selector.open())
+            {
+                channel.register(selector,SelectionKey.OP_READ);
+                while(channel.isOpen())
+                {
+                    selector.select(Math.max(1,idleTimeout/4));
+                    selector.selectedKeys().clear();
+
+                    // drain as many datagrams as are available
+                    int count = 0;
+                    while(count < buffers.length)
+                    {
+                        buffers[count].clear();
+                        senders[count] = channel.receive(buffers[count]);
+                        if(senders[count] == null)
+                        {
+                            break;
+                        }
+                        buffers[count].flip();
+                        ++count;
+                    }
+                    for(int i = 0; i < count; i++)
+                    {
+                        process(buffers[i],senders[i]);
+                    }
+
+                    if(System.currentTimeMillis() >= nextExpiry)
+                    {
+                        expireIdleDevices();
+                        nextExpiry = System.currentTimeMillis()+idleTimeout/4;
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // channel closed
+            }
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package domain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * publishes the events of a GpsRecordManager as a sequenced stream that
+ *   gateway processes can subscribe to with an UpdateStreamSubscriber.
+ *
+ * every event is encoded once with GpsEventCodec, numbered, and kept in a ring
+ *   buffer of recent events. a subscriber connects, and sends the epoch and
+ *   sequence number of the last event it has seen; the publisher replies with
+ *   its own epoch. if the events after it are still in the ring buffer, they
+ *   are replayed; otherwise, the subscriber is sent a reset, followed by the
+ *   connected devices and their last positions, and a snapshot end, before it
+ *   continues with live events. a subscriber that falls further behind
+ *   than the ring buffer is reset the same way, so a slow subscriber never
+ *   slows down ingest.
+ *
+ * each frame on the stream is the sequence number of the event as a long,
+ *   followed by the event. batches of GPS updates are published as one event.
+ */
+public class UpdateStreamPublisher implements GpsRecordManager.GpsBatchListener
+{
+    /**
+     * sequence number sent by subscribers that have not seen any events yet,
+     *   or that must be sent a snapshot.
+     */
+    public static final long NO_SEQUENCE = -1;
+
+    /**
+     * identifies this run of the publisher; sequence numbers are only
+     *   meaningful within the same epoch.
+     */
+    private final long epoch;
+
+    /**
+     * socket used to accept subscribers.
+     */
+    private final ServerSocket serverSock;
+
+    /**
+     * ring buffer of recently published events; the event with sequence
+     *   number n is at index n%capacity.
+     */
+    private final byte[][] ring;
+
+    /**
+     * sequence number of the last published event.
+     */
+    private long lastSequence;
+
+    /**
+     * connected devices, and their last GPS update, or null if they have not
+     *   sent one yet. used to bring subscribers that are too far behind up to
+     *   date.
+     */
+    private final Map<String,GpsRecord> devices;
+
+    /**
+     * threads sending events to subscribers.
+     */
+    private final List<SubscriberThread> subscribers;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new update stream publisher.
+     *
+     * @param port port to accept subscribers on.
+     * @param capacity number of recent events to keep for subscribers that
+     *   reconnect.
+     *
+     * @throws IOException if the port could not be bound.
+     */
+    public UpdateStreamPublisher(int port, int capacity) throws IOException
+    {
+        this.epoch = System.currentTimeMillis();
+        this.serverSock = new ServerSocket(port);
+        this.ring = new byte[capacity][];
+        this.lastSequence = NO_SEQUENCE;
+        this.devices = new LinkedHashMap<>();
+        this.subscribers = new ArrayList<>();
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * starts accepting subscribers.
+     */
+    public void start()
+    {
+        new AcceptThread().start();
+    }
+
+    /**
+     * stops accepting subscribers, and disconnects all of them.
+     */
+    public void stop()
+    {
+        try
+        {
+            serverSock.close();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        synchronized(this)
+        {
+            for(SubscriberThread subscriber : subscribers)
+            {
+                subscriber.cancel();
+            }
+            subscribers.clear();
+        }
+    }
+
+    /**
+     * returns the sequence number of the last published event.
+     *
+     * @return the sequence number of the last published event.
+     */
+    public synchronized long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    ////////////////////////////////////////
+    // GpsRecordManager.GpsUpdateListener //
+    ////////////////////////////////////////
+
+    /**
+     * publishes the GPS update; GPS updates of devices that are not identified
+     *   yet are not published.
+     */
+    @Override
+    public void onGpsUpdate(GpsRecord gpsRecord)
+    {
+        if(gpsRecord.getDeviceId() == null)
+        {
+            return;
+        }
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            GpsEventCodec.writeGpsUpdate(new DataOutputStream(bytes),gpsRecord);
+            synchronized(this)
+            {
+                devices.put(gpsRecord.getDeviceId(),gpsRecord);
+                publish(bytes.toByteArray());
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * publishes the batch of GPS updates as one event; batches of devices that
+     *   are not identified yet are not published.
+     */
+    @Override
+    public void onGpsBatch(List<GpsRecord> gpsRecords)
+    {
+        // batches only ever hold the updates of one device
+        if(gpsRecords.isEmpty() || gpsRecords.get(0).getDeviceId() == null)
+        {
+            return;
+        }
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64*gpsRecords.size());
+            GpsEventCodec.writeGpsBatch(new DataOutputStream(bytes),gpsRecords);
+            synchronized(this)
+            {
+                for(GpsRecord gpsRecord : gpsRecords)
+                {
+                    devices.put(gpsRecord.getDeviceId(),gpsRecord);
+                }
+                publish(bytes.toByteArray());
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * publishes the connection.
+     */
+    @Override
+    public void onClientConnected(String clientId)
+    {
+        if(clientId == null)
+        {
+            return;
+        }
+        byte[] event = encodeConnectionEvent(GpsEventCodec.TYPE_CONNECTED,clientId);
+        synchronized(this)
+        {
+            if(!devices.containsKey(clientId))
+            {
+                devices.put(clientId,null);
+            }
+            publish(event);
+        }
+    }
+
+    /**
+     * publishes the disconnection.
+     */
+    @Override
+    public void onClientDisconnected(String clientId)
+    {
+        if(clientId == null)
+        {
+            return;
+        }
+        byte[] event = encodeConnectionEvent(GpsEventCodec.TYPE_DISCONNECTED,clientId);
+        synchronized(this)
+        {
+            devices.remove(clientId);
+            publish(event);
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * appends an encoded event to the ring buffer, and wakes up subscribers
+     *   waiting for it. must be called while synchronized on this.
+     */
+    private void publish(byte[] event)
+    {
+        ++lastSequence;
+        ring[(int) (lastSequence%ring.length)] = event;
+        notifyAll();
+    }
+
+    /**
+     * encodes a connection event.
+     */
+    private static byte[] encodeConnectionEvent(byte type, String clientId)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            GpsEventCodec.writeConnectionEvent(new DataOutputStream(bytes),type,clientId);
+            return bytes.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * returns the events that bring a subscriber up to date from scratch: a
+     *   reset, followed by a connection and the last GPS update of every
+     *   connected device, and a snapshot end. every event carries the sequence
+     *   number of the last published event, which the subscriber only resumes
+     *   from once it has received the snapshot end. must be called while
+     *   synchronized on this.
+     */
+    private byte[] encodeSnapshot() throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(lastSequence);
+        GpsEventCodec.writeReset(out);
+        for(Map.Entry<String,GpsRecord> device : devices.entrySet())
+        {
+            out.writeLong(lastSequence);
+            GpsEventCodec.writeConnectionEvent(out,GpsEventCodec.TYPE_CONNECTED,device.getKey());
+            if(device.getValue() != null)
+            {
+                out.writeLong(lastSequence);
+                GpsEventCodec.writeGpsUpdate(out,device.getValue());
+            }
+        }
+        out.writeLong(lastSequence);
+        GpsEventCodec.writeSnapshotEnd(out);
+        return bytes.toByteArray();
+    }
+
+    //////////////////
+    // AcceptThread //
+    //////////////////
+
+    /**
+     * accepts subscribers, and starts a SubscriberThread for each of them.
+     */
+    private class AcceptThread extends Thread
+    {
+        public AcceptThread()
+        {
+            setName("UpdateStreamAcceptThread "+serverSock.getLocalPort());
+        }
+
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                try
+                {
+                    SubscriberThread subscriber = new SubscriberThread(serverSock.accept());
+                    synchronized(UpdateStreamPublisher.this)
+                    {
+                        subscribers.add(subscriber);
+                    }
+                    subscriber.start();
+                }
+                catch (IOException e)
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    //////////////////////
+    // SubscriberThread //
+    //////////////////////
+
+    /**
+     * sends events to one subscriber, starting after the sequence number it
+     *   requested.
+     */
+    private class SubscriberThread extends Thread
+    {
+        private final Socket sock;
+
+        public SubscriberThread(Socket sock)
+        {
+            this.sock = sock;
+            setName("SubscriberThread "+sock.getRemoteSocketAddress());
+        }
+
+        @Override
+        public void run()
+        {
+            System.out.println("subscriber "+sock.getRemoteSocketAddress()+" has connected");
+            try
+            {
+                sock.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(sock.getInputStream()));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(sock.getOutputStream()));
+                long epoch = in.readLong();
+                long nextSequence = in.readLong()+1;
+                boolean flushed = true;
+                out.writeLong(UpdateStreamPublisher.this.epoch);
+
+                // sequence numbers of another run of the publisher mean
+                // nothing; start from scratch
+                if(epoch != UpdateStreamPublisher.this.epoch)
+                {
+                    nextSequence = NO_SEQUENCE;
+                }
+
+                while(true)
+                {
+                    byte[] event;
+                    byte[] snapshot = null;
+                    long sequence;
+
+                    // get the next event, or a snapshot if the subscriber
+                    // is too far behind, waiting for one if necessary
+                    synchronized(UpdateStreamPublisher.this)
+                    {
+                        if(nextSequence == NO_SEQUENCE
+                                || nextSequence > lastSequence+1
+                                || nextSequence <= lastSequence-ring.length)
+                        {
+                            snapshot = encodeSnapshot();
+                            nextSequence = lastSequence+1;
+                        }
+                        else if(nextSequence > lastSequence && flushed)
+                        {
+                            UpdateStreamPublisher.this.wait();
+                            continue;
+                        }
+                        sequence = nextSequence;
+                        event = (snapshot == null && sequence <= lastSequence)
+                                ? ring[(int) (sequence%ring.length)]
+                                : null;
+                    }
+
+                    // write outside of the lock, flushing whenever the
+                    // subscriber has caught up
+                    if(snapshot != null)
+                    {
+                        out.write(snapshot);
+                        flushed = false;
+                    }
+                    else if(event == null)
+                    {
+                        out.flush();
+                        flushed = true;
+                    }
+                    else
+                    {
+                        out.writeLong(sequence);
+                        out.write(event);
+                        flushed = false;
+                        ++nextSequence;
+                    }
+                }
+            }
+            catch (IOException | InterruptedException e)
+            {
+                // subscriber disconnected, or publisher stopped
+            }
+
+            cancel();
+            synchronized(UpdateStreamPublisher.this)
+            {
+                subscribers.remove(this);
+            }
+            System.out.println("subscriber "+sock.getRemoteSocketAddress()+" has disconnected");
+        }
+
+        public void cancel()
+        {
+            interrupt();
+            try
+            {
+                sock.close();
+            }
+            catch (IOException e)
+            {
+                // already closed
+            }
+        }
+    }
+}
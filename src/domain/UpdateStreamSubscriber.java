@@ -0,0 +1,234 @@
+package domain;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * subscribes to the update stream of an UpdateStreamPublisher, and dispatches
+ *   the received events to a local GpsRecordManager, so that a gateway process
+ *   can serve web clients without running the ingest side.
+ *
+ * the subscriber remembers the epoch and sequence number of the last event it
+ *   received; whenever the connection is lost, it reconnects and resumes from
+ *   there. if the publisher can no longer resume from there, it sends a
+ *   reset, upon which all devices known to this subscriber are dispatched as
+ *   disconnected, before the current state is sent again. the sequence number
+ *   of the last event is only advanced once the whole state was received, so
+ *   a connection lost while the state is being sent starts over from scratch.
+ */
+public class UpdateStreamSubscriber extends Thread
+{
+    /**
+     * time in milliseconds to wait before reconnecting to the publisher.
+     */
+    public static final long RECONNECT_DELAY = 1000;
+
+    /**
+     * address of the publisher.
+     */
+    private final InetSocketAddress publisher;
+
+    /**
+     * manager to dispatch received events to.
+     */
+    private final GpsRecordManager gpsRecordsManager;
+
+    /**
+     * epoch, and sequence number of the last event received.
+     */
+    private long epoch;
+    private volatile long lastSequence;
+
+    /**
+     * devices that are currently connected according to the stream.
+     */
+    private final Set<String> devices;
+
+    /**
+     * socket connected to the publisher.
+     */
+    private volatile Socket sock;
+    private volatile boolean cancelled;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new update stream subscriber.
+     *
+     * @param publisher address of the publisher.
+     * @param gpsRecordsManager manager to dispatch received events to.
+     */
+    public UpdateStreamSubscriber(InetSocketAddress publisher, GpsRecordManager gpsRecordsManager)
+    {
+        this.publisher = publisher;
+        this.gpsRecordsManager = gpsRecordsManager;
+        this.epoch = 0;
+        this.lastSequence = UpdateStreamPublisher.NO_SEQUENCE;
+        this.devices = new LinkedHashSet<>();
+        this.cancelled = false;
+        setName("UpdateStreamSubscriber "+publisher);
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * returns the sequence number of the last event received.
+     *
+     * @return the sequence number of the last event received.
+     */
+    public long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    /**
+     * stops the subscriber.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        interrupt();
+        try
+        {
+            if(sock != null)
+            {
+                sock.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // already closed
+        }
+    }
+
+    /**
+     * the threaded method.
+     *
+     * connects to the publisher, and dispatches received events until the
+     *   subscriber is cancelled, reconnecting whenever the connection is
+     *   lost.
+     */
+    @Override
+    public void run()
+    {
+        while(!cancelled)
+        {
+            try
+            {
+                sock = new Socket(publisher.getAddress(),publisher.getPort());
+                DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(sock.getInputStream()));
+                out.writeLong(epoch);
+                out.writeLong(lastSequence);
+                out.flush();
+                epoch = in.readLong();
+                System.out.println("subscribed to "+publisher+" after event "+lastSequence);
+
+                boolean inSnapshot = false;
+                while(true)
+                {
+                    long sequence = in.readLong();
+                    byte type = dispatch(in);
+                    if(type == GpsEventCodec.TYPE_RESET)
+                    {
+                        inSnapshot = true;
+                        lastSequence = UpdateStreamPublisher.NO_SEQUENCE;
+                    }
+                    else if(type == GpsEventCodec.TYPE_SNAPSHOT_END)
+                    {
+                        inSnapshot = false;
+                        lastSequence = sequence;
+                    }
+                    else if(!inSnapshot)
+                    {
+                        lastSequence = sequence;
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                // publisher is down, or the connection was lost
+            }
+            finally
+            {
+                try
+                {
+                    if(sock != null)
+                    {
+                        sock.close();
+                    }
+                }
+                catch (IOException e)
+                {
+                    // already closed
+                }
+            }
+
+            try
+            {
+                Thread.sleep(RECONNECT_DELAY);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * reads an event, and dispatches it to the GpsRecordManager.
+     *
+     * @return the type of the event.
+     */
+    private byte dispatch(DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        switch(type)
+        {
+        case GpsEventCodec.TYPE_GPS_UPDATE:
+            gpsRecordsManager.dispatchGpsUpdate(GpsEventCodec.readGpsUpdate(in));
+            break;
+        case GpsEventCodec.TYPE_GPS_BATCH:
+            gpsRecordsManager.dispatchGpsBatch(GpsEventCodec.readGpsBatch(in));
+            break;
+        case GpsEventCodec.TYPE_CONNECTED:
+            String connected = in.readUTF();
+            devices.add(connected);
+            gpsRecordsManager.dispatchConnection(connected);
+            break;
+        case GpsEventCodec.TYPE_DISCONNECTED:
+            String disconnected = in.readUTF();
+            devices.remove(disconnected);
+            gpsRecordsManager.dispatchDisconnection(disconnected);
+            break;
+        case GpsEventCodec.TYPE_RESET:
+            for(String deviceId : new ArrayList<>(devices))
+            {
+                gpsRecordsManager.dispatchDisconnection(deviceId);
+            }
+            devices.clear();
+            break;
+        case GpsEventCodec.TYPE_SNAPSHOT_END:
+            break;
+        default:
+            throw new IOException("unknown event type "+type);
+        }
+        return type;
+    }
+}
@@ -2,14 +2,19 @@ package domain;
 
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.TreeSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.java_websocket.WebSocket;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -23,7 +28,9 @@ import org.json.JSONObject;
  * @author Eric Tsang
  *
  */
-public class WebClientServer extends WebSocketServer implements GpsRecordManager.GpsUpdateListener
+public class WebClientServer extends WebSocketServer
+        implements GpsRecordManager.GpsBatchListener, GeofenceEngine.GeofenceListener,
+        ReportingRatePolicy.Audience, TripSegmenter.TripListener
 {
     /**
      * keys in JSON objects that are sent to the web clients.
@@ -37,13 +44,94 @@ public class WebClientServer extends WebSocketServer implements GpsRecordManager
     public static final String JSON_KEY_SPEED     = "speed";
     public static final String JSON_KEY_ALTITUDE  = "altitude";
     public static final String JSON_KEY_TIMESTAMP = "timestamp";
+    public static final String JSON_KEY_K         = "k";
+    public static final String JSON_KEY_RADIUS    = "radius";
+    public static final String JSON_KEY_QUERY     = "query";
+    public static final String JSON_KEY_GEOFENCE  = "geofence";
+    public static final String JSON_KEY_RECORD    = "record";
+    public static final String JSON_KEY_LEVEL     = "level";
+    public static final String JSON_KEY_CELL_SIZE = "cellSize";
+    public static final String JSON_KEY_CELLS     = "cells";
+    public static final String JSON_KEY_FULL      = "full";
+    public static final String JSON_KEY_START     = "start";
+    public static final String JSON_KEY_END       = "end";
+    public static final String JSON_KEY_DISTANCE  = "distance";
+    public static final String JSON_KEY_MAX_SPEED = "maxSpeed";
 
     /**
-     * set containing all of the connected connections to web clients.
+     * message types of requests that may be received from the web clients,
+     *   and of the responses to them.
+     */
+    public static final String MSG_TYPE_NEAREST       = "nearest";
+    public static final String MSG_TYPE_WITHIN_RADIUS = "withinRadius";
+    public static final String MSG_TYPE_QUERY_RESULT  = "queryResult";
+
+    /**
+     * maximum number of devices returned by a nearest query, and maximum
+     *   radius in meters of a radius query. k is clamped to [1, MAX_K]; radius
+     *   queries outside [0, MAX_RADIUS] are ignored.
+     */
+    public static final int MAX_K         = 1000;
+    public static final double MAX_RADIUS = 100*1000;
+
+    /**
+     * message type of requests to switch between GPS updates, and the density
+     *   of a zoom level, and of the density messages sent in response. a level
+     *   below 0 switches back to GPS updates. density messages hold an array
+     *   of cells, each an array of the latitude and longitude of the south
+     *   west corner of the cell, its device count, and the average speed of
+     *   its devices; a count of 0 means the cell is now empty. the first
+     *   density message after switching holds every cell, and is marked full.
+     */
+    public static final String MSG_TYPE_DENSITY = "density";
+
+    /**
+     * message types of geofence events that are sent to the web clients.
+     */
+    public static final String MSG_TYPE_GEOFENCE_ENTERED = "geofenceEntered";
+    public static final String MSG_TYPE_GEOFENCE_EXITED  = "geofenceExited";
+
+    /**
+     * message type of the summaries of trips that are sent to the web clients.
+     */
+    public static final String MSG_TYPE_TRIP = "trip";
+
+    /**
+     * set containing all of the connected connections to web clients. the
+     *   sets are concurrent, because listener methods may be invoked from
+     *   several threads at once.
      */
     private Set<WebSocket> clients;
     private Set<String> trackedDevices;
 
+    /**
+     * index of the live positions of devices used to answer spatial queries
+     *   from web clients.
+     */
+    private SpatialIndex spatialIndex;
+
+    /**
+     * aggregates of the density of the fleet sent to zoomed out web clients;
+     *   null if density is not available.
+     */
+    private DensityAggregator density;
+
+    /**
+     * time in milliseconds between density messages.
+     */
+    private long densityInterval;
+
+    /**
+     * zoomed out web clients that are sent the density of a zoom level instead
+     *   of GPS updates, and the index of that zoom level.
+     */
+    private ConcurrentMap<WebSocket,Integer> densityLevels;
+
+    /**
+     * thread that sends the changes of the density to zoomed out web clients.
+     */
+    private DensityThread densityThread;
+
     //////////////////
     // constructors //
     //////////////////
@@ -54,14 +142,43 @@ public class WebClientServer extends WebSocketServer implements GpsRecordManager
      * @param port port to listen for connections on.
      * @param gpsRecordsManager reference to the gpsRecordsManager to register
      *   for GPS updates from.
+     * @param spatialIndex index of the live positions of devices used to
+     *   answer spatial queries from web clients.
+     *
+     * @throws UnknownHostException
+     */
+    public WebClientServer(int port, GpsRecordManager gpsRecordsManager,
+            SpatialIndex spatialIndex) throws UnknownHostException
+    {
+        this(port,gpsRecordsManager,spatialIndex,null,0);
+    }
+
+    /**
+     * constructor instantiates a web client server that can send zoomed out
+     *   web clients the density of the fleet instead of GPS updates.
+     *
+     * @param port port to listen for connections on.
+     * @param gpsRecordsManager reference to the gpsRecordsManager to register
+     *   for GPS updates from.
+     * @param spatialIndex index of the live positions of devices used to
+     *   answer spatial queries from web clients.
+     * @param density aggregates of the density of the fleet; null if density
+     *   is not available.
+     * @param densityInterval time in milliseconds between density messages.
      *
      * @throws UnknownHostException
      */
-    public WebClientServer(int port, GpsRecordManager gpsRecordsManager) throws UnknownHostException
+    public WebClientServer(int port, GpsRecordManager gpsRecordsManager,
+            SpatialIndex spatialIndex, DensityAggregator density,
+            long densityInterval) throws UnknownHostException
     {
         super(new InetSocketAddress(port));
-        this.clients = new LinkedHashSet<>();
-        this.trackedDevices = new TreeSet<String>();
+        this.density = density;
+        this.densityInterval = densityInterval;
+        this.densityLevels = new ConcurrentHashMap<>();
+        this.clients = Collections.newSetFromMap(new ConcurrentHashMap<WebSocket,Boolean>());
+        this.trackedDevices = new ConcurrentSkipListSet<String>();
+        this.spatialIndex = spatialIndex;
         gpsRecordsManager.registerListener(this);
     }
 
@@ -90,13 +207,58 @@ public class WebClientServer extends WebSocketServer implements GpsRecordManager
     {
         System.out.println("WebSocket "+conn+" has disconnected");
         clients.remove(conn);
+        densityLevels.remove(conn);
     }
 
+    /**
+     * answers spatial queries from the web client, and switches it between
+     *   GPS updates and density. other messages are ignored.
+     */
     @Override
     public void onMessage(WebSocket conn, String msg)
     {
-        // do nothing; should not receive messages!
         System.out.println("WebSocket "+conn+": "+msg);
+        try
+        {
+            JSONObject json = new JSONObject(msg);
+            switch(json.optString(JSON_MESSAGE_TYPE))
+            {
+            case MSG_TYPE_NEAREST:
+                sendQueryResult(conn,json,spatialIndex.nearest(
+                        json.getDouble(JSON_KEY_LAT),
+                        json.getDouble(JSON_KEY_LON),
+                        Math.max(1,Math.min(MAX_K,json.getInt(JSON_KEY_K)))));
+                break;
+            case MSG_TYPE_WITHIN_RADIUS:
+                double radius = json.getDouble(JSON_KEY_RADIUS);
+                if(radius >= 0 && radius <= MAX_RADIUS)
+                {
+                    sendQueryResult(conn,json,spatialIndex.withinRadius(
+                            json.getDouble(JSON_KEY_LAT),
+                            json.getDouble(JSON_KEY_LON),
+                            radius));
+                }
+                break;
+            case MSG_TYPE_DENSITY:
+                int level = json.getInt(JSON_KEY_LEVEL);
+                if(density != null && level >= 0 && level < density.getLevelCount())
+                {
+                    // cells that change from now on are sent as changes; the
+                    // full density sent now covers everything before
+                    densityLevels.put(conn,level);
+                    sendDensity(conn,level,density.getCells(level),true);
+                }
+                else
+                {
+                    densityLevels.remove(conn);
+                }
+                break;
+            }
+        }
+        catch(JSONException e)
+        {
+            // malformed request; ignore it
+        }
     }
 
     @Override
@@ -105,6 +267,44 @@ public class WebClientServer extends WebSocketServer implements GpsRecordManager
         // do nothing; errors shouldn't occur!
     }
 
+    /**
+     * starts the server, and the thread that sends density messages.
+     */
+    @Override
+    public void start()
+    {
+        super.start();
+        if(density != null && densityThread == null)
+        {
+            densityThread = new DensityThread();
+            densityThread.start();
+        }
+    }
+
+    /**
+     * stops the server, and the thread that sends density messages.
+     */
+    @Override
+    public void stop(int timeout) throws InterruptedException
+    {
+        if(densityThread != null)
+        {
+            densityThread.interrupt();
+            densityThread = null;
+        }
+        super.stop(timeout);
+    }
+
+    /**
+     * returns true if any web client is sent GPS updates, i.e. is not zoomed
+     *   out to the density of the fleet.
+     */
+    @Override
+    public boolean hasLiveViewers()
+    {
+        return clients.size() > densityLevels.size();
+    }
+
     ///////////////////////
     // private interface //
     ///////////////////////
@@ -130,6 +330,67 @@ public class WebClientServer extends WebSocketServer implements GpsRecordManager
         return json;
     }
 
+    /**
+     * sends cells of a zoom level to the web client.
+     *
+     * @param client web client to send the cells to.
+     * @param level index of the zoom level.
+     * @param cells cells to send.
+     * @param full true if the cells are every cell of the zoom level; false if
+     *   they are the cells that changed.
+     */
+    private void sendDensity(WebSocket client, int level, List<DensityAggregator.Cell> cells, boolean full)
+    {
+        client.send(toDensityMessage(level,cells,full));
+    }
+
+    /**
+     * converts cells of a zoom level into a density message.
+     */
+    private String toDensityMessage(int level, List<DensityAggregator.Cell> cells, boolean full)
+    {
+        JSONArray array = new JSONArray();
+        for(DensityAggregator.Cell cell : cells)
+        {
+            JSONArray values = new JSONArray();
+            values.put(cell.getLat());
+            values.put(cell.getLng());
+            values.put(cell.getCount());
+            values.put(cell.getAverageSpeed());
+            array.put(values);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put(JSON_MESSAGE_TYPE, MSG_TYPE_DENSITY);
+        json.put(JSON_KEY_LEVEL, level);
+        json.put(JSON_KEY_CELL_SIZE, density.getCellSize(level));
+        json.put(JSON_KEY_FULL, full);
+        json.put(JSON_KEY_CELLS, array);
+        return json.toString();
+    }
+
+    /**
+     * sends the result of a spatial query to the web client.
+     *
+     * @param client web client that made the query.
+     * @param query the query that was made.
+     * @param result last GPS updates of the devices matching the query.
+     */
+    private void sendQueryResult(WebSocket client, JSONObject query, List<GpsRecord> result)
+    {
+        JSONArray devices = new JSONArray();
+        for(GpsRecord gpsRecord : result)
+        {
+            devices.put(toWebRecord(gpsRecord));
+        }
+
+        JSONObject json = new JSONObject();
+        json.put(JSON_MESSAGE_TYPE, MSG_TYPE_QUERY_RESULT);
+        json.put(JSON_KEY_QUERY, query);
+        json.put(JSON_KEY_DEVICES, devices);
+        client.send(json.toString());
+    }
+
     /**
      * send the list of currently live tracked devices to the web client
      * 
@@ -138,13 +399,7 @@ public class WebClientServer extends WebSocketServer implements GpsRecordManager
     private void sendLiveDevices(WebSocket client)
     {
         // Create an array from the existing set of clients
-        String[] liveDevices = new String[trackedDevices.size()];
-        Iterator<String> itr = trackedDevices.iterator();
-        
-        for (int i = 0; itr.hasNext(); i++)
-        {
-            liveDevices[i] = itr.next();
-        }
+        String[] liveDevices = trackedDevices.toArray(new String[0]);
         
         // Construct JSON Object to send
         JSONObject json = new JSONObject();
@@ -166,13 +421,41 @@ public class WebClientServer extends WebSocketServer implements GpsRecordManager
     @Override
     public void onGpsUpdate(GpsRecord gpsRecord)
     {
-        // send messages to clients
+        // send messages to clients, except zoomed out ones, which are sent
+        // the density instead
+        String message = null;
         for(WebSocket client : clients)
         {
-            client.send(toWebRecord(gpsRecord).toString());
+            if(!densityLevels.containsKey(client))
+            {
+                if(message == null)
+                {
+                    message = toWebRecord(gpsRecord).toString();
+                }
+                client.send(message);
+            }
         }
     }
     
+    /**
+     * invoked when a batch of gpsUpdates is made. the live map only shows
+     *   where devices are now, so only the newest update of the batch is
+     *   forwarded to the connected web clients.
+     */
+    @Override
+    public void onGpsBatch(List<GpsRecord> gpsRecords)
+    {
+        GpsRecord newest = gpsRecords.get(0);
+        for(GpsRecord gpsRecord : gpsRecords)
+        {
+            if(gpsRecord.getSamplingTime() > newest.getSamplingTime())
+            {
+                newest = gpsRecord;
+            }
+        }
+        onGpsUpdate(newest);
+    }
+
     /**
      * invoked when Android Clients connect. Forwards message to webclients.
      */
@@ -219,4 +502,143 @@ public class WebClientServer extends WebSocketServer implements GpsRecordManager
             client.send(message);
         }
     }
+
+    /////////////////////////////////////
+    // GeofenceEngine.GeofenceListener //
+    /////////////////////////////////////
+
+    /**
+     * invoked when a device enters a geofence. forwards the event to all
+     *   connected web clients.
+     */
+    @Override
+    public void onGeofenceEntered(Geofence geofence, GpsRecord gpsRecord)
+    {
+        sendGeofenceEvent(MSG_TYPE_GEOFENCE_ENTERED,geofence,gpsRecord);
+    }
+
+    /**
+     * invoked when a device exits a geofence. forwards the event to all
+     *   connected web clients.
+     */
+    @Override
+    public void onGeofenceExited(Geofence geofence, GpsRecord gpsRecord)
+    {
+        sendGeofenceEvent(MSG_TYPE_GEOFENCE_EXITED,geofence,gpsRecord);
+    }
+
+    /**
+     * sends a geofence event to all connected web clients.
+     *
+     * @param msgType type of the event.
+     * @param geofence geofence that was entered or exited.
+     * @param gpsRecord GPS update that caused the event.
+     */
+    private void sendGeofenceEvent(String msgType, Geofence geofence, GpsRecord gpsRecord)
+    {
+        // Build JSON message to send to web clients
+        JSONObject json = new JSONObject();
+        json.put(JSON_MESSAGE_TYPE, msgType);
+        json.put(JSON_KEY_ID, gpsRecord.getDeviceId());
+        json.put(JSON_KEY_GEOFENCE, geofence.getId());
+        json.put(JSON_KEY_RECORD, toWebRecord(gpsRecord));
+        String message = json.toString();
+
+        // send messages to clients
+        for(WebSocket client : clients)
+        {
+            client.send(message);
+        }
+    }
+
+    ////////////////////////////////
+    // TripSegmenter.TripListener //
+    ////////////////////////////////
+
+    /**
+     * invoked when a device ends a trip. forwards the summary of the trip to
+     *   all connected web clients.
+     */
+    @Override
+    public void onTrip(Trip trip)
+    {
+        JSONObject start = new JSONObject();
+        start.put(JSON_KEY_LAT, trip.getStartLat());
+        start.put(JSON_KEY_LON, trip.getStartLng());
+        start.put(JSON_KEY_TIMESTAMP, trip.getStartTime());
+        JSONObject end = new JSONObject();
+        end.put(JSON_KEY_LAT, trip.getEndLat());
+        end.put(JSON_KEY_LON, trip.getEndLng());
+        end.put(JSON_KEY_TIMESTAMP, trip.getEndTime());
+
+        JSONObject json = new JSONObject();
+        json.put(JSON_MESSAGE_TYPE, MSG_TYPE_TRIP);
+        json.put(JSON_KEY_ID, trip.getDeviceId());
+        json.put(JSON_KEY_START, start);
+        json.put(JSON_KEY_END, end);
+        json.put(JSON_KEY_DISTANCE, trip.getDistance());
+        json.put(JSON_KEY_MAX_SPEED, trip.getMaxSpeed());
+        String message = json.toString();
+
+        // send messages to clients
+        for(WebSocket client : clients)
+        {
+            client.send(message);
+        }
+    }
+
+    ///////////////////
+    // DensityThread //
+    ///////////////////
+
+    /**
+     * sends the cells that changed to the web clients zoomed out to their zoom
+     *   level every density interval. changes are drained from every level,
+     *   so they do not pile up for levels nobody is watching.
+     */
+    private class DensityThread extends Thread
+    {
+        public DensityThread()
+        {
+            setName("WebClientServer density");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                try
+                {
+                    Thread.sleep(densityInterval);
+                }
+                catch(InterruptedException e)
+                {
+                    break;
+                }
+
+                for(int level = 0; level < density.getLevelCount(); level++)
+                {
+                    List<DensityAggregator.Cell> changes = density.drainChanges(level);
+                    if(changes.isEmpty())
+                    {
+                        continue;
+                    }
+                    String message = null;
+                    for(Map.Entry<WebSocket,Integer> entry : densityLevels.entrySet())
+                    {
+                        if(entry.getValue() == level)
+                        {
+                            if(message == null)
+                            {
+                                message = toDensityMessage(level,changes,false);
+                            }
+                            entry.getKey().send(message);
+                        }
+                    }
+                }
+            }
+        }
+    }
 }
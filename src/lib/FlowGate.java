@@ -0,0 +1,311 @@
+package lib;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a gate that closes when any of the queues downstream fills up to its high
+ *   watermark, and opens again once all of them have drained down to their low
+ *   watermarks, so that producers can pause while consumers catch up.
+ *
+ * each queue accounts for its items in its own Account, with add and remove;
+ *   watermarks are per queue, so one hot queue closes the gate before it is
+ *   full, however many others are empty. producers check isOpen before
+ *   producing, and wait with awaitOpen while the gate is closed. the gap
+ *   between the watermarks keeps the gate from flapping.
+ *
+ * this class is thread safe; add and remove only take the lock when a queue
+ *   crosses a watermark.
+ */
+public class FlowGate
+{
+    /**
+     * accounts of the queues downstream.
+     */
+    private final List<Account> accounts;
+
+    /**
+     * number of queues that are above their high watermark, and have not
+     *   drained down to their low watermark since; guarded by this.
+     */
+    private int fullCount;
+
+    /**
+     * true if producers may produce.
+     */
+    private volatile boolean open;
+
+    /**
+     * number of times the gate closed, and total time in milliseconds it was
+     *   closed for, not counting the time it is currently closed.
+     */
+    private long closedCount;
+    private long closedTime;
+
+    /**
+     * time in milliseconds the gate last closed at.
+     */
+    private long closedAt;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new, open flow gate without any queues.
+     */
+    public FlowGate()
+    {
+        this.accounts = new CopyOnWriteArrayList<>();
+        this.fullCount = 0;
+        this.open = true;
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * adds a queue to account items in.
+     *
+     * @param name name of the queue.
+     * @param highWatermark number of queued items at which the gate closes.
+     * @param lowWatermark number of queued items at which the queue no longer
+     *   keeps the gate closed; less than the high watermark.
+     *
+     * @return the account of the queue.
+     */
+    public Account newAccount(String name, long highWatermark, long lowWatermark)
+    {
+        Account account = new Account(name,highWatermark,lowWatermark);
+        accounts.add(account);
+        return account;
+    }
+
+    /**
+     * returns true if producers may produce; false if they should wait.
+     *
+     * @return true if the gate is open; false otherwise.
+     */
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    /**
+     * waits until the gate is open, or the timeout elapses.
+     *
+     * @param timeout maximum time in milliseconds to wait.
+     *
+     * @return true if the gate is open; false if the timeout elapsed first.
+     *
+     * @throws InterruptedException if the thread was interrupted while
+     *   waiting.
+     */
+    public boolean awaitOpen(long timeout) throws InterruptedException
+    {
+        if(open)
+        {
+            return true;
+        }
+
+        long deadline = System.currentTimeMillis()+timeout;
+        synchronized(this)
+        {
+            long remaining = timeout;
+            while(!open && remaining > 0)
+            {
+                wait(remaining);
+                remaining = deadline-System.currentTimeMillis();
+            }
+            return open;
+        }
+    }
+
+    /**
+     * returns how full the fullest queue is, relative to its high watermark.
+     *
+     * @return number of items in the fullest queue, divided by its high
+     *   watermark; 0 if there are no queues.
+     */
+    public double getFill()
+    {
+        double fill = 0;
+        for(Account account : accounts)
+        {
+            fill = Math.max(fill,(double) account.getDepth()/account.highWatermark);
+        }
+        return fill;
+    }
+
+    /**
+     * returns the number of times the gate closed.
+     *
+     * @return the number of times the gate closed.
+     */
+    public synchronized long getClosedCount()
+    {
+        return closedCount;
+    }
+
+    /**
+     * returns the total time the gate has been closed for.
+     *
+     * @return the total time in milliseconds the gate has been closed for.
+     */
+    public synchronized long getClosedTime()
+    {
+        return open ? closedTime : closedTime+System.currentTimeMillis()-closedAt;
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * must be called while synchronized on this.
+     */
+    private void close()
+    {
+        open = false;
+        ++closedCount;
+        closedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * must be called while synchronized on this.
+     */
+    private void open()
+    {
+        open = true;
+        closedTime += System.currentTimeMillis()-closedAt;
+        notifyAll();
+    }
+
+    /////////////
+    // Account //
+    /////////////
+
+    /**
+     * the items queued on one queue downstream, and its watermarks.
+     */
+    public class Account
+    {
+        private final String name;
+        private final long highWatermark;
+        private final long lowWatermark;
+
+        /**
+         * number of items queued.
+         */
+        private final AtomicLong depth;
+
+        /**
+         * true if the queue keeps the gate closed; only changed while
+         *   synchronized on the gate.
+         */
+        private volatile boolean full;
+
+        private Account(String name, long highWatermark, long lowWatermark)
+        {
+            if(lowWatermark >= highWatermark)
+            {
+                throw new IllegalArgumentException("low watermark must be below high watermark");
+            }
+            this.name = name;
+            this.highWatermark = highWatermark;
+            this.lowWatermark = lowWatermark;
+            this.depth = new AtomicLong();
+            this.full = false;
+        }
+
+        /**
+         * accounts for items that were queued.
+         *
+         * @param count number of items queued.
+         */
+        public void add(long count)
+        {
+            if(depth.addAndGet(count) >= highWatermark && !full)
+            {
+                update();
+            }
+        }
+
+        /**
+         * accounts for items that were taken off the queue.
+         *
+         * @param count number of items taken.
+         */
+        public void remove(long count)
+        {
+            if(depth.addAndGet(-count) <= lowWatermark && full)
+            {
+                update();
+            }
+        }
+
+        /**
+         * returns the number of items queued.
+         *
+         * @return the number of items queued.
+         */
+        public long getDepth()
+        {
+            return depth.get();
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getHighWatermark()
+        {
+            return highWatermark;
+        }
+
+        public long getLowWatermark()
+        {
+            return lowWatermark;
+        }
+
+        /**
+         * marks the queue as full, or no longer full, and closes or opens the
+         *   gate accordingly.
+         */
+        private void update()
+        {
+            synchronized(FlowGate.this)
+            {
+                // the queue may have crossed the other watermark while add or
+                // remove still saw the old state, so check again until stable
+                while(true)
+                {
+                    long current = depth.get();
+                    if(!full && current >= highWatermark)
+                    {
+                        full = true;
+                        if(++fullCount == 1)
+                        {
+                            close();
+                        }
+                    }
+                    else if(full && current <= lowWatermark)
+                    {
+                        full = false;
+                        if(--fullCount == 0)
+                        {
+                            open();
+                        }
+                    }
+                    else
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package lib;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * a timer that can keep track of a very large number of timeouts, where
+ *   scheduling and cancelling a timeout costs O(1), at the expense of timeouts
+ *   only firing with a resolution of one tick.
+ *
+ * timeouts are kept in a wheel of buckets; each tick, the worker thread moves
+ *   to the next bucket, and runs the timeouts in it that are due within the
+ *   current round of the wheel. timeouts scheduled by other threads are put
+ *   in a concurrent queue, and moved into their bucket by the worker thread,
+ *   so scheduling never contends with running timeouts.
+ *
+ * tasks are run on the worker thread; they must be short, and must not block.
+ */
+public class HashedWheelTimer
+{
+    /**
+     * time in milliseconds between ticks.
+     */
+    private final long tickDuration;
+
+    /**
+     * the wheel of buckets; its length is a power of two.
+     */
+    private final Timeout[] wheel;
+
+    /**
+     * timeouts that were scheduled, but have not been put into their bucket
+     *   yet.
+     */
+    private final Queue<Timeout> pending;
+
+    /**
+     * time the timer was started at, in milliseconds.
+     */
+    private volatile long startTime;
+
+    /**
+     * thread that advances the wheel, and runs due timeouts.
+     */
+    private WorkerThread workerThread;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new hashed wheel timer.
+     *
+     * @param tickDuration time in milliseconds between ticks.
+     * @param ticksPerWheel number of buckets in the wheel; rounded up to a power
+     *   of two.
+     */
+    public HashedWheelTimer(long tickDuration, int ticksPerWheel)
+    {
+        int size = 1;
+        while(size < ticksPerWheel)
+        {
+            size <<= 1;
+        }
+        this.tickDuration = tickDuration;
+        this.wheel = new Timeout[size];
+        this.pending = new ConcurrentLinkedQueue<>();
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * starts the worker thread.
+     */
+    public synchronized void start()
+    {
+        if(workerThread == null)
+        {
+            startTime = System.currentTimeMillis();
+            workerThread = new WorkerThread();
+            workerThread.start();
+        }
+    }
+
+    /**
+     * stops the worker thread; timeouts that have not fired yet never will.
+     */
+    public synchronized void stop()
+    {
+        if(workerThread != null)
+        {
+            workerThread.interrupt();
+            workerThread = null;
+        }
+    }
+
+    /**
+     * schedules a task to be run after the passed delay.
+     *
+     * @param task task to run.
+     * @param delay time in milliseconds after which the task is run.
+     *
+     * @return a handle that can be used to cancel the timeout.
+     */
+    public Timeout schedule(Runnable task, long delay)
+    {
+        Timeout timeout = new Timeout(task,System.currentTimeMillis()+delay);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /////////////
+    // Timeout //
+    /////////////
+
+    /**
+     * a handle to a scheduled task.
+     */
+    public static class Timeout
+    {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        /**
+         * neighbours in the bucket's doubly linked list.
+         */
+        private Timeout prev;
+        private Timeout next;
+        private int bucket;
+
+        private Timeout(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+            this.cancelled = false;
+        }
+
+        /**
+         * cancels the timeout; its task will not be run. the timeout is removed
+         *   from its bucket by the worker thread when the bucket is next
+         *   visited.
+         */
+        public void cancel()
+        {
+            cancelled = true;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * puts the pending timeouts into their buckets.
+     */
+    private void transferPending(long tick)
+    {
+        Timeout timeout;
+        while((timeout = pending.poll()) != null)
+        {
+            if(timeout.cancelled)
+            {
+                continue;
+            }
+            long ticks = Math.max(tick,(timeout.deadline-startTime+tickDuration-1)/tickDuration);
+            timeout.remainingRounds = (ticks-tick)/wheel.length;
+            timeout.bucket = (int) (ticks&(wheel.length-1));
+            timeout.prev = null;
+            timeout.next = wheel[timeout.bucket];
+            if(timeout.next != null)
+            {
+                timeout.next.prev = timeout;
+            }
+            wheel[timeout.bucket] = timeout;
+        }
+    }
+
+    /**
+     * runs the timeouts in the bucket that are due in this round, and removes
+     *   cancelled timeouts.
+     */
+    private void expireBucket(int bucket)
+    {
+        Timeout timeout = wheel[bucket];
+        while(timeout != null)
+        {
+            Timeout next = timeout.next;
+            if(timeout.cancelled || timeout.remainingRounds <= 0)
+            {
+                // unlink the timeout
+                if(timeout.prev == null)
+                {
+                    wheel[bucket] = next;
+                }
+                else
+                {
+                    timeout.prev.next = next;
+                }
+                if(next != null)
+                {
+                    next.prev = timeout.prev;
+                }
+                timeout.prev = null;
+                timeout.next = null;
+
+                if(!timeout.cancelled)
+                {
+                    try
+                    {
+                        timeout.task.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            else
+            {
+                --timeout.remainingRounds;
+            }
+            timeout = next;
+        }
+    }
+
+    //////////////////
+    // WorkerThread //
+    //////////////////
+
+    /**
+     * advances the wheel every tick.
+     */
+    private class WorkerThread extends Thread
+    {
+        public WorkerThread()
+        {
+            setName("HashedWheelTimer "+tickDuration+"ms");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            long tick = 0;
+            while(!isInterrupted())
+            {
+                // sleep until the end of the current tick
+                long sleep = startTime+(tick+1)*tickDuration-System.currentTimeMillis();
+                if(sleep > 0)
+                {
+                    try
+                    {
+                        Thread.sleep(sleep);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        break;
+                    }
+                }
+
+                transferPending(tick);
+                expireBucket((int) (tick&(wheel.length-1)));
+                ++tick;
+            }
+        }
+    }
+}
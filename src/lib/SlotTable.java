@@ -0,0 +1,151 @@
+package lib;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * maps string keys to small, dense integer slots so that per key state can be
+ *   kept in parallel primitive arrays instead of one object per key.
+ *
+ * slots of removed keys are recycled before new slots are handed out, so the
+ *   number of slots in use never exceeds the peak number of live keys.
+ *
+ * this class is not thread safe; callers are expected to synchronize access to
+ *   the table along with the arrays that are indexed by it.
+ */
+public class SlotTable
+{
+    /**
+     * maps keys to their slots.
+     */
+    private final Map<String,Integer> slots;
+
+    /**
+     * stack of slots that have been released and can be reused.
+     */
+    private int[] freeSlots;
+
+    /**
+     * number of entries in freeSlots that are valid.
+     */
+    private int freeCount;
+
+    /**
+     * number of slots that have ever been handed out; slots are in the range
+     *   [0,capacity).
+     */
+    private int capacity;
+
+    /**
+     * instantiates a new, empty slot table.
+     */
+    public SlotTable()
+    {
+        slots = new HashMap<>();
+        freeSlots = new int[16];
+        freeCount = 0;
+        capacity = 0;
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * returns the slot associated with the key, allocating a new one if the key
+     *   does not have one yet.
+     *
+     * @param key key to get the slot of.
+     *
+     * @return the slot associated with the key.
+     */
+    public int acquire(String key)
+    {
+        Integer slot = slots.get(key);
+        if(slot == null)
+        {
+            slot = (freeCount > 0) ? freeSlots[--freeCount] : capacity++;
+            slots.put(key,slot);
+        }
+        return slot;
+    }
+
+    /**
+     * returns the slot associated with the key, or -1 if the key does not have
+     *   one.
+     *
+     * @param key key to get the slot of.
+     *
+     * @return the slot associated with the key, or -1 if there is none.
+     */
+    public int find(String key)
+    {
+        Integer slot = slots.get(key);
+        return (slot == null) ? -1 : slot;
+    }
+
+    /**
+     * releases the slot associated with the key so that it may be reused by
+     *   another key.
+     *
+     * @param key key to release the slot of.
+     *
+     * @return the slot that was released, or -1 if the key had no slot.
+     */
+    public int release(String key)
+    {
+        Integer slot = slots.remove(key);
+        if(slot == null)
+        {
+            return -1;
+        }
+        if(freeCount == freeSlots.length)
+        {
+            freeSlots = Arrays.copyOf(freeSlots,freeSlots.length*2);
+        }
+        freeSlots[freeCount++] = slot;
+        return slot;
+    }
+
+    /**
+     * returns the number of keys that currently have a slot.
+     *
+     * @return the number of keys that currently have a slot.
+     */
+    public int size()
+    {
+        return slots.size();
+    }
+
+    /**
+     * returns the upper bound (exclusive) of all slots handed out so far.
+     *   arrays indexed by this table must be at least this long.
+     *
+     * @return the upper bound (exclusive) of all slots handed out so far.
+     */
+    public int capacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * returns a length that arrays indexed by this table should be grown to so
+     *   that they can hold the passed slot; grows geometrically.
+     *
+     * @param currentLength current length of the array.
+     * @param slot slot that must fit in the array.
+     *
+     * @return new length for the array; currentLength if it is already big
+     *   enough.
+     */
+    public static int grownLength(int currentLength, int slot)
+    {
+        int length = Math.max(currentLength,8);
+        while(length <= slot)
+        {
+            length *= 2;
+        }
+        return length;
+    }
+}
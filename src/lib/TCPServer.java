@@ -1,12 +1,22 @@
 package lib;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class TCPServer
 {
@@ -16,15 +26,117 @@ public abstract class TCPServer
     private final ServerSocket serverSock;
 
     /**
-     * handle to the accept thread running on this server, accepting new
+     * handles to the accept threads running on this server, accepting new
      *   connections.
      */
-    private AcceptThread acceptThread;
+    private AcceptThread[] acceptThreads;
 
     /**
-     * set of running CommThreads being managed by this server.
+     * number of accept threads to run. they all accept on the same server
+     *   socket, which the JDK serializes, so extra threads only help to the
+     *   extent that one of them can accept while another is handing off the
+     *   connection it accepted.
      */
-    private Set<CommThread> commThreads;
+    private final int acceptThreadCount;
+
+    /**
+     * runs the setup of accepted connections, i.e. the onOpen callback, and
+     *   starting their CommThread, so that the accept threads can go straight
+     *   back to accepting.
+     */
+    private ExecutorService setupExecutor;
+
+    /**
+     * writes the messages queued on connections, so that sending never blocks
+     *   the thread sending the message.
+     */
+    private ExecutorService writeExecutor;
+
+    /**
+     * true once the server is stopped; connections that are still being set
+     *   up are closed rather than started.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * maps sockets to the running CommThreads being managed by this server.
+     */
+    private Map<Socket,CommThread> commThreads;
+
+    /**
+     * time in milliseconds a connection may go without receiving a message
+     *   before it is closed; 0 if connections never time out.
+     */
+    private final long idleTimeout;
+
+    /**
+     * time in milliseconds a connection may go without receiving a message
+     *   before a heartbeat message is sent to it; 0 if no heartbeats are sent.
+     */
+    private final long heartbeatInterval;
+
+    /**
+     * timer used to keep track of the idle time of every connection.
+     */
+    private HashedWheelTimer idleTimer;
+
+    /**
+     * gate that connections wait on before reading the next message, so that
+     *   the server stops reading while its consumers are backlogged, and TCP
+     *   flow control slows down the remote hosts; null to always read.
+     */
+    private final FlowGate readGate;
+
+    /**
+     * records the traffic received by the server; null if it is not recorded.
+     */
+    private volatile TrafficCapture capture;
+
+    /**
+     * numbers the connections in the order they are opened, for the capture.
+     */
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    /**
+     * value of System.nanoTime when the first connection was accepted; 0 if
+     *   none was accepted yet.
+     */
+    private volatile long firstAcceptTime;
+
+    /**
+     * resolution of the idle timer in milliseconds, and the number of buckets
+     *   of its wheel.
+     */
+    public static final long IDLE_TIMER_TICK   = 100;
+    public static final int IDLE_TIMER_BUCKETS = 1024;
+
+    /**
+     * time in milliseconds between checks of whether a paused connection was
+     *   closed.
+     */
+    public static final long PAUSE_CHECK_INTERVAL = 1000;
+
+    /**
+     * default maximum number of connections waiting to be accepted, and number
+     *   of threads that set up accepted connections.
+     */
+    public static final int DEFAULT_BACKLOG = 50;
+    public static final int SETUP_THREADS   = Math.max(2,Runtime.getRuntime().availableProcessors());
+
+    /**
+     * number of threads that write queued messages to connections, and
+     *   maximum number of messages queued on a connection; a connection
+     *   whose queue is full is not reading what it is sent, and is closed.
+     */
+    public static final int WRITE_THREADS     = Math.max(2,Runtime.getRuntime().availableProcessors());
+    public static final int OUTBOUND_CAPACITY = 16;
+
+    /**
+     * time in milliseconds a write to a connection may be blocked for before
+     *   the connection is closed, so that peers that stop reading do not hold
+     *   on to the write threads.
+     */
+    public static final long WRITE_TIMEOUT = 10000;
 
     //////////////////////
     // public interface //
@@ -37,7 +149,91 @@ public abstract class TCPServer
      */
     public TCPServer(int serverPort) throws IOException
     {
-        serverSock = new ServerSocket(serverPort);
+        this(serverPort,0,0);
+    }
+
+    /**
+     * instantiates a new TCPServer that closes connections that have been idle
+     *   for too long.
+     *
+     * half-open connections, e.g. from devices that dropped off the network,
+     *   never receive anything; sending them a heartbeat makes the TCP stack
+     *   notice that the connection is gone, and the connection is closed when
+     *   the idle timeout expires either way.
+     *
+     * @param serverPort port to listen for connections on.
+     * @param idleTimeout time in milliseconds a connection may go without
+     *   receiving a message before it is closed; 0 to disable.
+     * @param heartbeatInterval time in milliseconds a connection may go
+     *   without receiving a message before the heartbeat message is sent to
+     *   it; 0 to disable.
+     *
+     * @throws IOException
+     */
+    public TCPServer(int serverPort, long idleTimeout, long heartbeatInterval) throws IOException
+    {
+        this(serverPort,idleTimeout,heartbeatInterval,null);
+    }
+
+    /**
+     * instantiates a new TCPServer that closes connections that have been idle
+     *   for too long, and stops reading from its connections while the passed
+     *   gate is closed.
+     *
+     * while reading is paused, unread messages fill the socket buffers, and
+     *   TCP flow control makes the remote hosts stop sending, so memory stays
+     *   bounded no matter how far behind the consumers are. paused connections
+     *   do not count as idle.
+     *
+     * @param serverPort port to listen for connections on.
+     * @param idleTimeout time in milliseconds a connection may go without
+     *   receiving a message before it is closed; 0 to disable.
+     * @param heartbeatInterval time in milliseconds a connection may go
+     *   without receiving a message before the heartbeat message is sent to
+     *   it; 0 to disable.
+     * @param readGate gate to wait on before reading each message; null to
+     *   always read.
+     *
+     * @throws IOException
+     */
+    public TCPServer(int serverPort, long idleTimeout, long heartbeatInterval,
+            FlowGate readGate) throws IOException
+    {
+        this(serverPort,DEFAULT_BACKLOG,1,idleTimeout,heartbeatInterval,readGate);
+    }
+
+    /**
+     * instantiates a new TCPServer that accepts connections on several
+     *   threads, so that it can keep up when many remote hosts connect at
+     *   once, e.g. when a whole fleet reconnects after a network outage.
+     *
+     * accept threads only accept connections; they are set up on a separate
+     *   pool of threads. since the JDK serializes accepting on one server
+     *   socket, and handing a connection off is cheap, one accept thread is
+     *   usually as fast as several; the setup pool is what keeps up with a
+     *   reconnecting fleet.
+     *
+     * @param serverPort port to listen for connections on.
+     * @param backlog maximum number of connections waiting to be accepted.
+     * @param acceptThreadCount number of threads accepting connections.
+     * @param idleTimeout time in milliseconds a connection may go without
+     *   receiving a message before it is closed; 0 to disable.
+     * @param heartbeatInterval time in milliseconds a connection may go
+     *   without receiving a message before the heartbeat message is sent to
+     *   it; 0 to disable.
+     * @param readGate gate to wait on before reading each message; null to
+     *   always read.
+     *
+     * @throws IOException
+     */
+    public TCPServer(int serverPort, int backlog, int acceptThreadCount, long idleTimeout,
+            long heartbeatInterval, FlowGate readGate) throws IOException
+    {
+        serverSock = new ServerSocket(serverPort,backlog);
+        this.acceptThreadCount = acceptThreadCount;
+        this.idleTimeout = idleTimeout;
+        this.heartbeatInterval = heartbeatInterval;
+        this.readGate = readGate;
     }
 
     /**
@@ -46,11 +242,23 @@ public abstract class TCPServer
      */
     public void start()
     {
-        if(acceptThread == null)
+        if(acceptThreads == null)
         {
-            acceptThread = new AcceptThread(serverSock);
-            commThreads = new LinkedHashSet<>();
-            acceptThread.start();
+            stopped = false;
+            commThreads = new ConcurrentHashMap<>();
+            if(idleTimeout > 0)
+            {
+                idleTimer = new HashedWheelTimer(IDLE_TIMER_TICK,IDLE_TIMER_BUCKETS);
+                idleTimer.start();
+            }
+            setupExecutor = Executors.newFixedThreadPool(SETUP_THREADS,newThreadFactory("SetupThread"));
+            writeExecutor = Executors.newFixedThreadPool(WRITE_THREADS,newThreadFactory("WriteThread"));
+            acceptThreads = new AcceptThread[acceptThreadCount];
+            for(int i = 0; i < acceptThreads.length; i++)
+            {
+                acceptThreads[i] = new AcceptThread(serverSock,i);
+                acceptThreads[i].start();
+            }
         }
     }
 
@@ -59,17 +267,82 @@ public abstract class TCPServer
      */
     public void stop()
     {
-        if(acceptThread != null)
+        if(acceptThreads != null)
         {
-            acceptThread.cancel();
-            for(CommThread commThread : commThreads)
+            // set before the connections are closed, so that a setup task
+            // either sees it, or has registered its connection to be closed
+            stopped = true;
+            for(AcceptThread acceptThread : acceptThreads)
+            {
+                acceptThread.cancel();
+            }
+            for(Runnable setupTask : setupExecutor.shutdownNow())
+            {
+                ((SetupTask) setupTask).cancel();
+            }
+            for(CommThread commThread : commThreads.values())
             {
                 commThread.cancel();
             }
-            acceptThread = null;
+            writeExecutor.shutdownNow();
+            if(idleTimer != null)
+            {
+                idleTimer.stop();
+                idleTimer = null;
+            }
+            acceptThreads = null;
         }
     }
 
+    /**
+     * queues a message to be sent to a connection, without waiting for it to
+     *   be written. messages are sent in the order they were queued.
+     *
+     * @param conn socket of the connection to send the message to.
+     * @param msg message to send.
+     *
+     * @return true if the message was queued; false if the connection is
+     *   closed, or already had the maximum number of messages queued, in
+     *   which case it is closed.
+     */
+    public boolean send(Socket conn, String msg)
+    {
+        CommThread commThread = (commThreads == null) ? null : commThreads.get(conn);
+        return commThread != null && commThread.send(msg);
+    }
+
+    /**
+     * starts, or stops recording the traffic received by the server.
+     *
+     * @param capture capture to record to; null to stop recording.
+     */
+    public void setCapture(TrafficCapture capture)
+    {
+        this.capture = capture;
+    }
+
+    /**
+     * returns the number of connections to the server that are open.
+     *
+     * @return the number of open connections.
+     */
+    public int getConnectionCount()
+    {
+        return (commThreads == null) ? 0 : commThreads.size();
+    }
+
+    /**
+     * returns the value of System.nanoTime when the server accepted its first
+     *   connection.
+     *
+     * @return the time the first connection was accepted at; 0 if none was
+     *   accepted yet.
+     */
+    public long getFirstAcceptTime()
+    {
+        return firstAcceptTime;
+    }
+
     /////////////////////////
     // protected interface //
     /////////////////////////
@@ -100,6 +373,42 @@ public abstract class TCPServer
      */
     protected abstract void onClose(Socket conn, boolean remote);
 
+    /**
+     * returns the message sent to connections that have been idle for the
+     *   heartbeat interval; the remote host is expected to reply with any
+     *   message. returns null by default, which disables heartbeats.
+     *
+     * @return the heartbeat message, or null if heartbeats are disabled.
+     */
+    protected String getHeartbeatMessage()
+    {
+        return null;
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * returns a factory of daemon threads named after the server's port.
+     */
+    private ThreadFactory newThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task,name+" "+serverSock.getLocalPort()
+                        +"-"+count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
     //////////////////
     // AcceptThread //
     //////////////////
@@ -120,18 +429,19 @@ public abstract class TCPServer
          *   socket once the thread is started.
          *
          * @param  svrSock ServerSocket to listen to.
+         * @param  index index of the thread among the accept threads.
          */
-        public AcceptThread(ServerSocket svrSock)
+        public AcceptThread(ServerSocket svrSock, int index)
         {
             this.svrSock = svrSock;
-            setName("AcceptThread "+svrSock.getLocalPort());
+            setName("AcceptThread "+svrSock.getLocalPort()+"-"+index);
         }
 
         /**
          * the threaded method.
          *
-         * continuously accepts connections, and invokes the onOpen callback
-         *   whenever a new connection is established.
+         * continuously accepts connections, and hands them off to the setup
+         *   threads, which invoke the onOpen callback.
          */
         @Override
         public synchronized void run()
@@ -143,9 +453,22 @@ public abstract class TCPServer
                 try
                 {
                     Socket conn = svrSock.accept();
-                    onOpen(conn);
-                    CommThread commThread = new CommThread(conn);
-                    commThread.start();
+                    if(firstAcceptTime == 0)
+                    {
+                        // accept threads may race; either time will do
+                        firstAcceptTime = System.nanoTime();
+                    }
+                    try
+                    {
+                        setupExecutor.execute(new SetupTask(conn));
+                    }
+                    catch (RejectedExecutionException e)
+                    {
+                        // the server was stopped
+                        conn.close();
+                        notifyAll();
+                        break;
+                    }
                 }
                 catch (IOException e)
                 {
@@ -172,6 +495,73 @@ public abstract class TCPServer
         }
     }
 
+    ///////////////
+    // SetupTask //
+    ///////////////
+
+    /**
+     * sets up a connection handed off by an AcceptThread, invoking the onOpen
+     *   callback, and starting its CommThread.
+     */
+    private class SetupTask implements Runnable
+    {
+        /**
+         * socket that was accepted.
+         */
+        private final Socket conn;
+
+        public SetupTask(Socket conn)
+        {
+            this.conn = conn;
+        }
+
+        @Override
+        public void run()
+        {
+            if(stopped)
+            {
+                // already running when the server was stopped
+                cancel();
+                return;
+            }
+            try
+            {
+                conn.setKeepAlive(true);
+            }
+            catch (IOException e)
+            {
+                // the connection was closed before it was set up
+                cancel();
+                return;
+            }
+            onOpen(conn);
+            CommThread commThread = new CommThread(conn);
+            commThread.start();
+
+            // the server may have been stopped during onOpen, without seeing
+            // the connection; closing it makes the CommThread invoke onClose
+            if(stopped)
+            {
+                commThread.cancel();
+            }
+        }
+
+        /**
+         * closes the connection without setting it up.
+         */
+        public void cancel()
+        {
+            try
+            {
+                conn.close();
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     ////////////////
     // CommThread //
     ////////////////
@@ -188,6 +578,47 @@ public abstract class TCPServer
          */
         private Socket sock;
 
+        /**
+         * time in milliseconds the last message was received at.
+         */
+        private volatile long lastRead;
+
+        /**
+         * true if a heartbeat was sent since the last message was received.
+         */
+        private volatile boolean heartbeatSent;
+
+        /**
+         * pending idle check of this connection; null if idle timeouts are
+         *   disabled.
+         */
+        private volatile HashedWheelTimer.Timeout idleCheck;
+
+        /**
+         * messages queued to be sent, their number, and whether a write task
+         *   is draining them.
+         */
+        private final Queue<String> outbound;
+        private final AtomicInteger outboundCount;
+        private final AtomicBoolean writing;
+
+        /**
+         * time in milliseconds the write in progress started at; 0 if none
+         *   is in progress.
+         */
+        private volatile long writeStartedAt;
+
+        /**
+         * number of the connection in the capture.
+         */
+        private final int connectionNumber;
+
+        /**
+         * stream messages are written to; only used by write tasks, which
+         *   never run concurrently for one connection.
+         */
+        private DataOutputStream os;
+
         /**
          * constructs a new CommThread object that is used to read from the
          *   passed socket connection.
@@ -197,6 +628,12 @@ public abstract class TCPServer
         public CommThread(Socket connection)
         {
             this.sock = connection;
+            this.lastRead = System.currentTimeMillis();
+            this.heartbeatSent = false;
+            this.outbound = new ConcurrentLinkedQueue<>();
+            this.outboundCount = new AtomicInteger();
+            this.writing = new AtomicBoolean();
+            this.connectionNumber = connectionCount.getAndIncrement();
             setName("CommThread "+sock.getRemoteSocketAddress());
         }
 
@@ -208,7 +645,184 @@ public abstract class TCPServer
         public void start()
         {
             super.start();
-            commThreads.add(CommThread.this);
+            commThreads.put(sock,CommThread.this);
+            if(idleTimer != null)
+            {
+                scheduleIdleCheck(Math.min(idleTimeout,
+                        heartbeatInterval > 0 ? heartbeatInterval : idleTimeout));
+            }
+        }
+
+        /**
+         * schedules the next idle check of this connection.
+         *
+         * resetting the idle time when a message is received only updates
+         *   lastRead; when the check fires, it compares the idle time against
+         *   the deadlines, and reschedules itself for the remaining time.
+         *
+         * @param delay time in milliseconds until the check.
+         */
+        private void scheduleIdleCheck(long delay)
+        {
+            idleCheck = idleTimer.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    checkIdle();
+                }
+            },delay);
+        }
+
+        /**
+         * closes the connection if it has been idle for the idle timeout, or
+         *   a write to it has been blocked for the write timeout, or sends it
+         *   a heartbeat if it has been idle for the heartbeat interval.
+         *   closing the socket makes the blocked read fail, so the onClose
+         *   callback is invoked as usual.
+         */
+        private void checkIdle()
+        {
+            if(sock.isClosed())
+            {
+                return;
+            }
+            long writeStarted = writeStartedAt;
+            if(writeStarted != 0 && System.currentTimeMillis()-writeStarted >= WRITE_TIMEOUT)
+            {
+                System.out.println("socket "+sock.getRemoteSocketAddress()+" has not been reading for "
+                        +(System.currentTimeMillis()-writeStarted)+"ms");
+                cancel();
+                return;
+            }
+            if(readGate != null && !readGate.isOpen())
+            {
+                // the connection is not idle, the server is just not reading
+                scheduleIdleCheck(Math.min(idleTimeout,WRITE_TIMEOUT));
+                return;
+            }
+
+            long idle = System.currentTimeMillis()-lastRead;
+            if(idle >= idleTimeout)
+            {
+                System.out.println("socket "+sock.getRemoteSocketAddress()+" has been idle for "+idle+"ms");
+                cancel();
+                return;
+            }
+
+            String heartbeat = getHeartbeatMessage();
+            long nextCheck = idleTimeout-idle;
+            if(heartbeatInterval > 0 && heartbeat != null && !heartbeatSent)
+            {
+                if(idle >= heartbeatInterval)
+                {
+                    heartbeatSent = true;
+                    send(heartbeat);
+                }
+                else
+                {
+                    nextCheck = Math.min(nextCheck,heartbeatInterval-idle);
+                }
+            }
+            scheduleIdleCheck(Math.min(nextCheck,WRITE_TIMEOUT));
+        }
+
+        /**
+         * queues a message to be sent to the remote host, and schedules a
+         *   write task to send it unless one is already running. closes the
+         *   connection if its queue is full, since the remote host is not
+         *   reading what it is sent.
+         *
+         * @param msg message to send.
+         *
+         * @return true if the message was queued; false otherwise.
+         */
+        public boolean send(String msg)
+        {
+            if(sock.isClosed())
+            {
+                return false;
+            }
+            if(outboundCount.incrementAndGet() > OUTBOUND_CAPACITY)
+            {
+                outboundCount.decrementAndGet();
+                System.out.println("socket "+sock.getRemoteSocketAddress()+" has "
+                        +OUTBOUND_CAPACITY+" messages queued, and is not reading them");
+                cancel();
+                return false;
+            }
+            outbound.add(msg);
+            scheduleWrite();
+            return true;
+        }
+
+        /**
+         * schedules a write task, unless one is already running.
+         */
+        private void scheduleWrite()
+        {
+            if(writing.compareAndSet(false,true))
+            {
+                try
+                {
+                    writeExecutor.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            write();
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // the server was stopped
+                    writing.set(false);
+                }
+            }
+        }
+
+        /**
+         * writes the queued messages, then flushes them at once. failures are
+         *   ignored; they will surface as a failed read.
+         *
+         * writes block when the socket's send buffer is full, which only
+         *   happens when the remote host stops reading. such a host may well
+         *   keep sending, so its connection is closed once its queue fills
+         *   up, or the write has been blocked for the write timeout, which
+         *   releases the blocked write thread.
+         */
+        private void write()
+        {
+            writeStartedAt = System.currentTimeMillis();
+            try
+            {
+                if(os == null)
+                {
+                    os = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+                }
+                String msg;
+                while((msg = outbound.poll()) != null)
+                {
+                    outboundCount.decrementAndGet();
+                    os.writeUTF(msg);
+                }
+                os.flush();
+            }
+            catch (IOException e)
+            {
+                // socket is closing
+                outbound.clear();
+            }
+            writeStartedAt = 0;
+            writing.set(false);
+
+            // a message may have been queued after the queue was drained, but
+            // before writing was reset
+            if(!outbound.isEmpty())
+            {
+                scheduleWrite();
+            }
         }
 
         /**
@@ -222,6 +836,7 @@ public abstract class TCPServer
         public void run()
         {
             DataInputStream is;
+            boolean remote;
 
             // get the socket's input stream so we can read from it.
             try
@@ -232,6 +847,11 @@ public abstract class TCPServer
             {
                 throw new RuntimeException(e);
             }
+            TrafficCapture capture = TCPServer.this.capture;
+            if(capture != null)
+            {
+                capture.onOpen(connectionNumber);
+            }
 
             // continuously read from the connection, and invoke onMessage, or
             // invoke onClose when the socket is closed.
@@ -239,23 +859,52 @@ public abstract class TCPServer
             {
                 try
                 {
+                    // wait while the consumers are backlogged
+                    if(readGate != null && !readGate.isOpen())
+                    {
+                        while(!readGate.awaitOpen(PAUSE_CHECK_INTERVAL) && !sock.isClosed())
+                        {
+                            // stop waiting if the connection is cancelled
+                        }
+                        lastRead = System.currentTimeMillis();
+                    }
+
                     // read from the socket & invoke onMessage callback
                     String msg = is.readUTF();
+                    lastRead = System.currentTimeMillis();
+                    heartbeatSent = false;
+                    capture = TCPServer.this.capture;
+                    if(capture != null)
+                    {
+                        capture.onMessage(connectionNumber,msg);
+                    }
                     onMessage(sock,msg);
                 }
                 catch (SocketException e)
                 {
                     // socket closed by local host
-                    onClose(sock,false);
+                    remote = false;
                     break;
                 }
                 catch (IOException e)
                 {
                     // socket closed by remote host
-                    onClose(sock,true);
+                    remote = true;
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                    // treated as closed by the local host
+                    remote = false;
                     break;
                 }
             }
+            capture = TCPServer.this.capture;
+            if(capture != null)
+            {
+                capture.onClose(connectionNumber,remote);
+            }
+            onClose(sock,remote);
 
             // release resources
             try
@@ -269,7 +918,11 @@ public abstract class TCPServer
             }
 
             // remove self from set of active CommThreads
-            commThreads.remove(CommThread.this);
+            commThreads.remove(sock);
+            if(idleCheck != null)
+            {
+                idleCheck.cancel();
+            }
         }
 
         /**
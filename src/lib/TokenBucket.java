@@ -0,0 +1,113 @@
+package lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a lock-free token bucket that limits the rate at which permits are handed
+ *   out, while allowing bursts of up to a fixed number of permits.
+ *
+ * it is implemented as a generic cell rate algorithm: instead of a token count
+ *   and a refill time, the only state is the theoretical time at which the
+ *   bucket would be empty of debt, kept in a single AtomicLong that is updated
+ *   with compare-and-set, so concurrent callers never block each other.
+ */
+public class TokenBucket
+{
+    /**
+     * time in nanoseconds it takes for one permit to be refilled.
+     */
+    private final long interval;
+
+    /**
+     * how far the theoretical arrival time may be ahead of the current time;
+     *   equal to burst*interval.
+     */
+    private final long tolerance;
+
+    /**
+     * theoretical arrival time in nanoseconds.
+     */
+    private final AtomicLong tat;
+
+    /**
+     * instantiates a new, full token bucket.
+     *
+     * @param rate number of permits refilled per second.
+     * @param burst maximum number of permits that can be acquired at once.
+     */
+    public TokenBucket(double rate, int burst)
+    {
+        this.interval = Math.max(1,(long) (1e9/rate));
+        this.tolerance = burst*interval;
+        this.tat = new AtomicLong(System.nanoTime()-tolerance);
+    }
+
+    /**
+     * tries to acquire permits.
+     *
+     * @param permits number of permits to acquire.
+     * @param partial true if fewer permits than requested may be acquired;
+     *   false if either all, or no permits are acquired.
+     *
+     * @return the number of permits acquired.
+     */
+    public int tryAcquire(int permits, boolean partial)
+    {
+        while(true)
+        {
+            long now = System.nanoTime();
+            long current = tat.get();
+            long base = Math.max(current,now-tolerance);
+            long available = (now-base)/interval;
+            int granted = (int) Math.min(permits,available);
+            if(granted <= 0 || (!partial && granted < permits))
+            {
+                return 0;
+            }
+            if(tat.compareAndSet(current,base+granted*interval))
+            {
+                return granted;
+            }
+        }
+    }
+
+    /**
+     * returns permits that were acquired, but not used, to the bucket; the
+     *   bucket never holds more than its burst.
+     *
+     * @param permits number of permits to return.
+     */
+    public void release(int permits)
+    {
+        while(true)
+        {
+            long current = tat.get();
+            long released = Math.max(current-permits*interval,System.nanoTime()-tolerance);
+            if(released >= current || tat.compareAndSet(current,released))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * returns how long the bucket has been full for.
+     *
+     * @return time in nanoseconds since the bucket was last full; negative
+     *   if it is not full.
+     */
+    public long getIdleTime()
+    {
+        return System.nanoTime()-tolerance-tat.get();
+    }
+
+    /**
+     * tries to acquire one permit.
+     *
+     * @return true if the permit was acquired; false otherwise.
+     */
+    public boolean tryAcquire()
+    {
+        return tryAcquire(1,false) == 1;
+    }
+}
@@ -0,0 +1,557 @@
+package lib;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * records the traffic received by a TCPServer to a compact binary log, so it
+ *   can be replayed later: every connection opened, every message received,
+ *   and every connection closed, each with the time in nanoseconds since the
+ *   capture started.
+ *
+ * the log starts with a magic number and a version, followed by events:
+ *
+ *   [byte type][long time][int connection]
+ *
+ * message events are followed by the message as written by writeUTF, and
+ *   close events by a byte that is 1 if the remote host closed the connection.
+ *   connections are numbered by the server in the order they are opened.
+ *
+ * events are double buffered: recording an event only copies it into the
+ *   active buffer under a lock. once the active buffer fills up, it is handed
+ *   to a writer thread, which writes it to the file outside of the lock, while
+ *   events are copied into the other buffer, so the threads recording events
+ *   never wait for the disk. if the disk cannot keep up, the active buffer
+ *   grows up to MAX_BUFFERED bytes, beyond which events are dropped and
+ *   counted.
+ *
+ * this class is thread safe.
+ */
+public class TrafficCapture
+{
+    /**
+     * magic number, and version at the start of every capture file.
+     */
+    public static final int MAGIC   = 0x47505343;
+    public static final int VERSION = 1;
+
+    /**
+     * types of events in the capture file.
+     */
+    public static final byte EVENT_OPEN    = 0;
+    public static final byte EVENT_MESSAGE = 1;
+    public static final byte EVENT_CLOSE   = 2;
+
+    /**
+     * size in bytes at which the active buffer is handed to the writer, and
+     *   beyond which events are dropped while the writer is still busy.
+     */
+    public static final int BUFFER_SIZE  = 1<<20;
+    public static final int MAX_BUFFERED = 8*BUFFER_SIZE;
+
+    /**
+     * file events are written to; only used by the writer thread once the
+     *   capture started.
+     */
+    private final FileOutputStream file;
+
+    /**
+     * buffer events are copied into, buffer handed to the writer and not
+     *   taken by it yet, and buffer the writer is done with; pending is null
+     *   while there is nothing to write, and spare is null while the writer
+     *   has it.
+     */
+    private Buffer active;
+    private Buffer pending;
+    private Buffer spare;
+
+    /**
+     * true once the capture is stopped, or failed; events recorded afterwards
+     *   are ignored.
+     */
+    private boolean stopped;
+
+    /**
+     * thread writing buffers to the file.
+     */
+    private final WriterThread writerThread;
+
+    /**
+     * value of System.nanoTime when the capture started.
+     */
+    private final long start;
+
+    /**
+     * number of events recorded, and dropped because the writer could not
+     *   keep up.
+     */
+    private long eventCount;
+    private long droppedCount;
+
+    //////////////////
+    // constructors //
+    //////////////////
+
+    /**
+     * instantiates a new traffic capture, which starts recording to the passed
+     *   file, replacing it if it exists.
+     *
+     * @param file file to record to.
+     *
+     * @throws IOException if the file cannot be created.
+     */
+    public TrafficCapture(File file) throws IOException
+    {
+        this.file = new FileOutputStream(file);
+        this.active = new Buffer();
+        this.spare = new Buffer();
+        this.pending = null;
+        this.stopped = false;
+        this.start = System.nanoTime();
+        active.out.writeInt(MAGIC);
+        active.out.writeInt(VERSION);
+        this.writerThread = new WriterThread(file);
+        writerThread.start();
+    }
+
+    //////////////////////
+    // public interface //
+    //////////////////////
+
+    /**
+     * records that a connection was opened.
+     *
+     * @param connection number of the connection.
+     */
+    public void onOpen(int connection)
+    {
+        long time = System.nanoTime()-start;
+        synchronized(this)
+        {
+            try
+            {
+                if(begin())
+                {
+                    writeHeader(EVENT_OPEN,time,connection);
+                    end();
+                }
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * records that a message was received on a connection.
+     *
+     * @param connection number of the connection.
+     * @param msg message received.
+     */
+    public void onMessage(int connection, String msg)
+    {
+        long time = System.nanoTime()-start;
+        synchronized(this)
+        {
+            try
+            {
+                if(begin())
+                {
+                    writeHeader(EVENT_MESSAGE,time,connection);
+                    active.out.writeUTF(msg);
+                    end();
+                }
+            }
+            catch(IOException e)
+            {
+                // messages are read with readUTF, so they always fit
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * records that a connection was closed.
+     *
+     * @param connection number of the connection.
+     * @param remote true if the connection was closed by the remote host;
+     *   false otherwise.
+     */
+    public void onClose(int connection, boolean remote)
+    {
+        long time = System.nanoTime()-start;
+        synchronized(this)
+        {
+            try
+            {
+                if(begin())
+                {
+                    writeHeader(EVENT_CLOSE,time,connection);
+                    active.out.writeBoolean(remote);
+                    end();
+                }
+            }
+            catch(IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * stops the capture, and waits for the events that are still buffered to
+     *   be written out. events recorded afterwards are ignored.
+     */
+    public void stop()
+    {
+        synchronized(this)
+        {
+            stopped = true;
+            notifyAll();
+        }
+        try
+        {
+            writerThread.join();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * returns the number of events recorded.
+     *
+     * @return the number of events recorded.
+     */
+    public synchronized long getEventCount()
+    {
+        return eventCount;
+    }
+
+    /**
+     * returns the number of events dropped because the capture file could not
+     *   be written fast enough.
+     *
+     * @return the number of events dropped.
+     */
+    public synchronized long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    ///////////////////////
+    // private interface //
+    ///////////////////////
+
+    /**
+     * returns true if an event may be copied into the active buffer; counts
+     *   it as dropped if the buffer is full. must be called while synchronized
+     *   on this.
+     */
+    private boolean begin()
+    {
+        if(stopped)
+        {
+            return false;
+        }
+        if(active.bytes.size() >= MAX_BUFFERED)
+        {
+            ++droppedCount;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * hands the active buffer to the writer once it is full, if the writer is
+     *   done with the other buffer. must be called while synchronized on this.
+     */
+    private void end()
+    {
+        ++eventCount;
+        if(active.bytes.size() >= BUFFER_SIZE && spare != null)
+        {
+            handOff();
+        }
+    }
+
+    /**
+     * hands the active buffer to the writer, and makes the spare buffer the
+     *   active one. must be called while synchronized on this.
+     */
+    private void handOff()
+    {
+        pending = active;
+        active = spare;
+        spare = null;
+        notifyAll();
+    }
+
+    private void writeHeader(byte type, long time, int connection) throws IOException
+    {
+        active.out.writeByte(type);
+        active.out.writeLong(time);
+        active.out.writeInt(connection);
+    }
+
+    ////////////
+    // Buffer //
+    ////////////
+
+    /**
+     * a buffer events are copied into.
+     */
+    private static class Buffer
+    {
+        private final ByteArrayOutputStream bytes;
+        private final DataOutputStream out;
+
+        public Buffer()
+        {
+            this.bytes = new ByteArrayOutputStream(BUFFER_SIZE+(BUFFER_SIZE>>2));
+            this.out = new DataOutputStream(bytes);
+        }
+    }
+
+    //////////////////
+    // WriterThread //
+    //////////////////
+
+    /**
+     * writes the buffers handed to it to the file, and what is left in the
+     *   active buffer once the capture is stopped.
+     */
+    private class WriterThread extends Thread
+    {
+        public WriterThread(File file)
+        {
+            setName("TrafficCaptureWriter "+file);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                Buffer buffer;
+                boolean last = false;
+                synchronized(TrafficCapture.this)
+                {
+                    while(pending == null && !stopped)
+                    {
+                        try
+                        {
+                            TrafficCapture.this.wait();
+                        }
+                        catch(InterruptedException e)
+                        {
+                            stopped = true;
+                        }
+                    }
+                    if(pending != null)
+                    {
+                        buffer = pending;
+                        pending = null;
+                    }
+                    else
+                    {
+                        // stopped, so nothing more is copied into it
+                        buffer = active;
+                        last = true;
+                    }
+                }
+
+                try
+                {
+                    buffer.bytes.writeTo(file);
+                }
+                catch(IOException e)
+                {
+                    // the server must keep serving regardless
+                    System.out.println("traffic capture failed: "+e.getMessage());
+                    synchronized(TrafficCapture.this)
+                    {
+                        stopped = true;
+                    }
+                    last = true;
+                }
+                if(last)
+                {
+                    break;
+                }
+
+                buffer.bytes.reset();
+                synchronized(TrafficCapture.this)
+                {
+                    spare = buffer;
+
+                    // the active buffer may have filled up meanwhile
+                    if(!stopped && active.bytes.size() >= BUFFER_SIZE)
+                    {
+                        handOff();
+                    }
+                }
+            }
+
+            try
+            {
+                file.close();
+            }
+            catch(IOException e)
+            {
+                System.out.println("traffic capture failed: "+e.getMessage());
+            }
+        }
+    }
+
+    ////////////
+    // Reader //
+    ////////////
+
+    /**
+     * reads the events of a capture file back in the order they were
+     *   recorded.
+     */
+    public static class Reader
+    {
+        private final DataInputStream is;
+
+        /**
+         * opens a capture file.
+         *
+         * @param file file to read.
+         *
+         * @throws IOException if the file cannot be read, or is not a capture
+         *   file.
+         */
+        public Reader(File file) throws IOException
+        {
+            this.is = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file),BUFFER_SIZE));
+            if(is.readInt() != MAGIC || is.readInt() != VERSION)
+            {
+                is.close();
+                throw new IOException("not a capture file: "+file);
+            }
+        }
+
+        /**
+         * reads the next event.
+         *
+         * @return the next event; null once there are no more events.
+         *
+         * @throws IOException if the file cannot be read.
+         */
+        public Event next() throws IOException
+        {
+            byte type;
+            try
+            {
+                type = is.readByte();
+            }
+            catch(EOFException e)
+            {
+                return null;
+            }
+            try
+            {
+                long time = is.readLong();
+                int connection = is.readInt();
+                switch(type)
+                {
+                case EVENT_MESSAGE:
+                    return new Event(type,time,connection,is.readUTF(),false);
+                case EVENT_CLOSE:
+                    return new Event(type,time,connection,null,is.readBoolean());
+                default:
+                    return new Event(type,time,connection,null,false);
+                }
+            }
+            catch(EOFException e)
+            {
+                // the server did not stop the capture; the last event is cut
+                // short
+                return null;
+            }
+        }
+
+        public void close() throws IOException
+        {
+            is.close();
+        }
+    }
+
+    ///////////
+    // Event //
+    ///////////
+
+    /**
+     * an event read from a capture file.
+     */
+    public static class Event
+    {
+        private final byte type;
+        private final long time;
+        private final int connection;
+        private final String message;
+        private final boolean remote;
+
+        public Event(byte type, long time, int connection, String message, boolean remote)
+        {
+            this.type = type;
+            this.time = time;
+            this.connection = connection;
+            this.message = message;
+            this.remote = remote;
+        }
+
+        /**
+         * returns the type of the event; one of the EVENT constants.
+         */
+        public byte getType()
+        {
+            return type;
+        }
+
+        /**
+         * returns the time of the event in nanoseconds since the capture
+         *   started.
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        public int getConnection()
+        {
+            return connection;
+        }
+
+        /**
+         * returns the message received; null unless this is a message event.
+         */
+        public String getMessage()
+        {
+            return message;
+        }
+
+        /**
+         * returns true if the remote host closed the connection; false
+         *   unless this is a close event.
+         */
+        public boolean isRemote()
+        {
+            return remote;
+        }
+    }
+}
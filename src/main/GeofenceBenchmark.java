@@ -0,0 +1,103 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import domain.Geofence;
+import domain.GeofenceEngine;
+import domain.GpsRecord;
+
+/**
+ * measures the amortized time GeofenceEngine takes to evaluate a GPS update
+ *   against a large number of randomly placed geofences.
+ */
+public class GeofenceBenchmark
+{
+    public static final String USAGE = "usage: java "+GeofenceBenchmark.class.getName()
+            +" [geofences] [devices] [updates]";
+
+    public static void main(String[] args)
+    {
+        int fenceCount;
+        int devices;
+        int updates;
+
+        // parse command line arguments
+        try
+        {
+            fenceCount = (args.length > 0) ? Integer.valueOf(args[0]) : 10000;
+            devices = (args.length > 1) ? Integer.valueOf(args[1]) : 1000;
+            updates = (args.length > 2) ? Integer.valueOf(args[2]) : 10000000;
+        }
+        catch(Exception e)
+        {
+            System.out.println(USAGE);
+            return;
+        }
+
+        // place hexagonal fences with radii of 100m to 1km within a 1 by 1
+        // degree area
+        Random random = new Random(0);
+        GeofenceEngine engine = new GeofenceEngine(Main.GEOFENCE_CELL_SIZE);
+        List<Geofence> fences = new ArrayList<>(fenceCount);
+        for(int i = 0; i < fenceCount; i++)
+        {
+            double lat = 49+random.nextDouble();
+            double lng = -123+random.nextDouble();
+            double radius = 0.001+random.nextDouble()*0.009;
+            double[] lats = new double[6];
+            double[] lngs = new double[6];
+            for(int v = 0; v < 6; v++)
+            {
+                lats[v] = lat+radius*Math.sin(v*Math.PI/3);
+                lngs[v] = lng+radius*Math.cos(v*Math.PI/3)*1.5;
+            }
+            fences.add(new Geofence("fence"+i,lats,lngs));
+        }
+        engine.addGeofences(fences);
+
+        final long[] events = new long[1];
+        engine.registerListener(new GeofenceEngine.GeofenceListener()
+        {
+            @Override
+            public void onGeofenceEntered(Geofence geofence, GpsRecord gpsRecord)
+            {
+                ++events[0];
+            }
+
+            @Override
+            public void onGeofenceExited(Geofence geofence, GpsRecord gpsRecord)
+            {
+                ++events[0];
+            }
+        });
+
+        // devices do random walks of about 10m per update
+        GpsRecord[] records = new GpsRecord[devices];
+        for(int d = 0; d < devices; d++)
+        {
+            records[d] = new GpsRecord("device"+d,"127.0.0.1:0",0,
+                    49+random.nextDouble(),-123+random.nextDouble(),0,10);
+        }
+
+        for(int pass = 0; pass < 2; pass++)
+        {
+            events[0] = 0;
+            long start = System.nanoTime();
+            for(int i = 0; i < updates; i++)
+            {
+                int d = i%devices;
+                GpsRecord last = records[d];
+                records[d] = new GpsRecord(last.getDeviceId(),last.getDeviceIp(),i,
+                        last.getLat()+(random.nextDouble()-0.5)*0.0002,
+                        last.getLng()+(random.nextDouble()-0.5)*0.0003,0,10);
+                engine.onGpsUpdate(records[d]);
+            }
+            long nanos = System.nanoTime()-start;
+            System.out.println((pass == 0 ? "warmup" : "measured")
+                    +": "+fenceCount+" geofences, "+updates+" updates, "
+                    +(double) nanos/updates+"ns/update, "+events[0]+" events");
+        }
+    }
+}
@@ -1,31 +1,290 @@
 package main;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
+import domain.AdmissionControl;
 import domain.AndroidClientServer;
+import domain.ClusterNode;
+import domain.DeadBandFilter;
+import domain.DeferredStore;
+import domain.DensityAggregator;
+import domain.DeviceSnapshot;
+import domain.GeofenceEngine;
 import domain.GpsRecordManager;
+import domain.GpsStore;
 import domain.MongoDBClient;
+import domain.PartitionedDispatcher;
+import domain.ReportingRatePolicy;
+import domain.RetentionJob;
+import domain.SegmentLogStore;
+import domain.SpatialIndex;
+import domain.TripSegmenter;
+import domain.UdpIngestServer;
+import domain.UpdateStreamPublisher;
+import domain.UpdateStreamSubscriber;
 import domain.WebClientServer;
+import lib.FlowGate;
+import lib.TrafficCapture;
 
 public class Main
 {
     public static final String USAGE = "usage: java "+Main.class.getName()
             +" [android_svr_port] [websocket_svr_port]";
 
+    /**
+     * system properties used to run the server as a node of a cluster. the
+     *   members property is a comma separated list of host:port pairs of all
+     *   nodes, and the self property is the index of this node in that list.
+     */
+    public static final String PROPERTY_CLUSTER_MEMBERS = "gps.cluster.members";
+    public static final String PROPERTY_CLUSTER_SELF    = "gps.cluster.self";
+
+    /**
+     * system properties used to split the server into an ingest process, and
+     *   gateway processes serving the web clients. the mode property is one of
+     *   the MODE_ constants. an ingest process publishes its update stream on
+     *   the stream port; a gateway process subscribes to the update stream at
+     *   the stream source, a host:port pair. a standalone process also
+     *   publishes its update stream if a stream port is given.
+     */
+    public static final String PROPERTY_MODE          = "gps.mode";
+    public static final String PROPERTY_STREAM_PORT   = "gps.stream.port";
+    public static final String PROPERTY_STREAM_SOURCE = "gps.stream.source";
+
+    public static final String MODE_STANDALONE = "standalone";
+    public static final String MODE_INGEST     = "ingest";
+    public static final String MODE_GATEWAY    = "gateway";
+
+    /**
+     * number of recent events kept by the update stream publisher for gateways
+     *   that reconnect.
+     */
+    public static final int STREAM_CAPACITY = 1<<18;
+
+    /**
+     * system property giving the number of partition threads that the events
+     *   of the fleet are dispatched on, so listeners run in parallel while the
+     *   events of each device stay in order; 0 or absent to dispatch them on
+     *   the threads that deliver them.
+     */
+    public static final String PROPERTY_DISPATCH_PARTITIONS = "gps.dispatch.partitions";
+
+    /**
+     * maximum number of events queued per dispatch partition.
+     */
+    public static final int DISPATCH_QUEUE_CAPACITY = 8192;
+
+    /**
+     * number of events queued on any one dispatch partition at which reading
+     *   from the Android clients is paused, and at which that partition no
+     *   longer keeps it paused.
+     */
+    public static final int BACKLOG_HIGH_WATERMARK = DISPATCH_QUEUE_CAPACITY/2;
+    public static final int BACKLOG_LOW_WATERMARK  = DISPATCH_QUEUE_CAPACITY/8;
+
+    /**
+     * system property naming the file that the state of live devices is
+     *   periodically written to, and restored from on startup. ignored by
+     *   gateways, which get the state from the update stream.
+     */
+    public static final String PROPERTY_SNAPSHOT_FILE = "gps.snapshot.file";
+
+    /**
+     * time in milliseconds between snapshots, maximum age of devices restored
+     *   from a snapshot, and time restored devices have to reconnect before
+     *   they are dispatched as disconnected.
+     */
+    public static final long SNAPSHOT_INTERVAL     = 5000;
+    public static final long SNAPSHOT_MAX_AGE      = 60*60*1000;
+    public static final long SNAPSHOT_GRACE_PERIOD = 2*60*1000;
+
+    /**
+     * system properties that choose where GPS updates are persisted. if a
+     *   MongoDB URI is given, including its credentials, GPS updates are
+     *   written to that database; otherwise, they are written to the embedded
+     *   store in the store directory.
+     */
+    public static final String PROPERTY_MONGODB_URI = "gps.mongodb.uri";
+    public static final String PROPERTY_STORE_DIR   = "gps.store.dir";
+
+    public static final String DEFAULT_STORE_DIR = "gps-store";
+
+    /**
+     * maximum number of GPS updates buffered while the store is connected in
+     *   the background at startup.
+     */
+    public static final int STORE_BUFFER_CAPACITY = 100000;
+
+    /**
+     * system properties setting the time in milliseconds that GPS updates are
+     *   kept at full resolution, and the length in milliseconds of the
+     *   intervals that one GPS update of each device is kept for after that.
+     *   GPS updates are kept at full resolution forever if no window is given.
+     */
+    public static final String PROPERTY_RETENTION_WINDOW     = "gps.retention.window";
+    public static final String PROPERTY_RETENTION_RESOLUTION = "gps.retention.resolution";
+    public static final long RETENTION_RESOLUTION            = 60*1000;
+
+    /**
+     * number of GPS updates rolled up per batch, and time in milliseconds
+     *   between runs of the retention job.
+     */
+    public static final int RETENTION_BATCH_SIZE = 10000;
+    public static final long RETENTION_INTERVAL  = 10*60*1000;
+
+    /**
+     * dead-band used to suppress GPS updates from devices that haven't moved.
+     */
+    public static final double DEAD_BAND_DISTANCE  = 10;
+    public static final double DEAD_BAND_HEADING   = 15;
+    public static final double STATIONARY_SPEED    = 0.5;
+    public static final long HEARTBEAT_INTERVAL    = 60000;
+
+    /**
+     * time in milliseconds an Android connection may be idle before a
+     *   heartbeat is sent to it, and before it is closed.
+     */
+    public static final long ANDROID_HEARTBEAT_INTERVAL = 60*1000;
+    public static final long ANDROID_IDLE_TIMEOUT       = 3*60*1000;
+
+    /**
+     * rate limit applied to each Android client unless it is assigned to
+     *   another device class: GPS updates per second, and GPS updates at once.
+     */
+    public static final double ANDROID_RATE_LIMIT = 10;
+    public static final int ANDROID_BURST_LIMIT   = 100;
+
+    /**
+     * time in milliseconds between logging the GPS updates admitted and
+     *   rejected from Android clients, and forgetting idle rate limits.
+     */
+    public static final long ADMISSION_REPORT_INTERVAL = 60*1000;
+
+    /**
+     * system property naming a properties file that defines device classes
+     *   with their own rate limits, and assigns devices to them; see
+     *   AdmissionControl.configure.
+     */
+    public static final String PROPERTY_ADMISSION_CONFIG = "gps.admission.config";
+
+    /**
+     * system properties setting the maximum number of Android connections
+     *   waiting to be accepted, and the number of threads accepting them, so
+     *   that the server keeps up when the whole fleet reconnects at once. the
+     *   JDK serializes accepting on one server socket, and accept threads hand
+     *   connections off at once, so more than one thread rarely helps; see
+     *   TCPServer.
+     */
+    public static final String PROPERTY_ACCEPT_BACKLOG = "gps.accept.backlog";
+    public static final String PROPERTY_ACCEPT_THREADS = "gps.accept.threads";
+    public static final int ANDROID_ACCEPT_BACKLOG     = 4096;
+    public static final int ANDROID_ACCEPT_THREADS     = 1;
+
+    /**
+     * system property that, when true, makes the server tell each Android
+     *   client how often to report its position, based on its speed, whether
+     *   web clients are viewing live positions, and the load of the server.
+     */
+    public static final String PROPERTY_ADAPTIVE_RATE = "gps.adaptive.rate";
+
+    /**
+     * system property naming a file to record the traffic received from
+     *   Android clients to, so it can be replayed with TrafficReplay.
+     */
+    public static final String PROPERTY_CAPTURE_FILE = "gps.capture.file";
+
+    /**
+     * system properties used to receive GPS updates as UDP datagrams. the
+     *   tokens property names a properties file that maps the IDs of the
+     *   devices that may send datagrams to their tokens.
+     */
+    public static final String PROPERTY_UDP_PORT   = "gps.udp.port";
+    public static final String PROPERTY_UDP_TOKENS = "gps.udp.tokens";
+
+    /**
+     * time in milliseconds a UDP device may go without sending anything before
+     *   it is dispatched as disconnected.
+     */
+    public static final long UDP_IDLE_TIMEOUT = 3*60*1000;
+
+    /**
+     * size in degrees of the cells of the spatial index of live devices.
+     */
+    public static final double SPATIAL_INDEX_CELL_SIZE = 0.05;
+
+    /**
+     * size in degrees of the cells of the geofence index.
+     */
+    public static final double GEOFENCE_CELL_SIZE = 0.01;
+
+    /**
+     * system property naming a properties file that defines the geofences
+     *   that web clients are notified of devices entering and exiting; see
+     *   GeofenceEngine.configure.
+     */
+    public static final String PROPERTY_GEOFENCE_CONFIG = "gps.geofence.config";
+
+    /**
+     * size in degrees of the cells of each zoom level of the density sent to
+     *   zoomed out web clients, and time in milliseconds between density
+     *   messages.
+     */
+    public static final double[] DENSITY_CELL_SIZES = {5, 1, 0.25};
+    public static final long DENSITY_INTERVAL       = 1000;
+
     public static void main(String[] args) throws IOException, InterruptedException
     {
+        long startTime = System.nanoTime();
         int androidServerPort;
         int websocketServerPort;
-        AndroidClientServer androidSvr;
-        WebClientServer webSockSvr;
+        String mode;
+        AndroidClientServer androidSvr = null;
+        ReportingRatePolicy ratePolicy = null;
+        TrafficCapture capture = null;
+        UdpIngestServer udpSvr = null;
+        WebClientServer webSockSvr = null;
         GpsRecordManager gpsRecords;
-        MongoDBClient mongoDBClnt;
+        GpsRecordManager fleetSource;
+        GpsRecordManager fleetRecords;
+        PartitionedDispatcher dispatcher = null;
+        ClusterNode clusterNode = null;
+        GpsStore gpsStore = null;
+        UpdateStreamPublisher streamPublisher = null;
+        UpdateStreamSubscriber streamSubscriber = null;
+        DeviceSnapshot deviceSnapshot = null;
+        SpatialIndex spatialIndex = null;
+        GeofenceEngine geofences = null;
+        DensityAggregator density = null;
+        TripSegmenter trips = null;
+        RetentionJob retention = null;
 
         // parse command line arguments
         try
         {
-            androidServerPort = 7000;//Integer.valueOf(args[0]);
-            websocketServerPort = 7001;//Integer.valueOf(args[1]);
+            androidServerPort = (args.length > 0) ? Integer.valueOf(args[0]) : 7000;
+            websocketServerPort = (args.length > 1) ? Integer.valueOf(args[1]) : 7001;
+            mode = System.getProperty(PROPERTY_MODE,MODE_STANDALONE);
+            if(!mode.equals(MODE_STANDALONE) && !mode.equals(MODE_INGEST)
+                    && !mode.equals(MODE_GATEWAY))
+            {
+                throw new IllegalArgumentException(mode);
+            }
+            if(mode.equals(MODE_GATEWAY) && System.getProperty(PROPERTY_STREAM_SOURCE) == null)
+            {
+                throw new IllegalArgumentException(PROPERTY_STREAM_SOURCE);
+            }
+            if(mode.equals(MODE_INGEST) && System.getProperty(PROPERTY_STREAM_PORT) == null)
+            {
+                throw new IllegalArgumentException(PROPERTY_STREAM_PORT);
+            }
         }
         catch(Exception e)
         {
@@ -37,10 +296,181 @@ public class Main
         try
         {
             gpsRecords = new GpsRecordManager();
-            mongoDBClnt = new MongoDBClient();
-            androidSvr = new AndroidClientServer(androidServerPort,gpsRecords);
-            webSockSvr = new WebClientServer(websocketServerPort,gpsRecords);
-            gpsRecords.registerListener(mongoDBClnt);
+            int partitionCount = Integer.getInteger(PROPERTY_DISPATCH_PARTITIONS,0);
+
+            // the android clients stop being read while any of the queues
+            // downstream, i.e. the partitions and the deferred store, is
+            // backlogged
+            gpsRecords.setBacklog(new FlowGate());
+
+            if(mode.equals(MODE_GATEWAY))
+            {
+                // the update stream is already filtered by the ingest process
+                fleetSource = gpsRecords;
+                streamSubscriber = new UpdateStreamSubscriber(
+                        ClusterNode.parseMembers(System.getProperty(PROPERTY_STREAM_SOURCE))[0],
+                        fleetSource);
+            }
+            else
+            {
+                gpsRecords.registerFilter(new DeadBandFilter(DEAD_BAND_DISTANCE,
+                        DEAD_BAND_HEADING,STATIONARY_SPEED,HEARTBEAT_INTERVAL));
+                if(System.getProperty(PROPERTY_MONGODB_URI) != null)
+                {
+                    gpsStore = new MongoDBClient(System.getProperty(PROPERTY_MONGODB_URI),
+                            MongoDBClient.StorageLayout.DOCUMENT,MongoDBClient.DEFAULT_BUCKET_SPAN);
+                }
+                else
+                {
+                    gpsStore = new SegmentLogStore(new File(
+                            System.getProperty(PROPERTY_STORE_DIR,DEFAULT_STORE_DIR)));
+                }
+
+                // the store is connected in the background, so the servers
+                // can start accepting connections without waiting for it
+                gpsStore = new DeferredStore(gpsStore,STORE_BUFFER_CAPACITY,gpsRecords.getBacklog());
+                if(System.getProperty(PROPERTY_RETENTION_WINDOW) != null)
+                {
+                    retention = new RetentionJob(gpsStore,
+                            Long.getLong(PROPERTY_RETENTION_WINDOW),
+                            Long.getLong(PROPERTY_RETENTION_RESOLUTION,RETENTION_RESOLUTION),
+                            RETENTION_BATCH_SIZE,RETENTION_INTERVAL);
+                }
+
+                // when clustered, the events of the android clients connected
+                // to this node are relayed to the fleet manager of every node
+                if(System.getProperty(PROPERTY_CLUSTER_MEMBERS) != null)
+                {
+                    fleetSource = new GpsRecordManager();
+                    clusterNode = new ClusterNode(
+                            Integer.getInteger(PROPERTY_CLUSTER_SELF,0),
+                            ClusterNode.parseMembers(System.getProperty(PROPERTY_CLUSTER_MEMBERS)),
+                            fleetSource);
+                    gpsRecords.registerListener(clusterNode);
+                }
+                else
+                {
+                    fleetSource = gpsRecords;
+                }
+
+                if(Boolean.getBoolean(PROPERTY_ADAPTIVE_RATE))
+                {
+                    // clients report well within the idle timeout, however
+                    // stretched their intervals are
+                    ratePolicy = new ReportingRatePolicy(gpsRecords.getBacklog(),ANDROID_IDLE_TIMEOUT/2);
+                }
+                AdmissionControl admissionControl = new AdmissionControl(
+                        new AdmissionControl.DeviceClass(AdmissionControl.DEFAULT_CLASS,
+                        ANDROID_RATE_LIMIT,ANDROID_BURST_LIMIT,AdmissionControl.Policy.DOWNSAMPLE));
+                admissionControl.configure(loadProperties(System.getProperty(PROPERTY_ADMISSION_CONFIG)));
+                androidSvr = new AndroidClientServer(androidServerPort,gpsRecords,
+                        ANDROID_IDLE_TIMEOUT,ANDROID_HEARTBEAT_INTERVAL,admissionControl,
+                        Integer.getInteger(PROPERTY_ACCEPT_BACKLOG,ANDROID_ACCEPT_BACKLOG),
+                        Integer.getInteger(PROPERTY_ACCEPT_THREADS,ANDROID_ACCEPT_THREADS),
+                        ratePolicy);
+                if(System.getProperty(PROPERTY_CAPTURE_FILE) != null)
+                {
+                    capture = new TrafficCapture(new File(System.getProperty(PROPERTY_CAPTURE_FILE)));
+                    androidSvr.setCapture(capture);
+                }
+                if(System.getProperty(PROPERTY_UDP_PORT) != null)
+                {
+                    udpSvr = new UdpIngestServer(Integer.getInteger(PROPERTY_UDP_PORT),
+                            gpsRecords,loadProperties(System.getProperty(PROPERTY_UDP_TOKENS)),
+                            UDP_IDLE_TIMEOUT);
+                }
+            }
+
+            // the events of the fleet are dispatched into the fleet source; the
+            // listeners are registered on the fleet records, which are fed by
+            // the partitioned dispatcher if there is one
+            if(partitionCount > 0)
+            {
+                fleetRecords = new GpsRecordManager();
+                dispatcher = new PartitionedDispatcher(partitionCount,
+                        DISPATCH_QUEUE_CAPACITY,fleetRecords,gpsRecords.getBacklog(),
+                        BACKLOG_HIGH_WATERMARK,BACKLOG_LOW_WATERMARK);
+                fleetSource.registerListener(dispatcher);
+            }
+            else
+            {
+                fleetRecords = fleetSource;
+            }
+            if(gpsStore != null)
+            {
+                // when clustered, each node persists the GPS updates that
+                // entered the cluster through it, rather than those it was
+                // relayed, which may have been dropped on the way
+                ((clusterNode == null) ? fleetRecords : gpsRecords).registerListener(gpsStore);
+            }
+
+            // trips are summarized as GPS updates arrive, and kept by the
+            // store of the node the device is assigned to
+            trips = new TripSegmenter();
+            fleetRecords.registerListener(trips);
+            if(gpsStore != null)
+            {
+                trips.registerListener((clusterNode == null)
+                        ? gpsStore : clusterNode.partitionedTrips(gpsStore));
+            }
+            if(!mode.equals(MODE_GATEWAY) && System.getProperty(PROPERTY_STREAM_PORT) != null)
+            {
+                streamPublisher = new UpdateStreamPublisher(
+                        Integer.getInteger(PROPERTY_STREAM_PORT),STREAM_CAPACITY);
+                fleetRecords.registerListener(streamPublisher);
+            }
+
+            // the ingest process leaves serving web clients to the gateways
+            if(!mode.equals(MODE_INGEST))
+            {
+                spatialIndex = new SpatialIndex(SPATIAL_INDEX_CELL_SIZE);
+                fleetRecords.registerListener(spatialIndex);
+                density = new DensityAggregator(DENSITY_CELL_SIZES);
+                fleetRecords.registerListener(density);
+                webSockSvr = new WebClientServer(websocketServerPort,fleetRecords,spatialIndex,
+                        density,DENSITY_INTERVAL);
+                if(ratePolicy != null)
+                {
+                    ratePolicy.setAudience(webSockSvr);
+                }
+                geofences = new GeofenceEngine(GEOFENCE_CELL_SIZE);
+                geofences.configure(loadProperties(System.getProperty(PROPERTY_GEOFENCE_CONFIG)));
+                System.out.println("loaded "+geofences.size()+" geofences");
+                geofences.registerListener(webSockSvr);
+                trips.registerListener(webSockSvr);
+                fleetRecords.registerListener(geofences);
+            }
+
+            // restore the state of live devices from the last snapshot
+            if(!mode.equals(MODE_GATEWAY) && System.getProperty(PROPERTY_SNAPSHOT_FILE) != null)
+            {
+                List<GpsRecordManager.GpsUpdateListener> restoreTo = new ArrayList<>();
+                for(GpsRecordManager.GpsUpdateListener listener : new GpsRecordManager.GpsUpdateListener[]{
+                        spatialIndex,density,webSockSvr,geofences,streamPublisher})
+                {
+                    if(listener != null)
+                    {
+                        restoreTo.add(listener);
+                    }
+                }
+
+                long restoreStart = System.nanoTime();
+                deviceSnapshot = new DeviceSnapshot(
+                        new File(System.getProperty(PROPERTY_SNAPSHOT_FILE)),SNAPSHOT_INTERVAL);
+                try
+                {
+                    int restored = deviceSnapshot.restore(SNAPSHOT_MAX_AGE,restoreTo.toArray(
+                            new GpsRecordManager.GpsUpdateListener[restoreTo.size()])).size();
+                    System.out.println("restored "+restored+" devices from snapshot in "
+                            +(System.nanoTime()-restoreStart)/1000000.0+"ms");
+                }
+                catch (IOException e)
+                {
+                    // devices reconnect on their own; a bad snapshot only costs time
+                    System.out.println("failed to restore devices from snapshot: "+e.getMessage());
+                }
+                fleetRecords.registerListener(deviceSnapshot);
+            }
         }
         catch (IOException e)
         {
@@ -48,14 +478,165 @@ public class Main
         }
 
         // start the servers
-        androidSvr.start();
-        webSockSvr.start();
-        mongoDBClnt.connect();
+        if(dispatcher != null)
+        {
+            dispatcher.start();
+        }
+        if(clusterNode != null)
+        {
+            clusterNode.start();
+        }
+        if(streamPublisher != null)
+        {
+            streamPublisher.start();
+        }
+        if(streamSubscriber != null)
+        {
+            streamSubscriber.start();
+        }
+        if(androidSvr != null)
+        {
+            androidSvr.start();
+            androidSvr.getAdmissionControl().start(ADMISSION_REPORT_INTERVAL);
+            if(ratePolicy != null)
+            {
+                ratePolicy.start();
+            }
+        }
+        if(udpSvr != null)
+        {
+            udpSvr.start();
+        }
+        if(webSockSvr != null)
+        {
+            webSockSvr.start();
+        }
+        if(deviceSnapshot != null)
+        {
+            deviceSnapshot.start();
+            deviceSnapshot.expireUnconfirmed(SNAPSHOT_GRACE_PERIOD,fleetSource);
+        }
+        if(gpsStore != null)
+        {
+            gpsStore.connect();
+        }
+        if(retention != null)
+        {
+            retention.start();
+        }
+        if(trips != null)
+        {
+            trips.start();
+        }
+        System.out.println("servers started in "
+                +(System.nanoTime()-startTime)/1000000.0+"ms"
+                +(deviceSnapshot == null ? " without" : " with")+" snapshot");
 
         // end the program when input is received
         System.in.read();
-        androidSvr.stop();
-        webSockSvr.stop();
-        mongoDBClnt.disconnect();
+        if(androidSvr != null)
+        {
+            androidSvr.stop();
+            androidSvr.getAdmissionControl().stop();
+            if(ratePolicy != null)
+            {
+                ratePolicy.stop();
+            }
+            if(androidSvr.getFirstAcceptTime() != 0)
+            {
+                System.out.println("first android connection accepted "
+                        +(androidSvr.getFirstAcceptTime()-startTime)/1000000.0+"ms after startup");
+            }
+            System.out.println("admitted "+androidSvr.getAdmissionControl().getAdmittedCount()
+                    +" and rejected "+androidSvr.getAdmissionControl().getRejectedCount()
+                    +" GPS updates from Android clients");
+        }
+        if(capture != null)
+        {
+            capture.stop();
+            System.out.println("captured "+capture.getEventCount()+" events from Android clients");
+        }
+        if(udpSvr != null)
+        {
+            udpSvr.stop();
+            System.out.println("received UDP datagrams: "+udpSvr.getTotals()
+                    +" rejected="+udpSvr.getRejectedCount());
+        }
+        if(webSockSvr != null)
+        {
+            webSockSvr.stop();
+        }
+        if(streamSubscriber != null)
+        {
+            streamSubscriber.cancel();
+        }
+        if(streamPublisher != null)
+        {
+            streamPublisher.stop();
+        }
+        if(clusterNode != null)
+        {
+            clusterNode.stop();
+        }
+        if(dispatcher != null)
+        {
+            dispatcher.stop();
+            for(int i = 0; i < dispatcher.getPartitionCount(); i++)
+            {
+                System.out.println("partition "+i+" dispatched "+dispatcher.getDispatchedCount(i)
+                        +" events; max queue depth "+dispatcher.getMaxQueueDepth(i)
+                        +", blocked "+dispatcher.getBlockedCount(i)+" times");
+            }
+        }
+        System.out.println("paused reading from android clients "
+                +gpsRecords.getBacklog().getClosedCount()+" times for "
+                +gpsRecords.getBacklog().getClosedTime()+"ms");
+        if(deviceSnapshot != null)
+        {
+            deviceSnapshot.stop();
+        }
+        if(trips != null)
+        {
+            trips.stop();
+        }
+        if(retention != null)
+        {
+            retention.stop();
+        }
+        if(gpsStore != null)
+        {
+            gpsStore.disconnect();
+        }
+    }
+
+    /**
+     * loads a properties file, such as the one that maps the IDs of the devices
+     *   that may send UDP datagrams to their tokens.
+     *
+     * @param path path of the properties file; may be null, in which case no
+     *   properties are loaded.
+     *
+     * @return the properties, by name.
+     *
+     * @throws IOException if the file could not be read.
+     */
+    private static Map<String,String> loadProperties(String path) throws IOException
+    {
+        Map<String,String> values = new LinkedHashMap<>();
+        if(path == null)
+        {
+            return values;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(path))
+        {
+            properties.load(in);
+        }
+        for(String name : properties.stringPropertyNames())
+        {
+            values.put(name,properties.getProperty(name));
+        }
+        return values;
     }
 }
@@ -0,0 +1,88 @@
+package main;
+
+import java.util.Random;
+
+import com.mongodb.DB;
+
+import domain.GpsRecord;
+import domain.MongoDBClient;
+import domain.MongoDBClient.StorageLayout;
+
+/**
+ * compares the document layout against the bucketed layout of MongoDBClient
+ *   by writing the same synthetic GPS updates with each of them, then reading
+ *   back one hour of updates of every device.
+ *
+ * the benchmark drops the collections used by MongoDBClient, so it must only
+ *   be pointed at a scratch database, i.e. one on a local mongod.
+ */
+public class MongoBenchmark
+{
+    public static final String USAGE = "usage: java "+MongoBenchmark.class.getName()
+            +" mongodb_uri [devices] [updates_per_device]";
+
+    public static void main(String[] args)
+    {
+        String uri;
+        int devices;
+        int updatesPerDevice;
+
+        // parse command line arguments
+        try
+        {
+            uri = args[0];
+            devices = (args.length > 1) ? Integer.valueOf(args[1]) : 100;
+            updatesPerDevice = (args.length > 2) ? Integer.valueOf(args[2]) : 1000;
+        }
+        catch(Exception e)
+        {
+            System.out.println(USAGE);
+            return;
+        }
+
+        for(StorageLayout layout : new StorageLayout[]{StorageLayout.DOCUMENT,StorageLayout.BUCKETED})
+        {
+            MongoDBClient mongoDBClnt = new MongoDBClient(uri,layout,
+                    MongoDBClient.DEFAULT_BUCKET_SPAN);
+            mongoDBClnt.connect();
+            DB db = mongoDBClnt.getDatabase();
+            db.getCollection(MongoDBClient.COLLECTION_LOCATIONS).drop();
+            db.getCollection(MongoDBClient.COLLECTION_BUCKETS).drop();
+            mongoDBClnt.disconnect();
+            mongoDBClnt.connect();
+
+            // write updates; one update per device per second, interleaved
+            // between devices like they would be in production
+            Random random = new Random(0);
+            long start = System.nanoTime();
+            for(int i = 0; i < updatesPerDevice; i++)
+            {
+                for(int d = 0; d < devices; d++)
+                {
+                    mongoDBClnt.onGpsUpdate(new GpsRecord("device"+d,"127.0.0.1:0",
+                            i*1000L,49+random.nextDouble(),-123+random.nextDouble(),
+                            0,random.nextDouble()*30));
+                }
+            }
+            long writeNanos = System.nanoTime()-start;
+
+            // read back an hour of updates for every device
+            start = System.nanoTime();
+            long read = 0;
+            for(int d = 0; d < devices; d++)
+            {
+                read += mongoDBClnt.findRange("device"+d,0,3600*1000L).size();
+            }
+            long readNanos = System.nanoTime()-start;
+
+            String collection = (layout == StorageLayout.DOCUMENT)
+                    ? MongoDBClient.COLLECTION_LOCATIONS
+                    : MongoDBClient.COLLECTION_BUCKETS;
+            System.out.println(layout
+                    +": writes/s="+(long) (devices*(double) updatesPerDevice/(writeNanos/1e9))
+                    +" read "+read+" updates in "+readNanos/1000000+"ms"
+                    +" stats="+db.getCollection(collection).getStats());
+            mongoDBClnt.disconnect();
+        }
+    }
+}
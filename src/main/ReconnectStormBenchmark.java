@@ -0,0 +1,150 @@
+package main;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import domain.AndroidClient;
+import domain.AndroidClientServer;
+import domain.GpsRecord;
+import domain.GpsRecordManager;
+
+/**
+ * simulates the whole fleet reconnecting at once after a network outage: a
+ *   number of clients connect to an AndroidClientServer as fast as they can,
+ *   and identify themselves. measures how long it takes until every client
+ *   is identified, and the time each client took to connect.
+ *
+ * every connection takes two file descriptors and a thread in this process,
+ *   so the open file limit must be raised above twice the number of clients.
+ */
+public class ReconnectStormBenchmark
+{
+    public static final String USAGE = "usage: java "+ReconnectStormBenchmark.class.getName()
+            +" [clients] [accept_threads] [backlog] [connect_threads]";
+
+    /**
+     * port the server listens on.
+     */
+    public static final int PORT = 7783;
+
+    public static void main(String[] args) throws Exception
+    {
+        final int clients;
+        int acceptThreads;
+        int backlog;
+        int connectThreads;
+
+        // parse command line arguments
+        try
+        {
+            clients = (args.length > 0) ? Integer.valueOf(args[0]) : 50000;
+            acceptThreads = (args.length > 1) ? Integer.valueOf(args[1]) : Main.ANDROID_ACCEPT_THREADS;
+            backlog = (args.length > 2) ? Integer.valueOf(args[2]) : Main.ANDROID_ACCEPT_BACKLOG;
+            connectThreads = (args.length > 3) ? Integer.valueOf(args[3]) : 64;
+        }
+        catch(Exception e)
+        {
+            System.out.println(USAGE);
+            return;
+        }
+
+        // the server logs every connection and message
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b){}
+        }));
+
+        final CountDownLatch identified = new CountDownLatch(clients);
+        GpsRecordManager gpsRecords = new GpsRecordManager();
+        gpsRecords.registerListener(new GpsRecordManager.GpsUpdateListener()
+        {
+            @Override
+            public void onGpsUpdate(GpsRecord gpsRecord){}
+
+            @Override
+            public void onClientConnected(String clientId)
+            {
+                identified.countDown();
+            }
+
+            @Override
+            public void onClientDisconnected(String clientId){}
+        });
+        AndroidClientServer server = new AndroidClientServer(PORT,gpsRecords,0,0,null,
+                backlog,acceptThreads);
+        server.start();
+
+        // connect all clients at once
+        final Socket[] sockets = new Socket[clients];
+        final long[] connectNanos = new long[clients];
+        final int[] failures = new int[1];
+        ExecutorService connectors = Executors.newFixedThreadPool(connectThreads);
+        long start = System.nanoTime();
+        for(int i = 0; i < clients; i++)
+        {
+            final int index = i;
+            connectors.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    long connectStart = System.nanoTime();
+                    try
+                    {
+                        Socket socket = new Socket();
+                        socket.connect(new InetSocketAddress("localhost",PORT));
+                        connectNanos[index] = System.nanoTime()-connectStart;
+                        sockets[index] = socket;
+                        DataOutputStream os = new DataOutputStream(socket.getOutputStream());
+                        os.writeUTF(new JSONObject().put(AndroidClient.JSON_KEY_ID,"device"+index).toString());
+                        os.flush();
+                    }
+                    catch(IOException e)
+                    {
+                        synchronized(failures)
+                        {
+                            ++failures[0];
+                        }
+                        identified.countDown();
+                    }
+                }
+            });
+        }
+        connectors.shutdown();
+        connectors.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
+        long connectedNanos = System.nanoTime()-start;
+        identified.await();
+        long identifiedNanos = System.nanoTime()-start;
+
+        long[] sorted = connectNanos.clone();
+        Arrays.sort(sorted);
+        out.println("clients="+clients+" accept_threads="+acceptThreads+" backlog="+backlog
+                +" failed="+failures[0]);
+        out.println("connected in "+connectedNanos/1000000+"ms, identified in "
+                +identifiedNanos/1000000+"ms ("+(long) (clients/(identifiedNanos/1e9))+" clients/s)");
+        out.println("connect latency: p50="+sorted[clients/2]/1000+"us p99="
+                +sorted[(int) (clients*0.99)]/1000+"us max="+sorted[clients-1]/1000+"us");
+
+        for(Socket socket : sockets)
+        {
+            if(socket != null)
+            {
+                socket.close();
+            }
+        }
+        server.stop();
+    }
+}
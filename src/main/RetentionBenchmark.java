@@ -0,0 +1,139 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+
+import domain.GpsStore;
+import domain.MongoDBClient;
+import domain.SegmentLogStore;
+
+/**
+ * measures rolling up GPS updates in the embedded SegmentLogStore, and in
+ *   MongoDBClient: writes the same synthetic GPS updates to each of them,
+ *   rolls up the older half of them in batches, and reads back every GPS
+ *   update of every device before and after, so the time per batch, and the
+ *   effect on range queries can be compared between builds.
+ *
+ * MongoDBClient is only benchmarked if a URI is given. the benchmark deletes
+ *   the store directory, and empties the collections used by MongoDBClient,
+ *   so they must only be scratch ones.
+ */
+public class RetentionBenchmark
+{
+    public static final String USAGE = "usage: java "+RetentionBenchmark.class.getName()
+            +" store_dir [devices] [updates_per_device] [mongodb_uri]";
+
+    /**
+     * size in bytes of the log segments of the embedded store; smaller than the
+     *   default, so that the benchmark spans several segments.
+     */
+    public static final int SEGMENT_SIZE = 16<<20;
+
+    /**
+     * resolution, and batch size that GPS updates are rolled up with.
+     */
+    public static final long RESOLUTION = 60*1000;
+    public static final int BATCH_SIZE  = 10000;
+
+    public static void main(String[] args) throws IOException
+    {
+        File directory;
+        int devices;
+        int updatesPerDevice;
+        String uri;
+
+        // parse command line arguments
+        try
+        {
+            directory = new File(args[0]);
+            devices = (args.length > 1) ? Integer.valueOf(args[1]) : 1000;
+            updatesPerDevice = (args.length > 2) ? Integer.valueOf(args[2]) : 1000;
+            uri = (args.length > 3) ? args[3] : null;
+        }
+        catch(Exception e)
+        {
+            System.out.println(USAGE);
+            return;
+        }
+        long before = updatesPerDevice/2*1000L;
+
+        // embedded store
+        StoreBenchmark.delete(directory);
+        SegmentLogStore logStore = new SegmentLogStore(directory,SEGMENT_SIZE,Long.MAX_VALUE);
+        logStore.connect();
+        StoreBenchmark.write(logStore,devices,updatesPerDevice);
+        logStore.compact();
+        System.out.println("embedded: "+read(logStore,devices,updatesPerDevice)+" before roll up, "
+                +rollUp(logStore,before)+", "+read(logStore,devices,updatesPerDevice)+" after");
+        logStore.disconnect();
+
+        // recovery of the embedded store
+        logStore.connect();
+        System.out.println("embedded: "+read(logStore,devices,updatesPerDevice)+" after reopening "
+                +logStore.getSegmentCount()+" segments");
+        logStore.disconnect();
+
+        // mongodb
+        if(uri != null)
+        {
+            MongoDBClient mongoDBClnt = new MongoDBClient(uri,MongoDBClient.StorageLayout.DOCUMENT,
+                    MongoDBClient.DEFAULT_BUCKET_SPAN);
+            mongoDBClnt.connect();
+            DB db = mongoDBClnt.getDatabase();
+            // emptied rather than dropped, so they keep their indexes
+            db.getCollection(MongoDBClient.COLLECTION_LOCATIONS).remove(new BasicDBObject());
+            db.getCollection(MongoDBClient.COLLECTION_BUCKETS).remove(new BasicDBObject());
+            db.getCollection(MongoDBClient.COLLECTION_ROLLUPS).remove(new BasicDBObject());
+            StoreBenchmark.write(mongoDBClnt,devices,updatesPerDevice);
+            System.out.println("mongodb: "+read(mongoDBClnt,devices,updatesPerDevice)+" before roll up, "
+                    +rollUp(mongoDBClnt,before)+", "+read(mongoDBClnt,devices,updatesPerDevice)+" after");
+            mongoDBClnt.disconnect();
+        }
+    }
+
+    /**
+     * rolls up the GPS updates sampled before the passed time in batches.
+     *
+     * @return a description of the roll up.
+     */
+    private static String rollUp(GpsStore store, long before)
+    {
+        long start = System.nanoTime();
+        long rolled = 0;
+        long maxBatch = 0;
+        int batches = 0;
+        while(true)
+        {
+            long batchStart = System.nanoTime();
+            long count = store.rollUp(before,RESOLUTION,BATCH_SIZE);
+            if(count == 0)
+            {
+                break;
+            }
+            maxBatch = Math.max(maxBatch,System.nanoTime()-batchStart);
+            rolled += count;
+            ++batches;
+        }
+        return "rolled up "+rolled+" updates in "+batches+" batches in "
+                +(System.nanoTime()-start)/1000000+"ms, max batch "+maxBatch/1000000+"ms";
+    }
+
+    /**
+     * reads back every update of every device.
+     *
+     * @return a description of the reads.
+     */
+    private static String read(GpsStore store, int devices, int updatesPerDevice)
+    {
+        long start = System.nanoTime();
+        long read = 0;
+        for(int d = 0; d < devices; d++)
+        {
+            read += store.findRange("device"+d,0,updatesPerDevice*1000L).size();
+        }
+        return "read "+read+" updates in "+(System.nanoTime()-start)/1000000+"ms";
+    }
+}
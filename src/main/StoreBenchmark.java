@@ -0,0 +1,144 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import com.mongodb.DB;
+
+import domain.GpsRecord;
+import domain.GpsStore;
+import domain.MongoDBClient;
+import domain.SegmentLogStore;
+
+/**
+ * compares the embedded SegmentLogStore against MongoDBClient by writing the
+ *   same synthetic GPS updates to each of them, then reading back one hour of
+ *   updates of every device. the embedded store is read back both before and
+ *   after its log segments are compacted.
+ *
+ * MongoDBClient is only benchmarked if a URI is given. the benchmark deletes
+ *   the store directory, and drops the collections used by MongoDBClient, so
+ *   they must only be scratch ones.
+ */
+public class StoreBenchmark
+{
+    public static final String USAGE = "usage: java "+StoreBenchmark.class.getName()
+            +" store_dir [devices] [updates_per_device] [mongodb_uri]";
+
+    /**
+     * size in bytes of the log segments of the embedded store; smaller than the
+     *   default, so that the benchmark spans several segments.
+     */
+    public static final int SEGMENT_SIZE = 16<<20;
+
+    public static void main(String[] args) throws IOException
+    {
+        File directory;
+        int devices;
+        int updatesPerDevice;
+        String uri;
+
+        // parse command line arguments
+        try
+        {
+            directory = new File(args[0]);
+            devices = (args.length > 1) ? Integer.valueOf(args[1]) : 1000;
+            updatesPerDevice = (args.length > 2) ? Integer.valueOf(args[2]) : 1000;
+            uri = (args.length > 3) ? args[3] : null;
+        }
+        catch(Exception e)
+        {
+            System.out.println(USAGE);
+            return;
+        }
+
+        // embedded store
+        delete(directory);
+        SegmentLogStore logStore = new SegmentLogStore(directory,SEGMENT_SIZE,Long.MAX_VALUE);
+        logStore.connect();
+        long writeNanos = write(logStore,devices,updatesPerDevice);
+        String reads = read(logStore,devices);
+        long start = System.nanoTime();
+        int compacted = logStore.compact();
+        long compactNanos = System.nanoTime()-start;
+        System.out.println("embedded: writes/s="+(long) (devices*(double) updatesPerDevice/(writeNanos/1e9))
+                +" "+reads+" before compaction, "+read(logStore,devices)+" after compacting "
+                +compacted+" segments in "+compactNanos/1000000+"ms");
+        logStore.disconnect();
+
+        // recovery of the embedded store
+        start = System.nanoTime();
+        logStore.connect();
+        System.out.println("embedded: reopened "+logStore.getSegmentCount()+" segments in "
+                +(System.nanoTime()-start)/1000000+"ms");
+        logStore.disconnect();
+
+        // mongodb
+        if(uri != null)
+        {
+            MongoDBClient mongoDBClnt = new MongoDBClient(uri,MongoDBClient.StorageLayout.DOCUMENT,
+                    MongoDBClient.DEFAULT_BUCKET_SPAN);
+            mongoDBClnt.connect();
+            DB db = mongoDBClnt.getDatabase();
+            db.getCollection(MongoDBClient.COLLECTION_LOCATIONS).drop();
+            db.getCollection(MongoDBClient.COLLECTION_BUCKETS).drop();
+            writeNanos = write(mongoDBClnt,devices,updatesPerDevice);
+            System.out.println("mongodb: writes/s="+(long) (devices*(double) updatesPerDevice/(writeNanos/1e9))
+                    +" "+read(mongoDBClnt,devices));
+            mongoDBClnt.disconnect();
+        }
+    }
+
+    /**
+     * writes updates; one update per device per second, interleaved between
+     *   devices like they would be in production.
+     *
+     * @return time taken in nanoseconds.
+     */
+    static long write(GpsStore store, int devices, int updatesPerDevice)
+    {
+        Random random = new Random(0);
+        long start = System.nanoTime();
+        for(int i = 0; i < updatesPerDevice; i++)
+        {
+            for(int d = 0; d < devices; d++)
+            {
+                store.onGpsUpdate(new GpsRecord("device"+d,"127.0.0.1:0",
+                        i*1000L,49+random.nextDouble(),-123+random.nextDouble(),
+                        0,random.nextDouble()*30));
+            }
+        }
+        return System.nanoTime()-start;
+    }
+
+    /**
+     * reads back an hour of updates for every device.
+     *
+     * @return a description of the reads.
+     */
+    private static String read(GpsStore store, int devices)
+    {
+        long start = System.nanoTime();
+        long read = 0;
+        for(int d = 0; d < devices; d++)
+        {
+            read += store.findRange("device"+d,0,3600*1000L).size();
+        }
+        return "read "+read+" updates in "+(System.nanoTime()-start)/1000000+"ms";
+    }
+
+    static void delete(File file) throws IOException
+    {
+        File[] children = file.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+            {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,205 @@
+package main;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import domain.AndroidClientServer;
+import domain.GpsRecord;
+import domain.GpsRecordManager;
+import lib.TrafficCapture;
+
+/**
+ * replays the traffic recorded by a TrafficCapture into a local
+ *   AndroidClientServer, whose GPS updates are only counted, so that
+ *   production shaped load can be rerun on a developer box, and the
+ *   throughput compared between builds.
+ *
+ * the connections are opened, sent their messages, and closed in the order
+ *   they were recorded, either at the speed they were recorded at, a
+ *   multiple of it, or as fast as possible.
+ */
+public class TrafficReplay
+{
+    public static final String USAGE = "usage: java "+TrafficReplay.class.getName()
+            +" capture_file [speed|max] [port]";
+
+    /**
+     * speed argument that replays the capture as fast as possible.
+     */
+    public static final String SPEED_MAX = "max";
+
+    public static void main(String[] args) throws Exception
+    {
+        File file;
+        double speed;
+        int port;
+
+        // parse command line arguments
+        try
+        {
+            file = new File(args[0]);
+            speed = (args.length > 1)
+                    ? (args[1].equals(SPEED_MAX) ? 0 : Double.valueOf(args[1])) : 1;
+            port = (args.length > 2) ? Integer.valueOf(args[2]) : 7784;
+        }
+        catch(Exception e)
+        {
+            System.out.println(USAGE);
+            return;
+        }
+
+        // the server logs every connection and message
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b){}
+        }));
+
+        // count what makes it through the server
+        final AtomicLong updates = new AtomicLong();
+        GpsRecordManager gpsRecords = new GpsRecordManager();
+        gpsRecords.registerListener(new GpsRecordManager.GpsBatchListener()
+        {
+            @Override
+            public void onGpsUpdate(GpsRecord gpsRecord)
+            {
+                updates.incrementAndGet();
+            }
+
+            @Override
+            public void onGpsBatch(List<GpsRecord> gpsRecords)
+            {
+                updates.addAndGet(gpsRecords.size());
+            }
+
+            @Override
+            public void onClientConnected(String clientId){}
+
+            @Override
+            public void onClientDisconnected(String clientId){}
+        });
+
+        // count the connections the server is done with
+        int connections = countConnections(file);
+        final CountDownLatch closed = new CountDownLatch(connections);
+        AndroidClientServer server = new AndroidClientServer(port,gpsRecords,0,0,null,
+                Main.ANDROID_ACCEPT_BACKLOG,Main.ANDROID_ACCEPT_THREADS)
+        {
+            @Override
+            protected void onClose(Socket conn, boolean remote)
+            {
+                super.onClose(conn,remote);
+                closed.countDown();
+            }
+        };
+        server.start();
+
+        // replay the events, waiting for the time each is due at
+        Map<Integer,Socket> sockets = new HashMap<>();
+        Map<Integer,DataOutputStream> streams = new HashMap<>();
+        TrafficCapture.Reader reader = new TrafficCapture.Reader(file);
+        long messages = 0;
+        long maxLag = 0;
+        long start = System.nanoTime();
+        TrafficCapture.Event event;
+        while((event = reader.next()) != null)
+        {
+            if(speed > 0)
+            {
+                long lag = System.nanoTime()-start-(long) (event.getTime()/speed);
+                if(lag < 0)
+                {
+                    TimeUnit.NANOSECONDS.sleep(-lag);
+                }
+                else
+                {
+                    maxLag = Math.max(maxLag,lag);
+                }
+            }
+
+            Integer connection = event.getConnection();
+            switch(event.getType())
+            {
+            case TrafficCapture.EVENT_OPEN:
+                Socket socket = new Socket("localhost",port);
+                sockets.put(connection,socket);
+                streams.put(connection,new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream())));
+                break;
+            case TrafficCapture.EVENT_MESSAGE:
+                DataOutputStream os = streams.get(connection);
+                if(os != null)
+                {
+                    os.writeUTF(event.getMessage());
+                    if(speed > 0)
+                    {
+                        os.flush();
+                    }
+                    ++messages;
+                }
+                break;
+            case TrafficCapture.EVENT_CLOSE:
+                // the connection may not have been opened if the capture
+                // dropped its open event
+                if(sockets.containsKey(connection))
+                {
+                    close(sockets.remove(connection),streams.remove(connection));
+                }
+                break;
+            }
+        }
+        reader.close();
+
+        // close the connections that were still open when the capture stopped
+        for(Integer connection : sockets.keySet())
+        {
+            close(sockets.get(connection),streams.get(connection));
+        }
+        closed.await();
+        long nanos = System.nanoTime()-start;
+        server.stop();
+
+        out.println("replayed "+connections+" connections, "+messages+" messages at "
+                +((speed > 0) ? speed+"x" : SPEED_MAX)+" speed in "+nanos/1000000+"ms");
+        out.println("messages/s="+(long) (messages/(nanos/1e9))+" gps_updates="+updates.get()
+                +" gps_updates/s="+(long) (updates.get()/(nanos/1e9))
+                +" max_lag="+maxLag/1000000+"ms");
+    }
+
+    /**
+     * returns the number of connections opened in a capture file.
+     */
+    private static int countConnections(File file) throws IOException
+    {
+        TrafficCapture.Reader reader = new TrafficCapture.Reader(file);
+        int connections = 0;
+        TrafficCapture.Event event;
+        while((event = reader.next()) != null)
+        {
+            if(event.getType() == TrafficCapture.EVENT_OPEN)
+            {
+                ++connections;
+            }
+        }
+        reader.close();
+        return connections;
+    }
+
+    private static void close(Socket socket, DataOutputStream os) throws IOException
+    {
+        os.flush();
+        socket.close();
+    }
+}